@@ -0,0 +1,109 @@
+package com.chaosinmotion.coviddata.bench;
+
+import com.chaosinmotion.coviddata.csv.ByteCSVParser;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.reports.CohortReport;
+import com.chaosinmotion.coviddata.reports.Report1;
+import com.chaosinmotion.coviddata.reports.Report2;
+import com.chaosinmotion.coviddata.reports.ReportEngine;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * The data our benchmarks run against, shared by every benchmark of a trial.
+ *
+ * Like Main, the benchmarks run in the directory containing data/ and cache/.
+ * If there is no check-in file in data/, a synthetic data set is generated
+ * first (see SyntheticData), and if there are no caches the reports are run
+ * once to build them.
+ *
+ * A sample of the check-in file (the first "sample" rows) is held in memory,
+ * so the benchmarks which don't measure I/O aren't measuring I/O.
+ *
+ * Benchmark states which need the data files take this as an argument of
+ * their setup, so JMH sets this up first.
+ */
+@State(Scope.Benchmark)
+public class BenchData
+{
+	public static final File CHECKIN = new File("data/consolidated_health_checkin.csv");
+	public static final File HEALTHLOGS = new File("cache/healthlogs.bin");
+	public static final File DICTIONARY = new File("cache/registrants.dict");
+	public static final File COHORTS = new File("cache/cohorts.idx");
+	public static final File VISITS = new File("cache/hinteraction.csv");
+	public static final File REGISTRANTS = new File("data/consolidated_registrants[1].csv");
+
+	@Param("200000")
+	public int sample;
+
+	public byte[] sampleBytes;
+	public String[][] sampleRows;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		if (!CHECKIN.exists()) {
+			System.out.println("Generating synthetic data");
+			new SyntheticData(1,1000000,66000).write(new File("data"));
+		}
+		if (!HEALTHLOGS.exists() || !DICTIONARY.exists() || !COHORTS.exists() || !VISITS.exists()) {
+			System.out.println("Building caches");
+			new File("cache").mkdirs();
+			buildCaches();
+		}
+		if (!REGISTRANTS.exists()) {
+			System.out.println("Generating synthetic demographic data");
+			new SyntheticData(1,1000000,66000).writeDemographics(new File("data"));
+		}
+		loadSample(sample);
+	}
+
+	private static void buildCaches() throws Exception
+	{
+		Report1 report1 = new Report1();
+		ReportEngine engine = new ReportEngine();
+		engine.register(report1);
+		engine.register(new Report2(report1));
+		engine.register(new CohortReport());
+		engine.run();
+	}
+
+	/**
+	 * Load the first n rows of the check-in file into memory.
+	 */
+	private void loadSample(int n) throws IOException
+	{
+		ArrayList<String[]> rows = new ArrayList<>();
+
+		FileInputStream fis = new FileInputStream(CHECKIN);
+		ByteCSVParser parser = new ByteCSVParser(fis);
+		parser.readRow();			// skip toc
+
+		long start = parser.getPosition();
+		long end = start;
+		while (rows.size() < n) {
+			CSVRow row = parser.readRow();
+			if (row == null) break;
+			rows.add(row.toArray());
+			end = parser.getPosition();
+		}
+		fis.close();
+
+		RandomAccessFile raf = new RandomAccessFile(CHECKIN,"r");
+		byte[] tmp = new byte[(int)(end - start)];
+		raf.seek(start);
+		raf.readFully(tmp);
+		raf.close();
+
+		sampleBytes = tmp;
+		sampleRows = rows.toArray(new String[rows.size()][]);
+	}
+}
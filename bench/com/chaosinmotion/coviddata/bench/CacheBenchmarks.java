@@ -0,0 +1,163 @@
+package com.chaosinmotion.coviddata.bench;
+
+import com.chaosinmotion.coviddata.reports.CohortIndex;
+import com.chaosinmotion.coviddata.reports.ReportStore;
+import com.chaosinmotion.coviddata.reports.Timeline;
+import com.chaosinmotion.coviddata.utils.ColumnKernel;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+import com.chaosinmotion.coviddata.utils.RoaringBitmap;
+import com.chaosinmotion.coviddata.utils.ScalarColumnKernel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for loading and walking our caches. The report history cache
+ * was healthlogs.ser; it is now the memory mapped healthlogs.bin.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CacheBenchmarks
+{
+	@Benchmark
+	public long loadHealthLogs(BenchData data, Blackhole bh) throws Exception
+	{
+		ReportStore store = new ReportStore(BenchData.HEALTHLOGS);
+		int reports = store.getReportCount();
+		long sum = 0;
+		for (int r = 0; r < reports; ++r) {
+			sum += store.getDate(r) + store.getByte(ReportStore.HEALTHCARE_VISITS,r);
+		}
+		bh.consume(sum);
+		store.close();
+		return reports;
+	}
+
+	@Benchmark
+	public long walkTimelines(BenchData data, Blackhole bh) throws Exception
+	{
+		ReportStore store = new ReportStore(BenchData.HEALTHLOGS);
+		Timeline timeline = new Timeline(store);
+		long n = 0;
+		long sum = 0;
+		while (timeline.nextRegistrant()) {
+			while (timeline.next()) {
+				sum += timeline.getDate();
+				++n;
+			}
+		}
+		bh.consume(sum);
+		store.close();
+		return n;
+	}
+
+	/**
+	 * The columns of the roll up at the end of Report2, copied out of the
+	 * store whole, with the scalar kernel or whatever ColumnKernel.get()
+	 * finds, so the two can be compared.
+	 */
+	@State(Scope.Benchmark)
+	public static class Rollup
+	{
+		@Param({ "scalar", "default" })
+		public String kernel;
+
+		ColumnKernel columnKernel;
+		byte[] visits;
+		byte[] vaccineCaused;
+		int[] offsets;
+		byte[] result;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			columnKernel = kernel.equals("scalar") ? new ScalarColumnKernel() : ColumnKernel.get();
+			System.out.println("Kernel: " + columnKernel.getClass().getSimpleName());
+
+			ReportStore store = new ReportStore(BenchData.HEALTHLOGS);
+			int registrants = store.getRegistrantCount();
+			int reports = store.getReportCount();
+			visits = new byte[reports];
+			vaccineCaused = new byte[reports];
+			offsets = new int[registrants + 1];
+			store.getColumn(ReportStore.HEALTHCARE_VISITS,0,reports,visits);
+			store.getColumn(ReportStore.VACCINE_CAUSED_HEALTH_ISSUES,0,reports,vaccineCaused);
+			store.getReportOffsets(0,registrants,offsets);
+			result = new byte[registrants];
+			store.close();
+		}
+	}
+
+	/**
+	 * The roll up at the end of Report2: OR the HEALTHCARE_VISITS of each
+	 * registrant's reports where VACCINE_CAUSED_HEALTH_ISSUES is set, then
+	 * count the bits. This forks with the incubator module, so the default
+	 * kernel is the Vector API one.
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+	public long visitRollup(Rollup r)
+	{
+		ColumnKernel kernel = r.columnKernel;
+		long[] counts = new long[4];
+		kernel.groupOr(r.visits,r.vaccineCaused,r.offsets,r.result.length,r.result);
+		kernel.bitCounts(r.result,r.result.length,counts);
+		return kernel.countNonZero(r.result,r.result.length) + counts[0];
+	}
+
+	@Benchmark
+	public int loadDictionary(BenchData data) throws Exception
+	{
+		RegistrantDictionary dict = RegistrantDictionary.read(BenchData.DICTIONARY);
+		return dict.size();
+	}
+
+	/**
+	 * The cohort index, and the cohorts of each visit type
+	 */
+	@State(Scope.Benchmark)
+	public static class Cohorts
+	{
+		CohortIndex index;
+		int[] visits;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			index = CohortIndex.read(BenchData.COHORTS);
+			visits = new int[] {
+				CohortIndex.find("HEALTHCARE_VISITS=Emergency"),
+				CohortIndex.find("HEALTHCARE_VISITS=Hospitalization"),
+				CohortIndex.find("HEALTHCARE_VISITS=Outpatient"),
+				CohortIndex.find("HEALTHCARE_VISITS=Telehealth")
+			};
+		}
+	}
+
+	@Benchmark
+	public void cohortCounts(Cohorts c, Blackhole bh) throws Exception
+	{
+		/*
+		 *	The counts Report1 prints: any visit, then each type
+		 */
+		RoaringBitmap any = c.index.get(c.visits[0]);
+		for (int i = 1; i < c.visits.length; ++i) any = any.or(c.index.get(c.visits[i]));
+		bh.consume(any.getCardinality());
+		for (int v: c.visits) bh.consume(c.index.get(v).getCardinality());
+		bh.consume(c.index.query("HEADACHE=Severe & HEALTHCARE_VISITS=Emergency").getCardinality());
+	}
+}
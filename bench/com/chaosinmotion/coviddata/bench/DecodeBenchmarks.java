@@ -0,0 +1,179 @@
+package com.chaosinmotion.coviddata.bench;
+
+import com.chaosinmotion.coviddata.csv.ByteCSVParser;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.reports.Report2;
+import com.chaosinmotion.coviddata.utils.GregorianDate;
+import com.chaosinmotion.coviddata.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for decoding the fields of the check-in file and building
+ * Report2's reports from them. Each invocation is a pass over the sample of
+ * the check-in file held in memory, and returns the number of rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DecodeBenchmarks
+{
+	/*
+	 *	Decoding fields
+	 */
+
+	private static final String[] reaction = { "", "Mild", "Moderate", "Severe" };
+	private static final String[] systemicReaction = {
+		"Abdominal pain",
+		"Chills",
+		"Diarrhea",
+		"Fatigue or tiredness",
+		"Headache",
+		"Joint pains",
+		"Muscle or body aches",
+		"Nausea",
+		"Rash, not including the immediate area around the injection site",
+		"Vomiting",
+	};
+
+	@Benchmark
+	public long utilsLookup(BenchData data, Blackhole bh)
+	{
+		for (String[] row: data.sampleRows) {
+			bh.consume(Utils.lookup(reaction,row[6]));
+		}
+		return data.sampleRows.length;
+	}
+
+	@Benchmark
+	public long utilsFields(BenchData data, Blackhole bh)
+	{
+		for (String[] row: data.sampleRows) {
+			bh.consume(Utils.fields(systemicReaction,row[30]));
+		}
+		return data.sampleRows.length;
+	}
+
+	@Benchmark
+	public long dateParse(BenchData data, Blackhole bh) throws Exception
+	{
+		for (String[] row: data.sampleRows) {
+			bh.consume(new GregorianDate(row[3]).getCount());
+		}
+		return data.sampleRows.length;
+	}
+
+	/**
+	 * The dates of our sample packed together, so we measure only the date
+	 * parsing.
+	 */
+	@State(Scope.Benchmark)
+	public static class Dates
+	{
+		byte[] buffer;
+		int[] start;
+		int[] length;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			start = new int[data.sampleRows.length];
+			length = new int[data.sampleRows.length];
+			for (int i = 0; i < data.sampleRows.length; ++i) {
+				byte[] date = data.sampleRows[i][3].getBytes(StandardCharsets.UTF_8);
+				start[i] = baos.size();
+				length[i] = date.length;
+				baos.write(date);
+			}
+			buffer = baos.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public long dateParseBytes(Dates dates, Blackhole bh) throws Exception
+	{
+		for (int i = 0; i < dates.start.length; ++i) {
+			bh.consume(GregorianDate.parse(dates.buffer,dates.start[i],dates.length[i]));
+		}
+		return dates.start.length;
+	}
+
+	/*
+	 *	Building reports
+	 */
+
+	@Benchmark
+	public long reportFromStrings(BenchData data, Blackhole bh) throws Exception
+	{
+		for (String[] row: data.sampleRows) {
+			bh.consume(new Report2.Report(row));
+		}
+		return data.sampleRows.length;
+	}
+
+	@Benchmark
+	public long reportFromRow(BenchData data, Blackhole bh) throws Exception
+	{
+		ByteCSVParser parser = new ByteCSVParser(ByteBuffer.wrap(data.sampleBytes));
+		long n = 0;
+		CSVRow row;
+		while ((row = parser.readRow()) != null) {
+			bh.consume(new Report2.Report(row));
+			++n;
+		}
+		return n;
+	}
+
+	/**
+	 * The reports of our sample, as written to the old report cache
+	 */
+	@State(Scope.Benchmark)
+	public static class Reports
+	{
+		byte[] data;
+		int count;
+
+		@Setup
+		public void setup(BenchData sample) throws Exception
+		{
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			for (String[] row: sample.sampleRows) {
+				new Report2.Report(row).write(dos);
+			}
+			dos.close();
+			data = baos.toByteArray();
+			count = sample.sampleRows.length;
+		}
+	}
+
+	@Benchmark
+	public long reportFromDataInput(Reports reports, Blackhole bh) throws Exception
+	{
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(reports.data));
+		for (int i = 0; i < reports.count; ++i) {
+			bh.consume(new Report2.Report(dis));
+		}
+		return reports.count;
+	}
+}
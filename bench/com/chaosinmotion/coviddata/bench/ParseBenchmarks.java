@@ -0,0 +1,293 @@
+package com.chaosinmotion.coviddata.bench;
+
+import com.chaosinmotion.coviddata.csv.ByteCSVParser;
+import com.chaosinmotion.coviddata.csv.ByteCSVWriter;
+import com.chaosinmotion.coviddata.csv.CSVAccumulator;
+import com.chaosinmotion.coviddata.csv.CSVChunkScanner;
+import com.chaosinmotion.coviddata.csv.CSVParser;
+import com.chaosinmotion.coviddata.csv.CSVPipeline;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.csv.CSVWriter;
+import com.chaosinmotion.coviddata.csv.SegmentIndex;
+import com.chaosinmotion.coviddata.utils.CompressedInput;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Benchmarks for reading and writing CSV files: the check-in file, a sample
+ * of it held in memory, and the hinteraction.csv cache. Each invocation is a
+ * pass over the whole file or sample, and returns the number of rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ParseBenchmarks
+{
+	/*
+	 *	Parsing the check-in file
+	 */
+
+	@Benchmark
+	public long csvParserReadRow(BenchData data, Blackhole bh) throws Exception
+	{
+		FileReader fr = new FileReader(BenchData.CHECKIN);
+		CSVParser parser = new CSVParser(fr);
+		long n = 0;
+		String[] row;
+		while ((row = parser.readRow()) != null) {
+			bh.consume(row.length);
+			++n;
+		}
+		fr.close();
+		return n;
+	}
+
+	@Benchmark
+	public long byteCSVParserReadRow(BenchData data, Blackhole bh) throws Exception
+	{
+		FileInputStream fis = new FileInputStream(BenchData.CHECKIN);
+		ByteCSVParser parser = new ByteCSVParser(fis);
+		long n = 0;
+		CSVRow row;
+		while ((row = parser.readRow()) != null) {
+			bh.consume(row.getFieldCount());
+			++n;
+		}
+		fis.close();
+		return n;
+	}
+
+	@Benchmark
+	public long pipelineReadRow(BenchData data, Blackhole bh) throws Exception
+	{
+		FileInputStream fis = new FileInputStream(BenchData.CHECKIN);
+		long n = run(fis,bh);
+		fis.close();
+		return n;
+	}
+
+	private static long run(InputStream is, Blackhole bh) throws Exception
+	{
+		CSVPipeline pipeline = new CSVPipeline(is);
+		pipeline.readTOC();
+		long[] n = new long[1];
+		pipeline.run(row -> {
+			bh.consume(row.getFieldCount());
+			++n[0];
+		});
+		return n[0] + 1;
+	}
+
+	/**
+	 * A compressed copy of the check-in file, written as a single gzip
+	 * stream or as BGZF blocks.
+	 */
+	@State(Scope.Benchmark)
+	public static class Compressed
+	{
+		@Param({ "gzip", "bgzf" })
+		public String format;
+
+		File file;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			file = File.createTempFile("checkin",".csv.gz");
+			if (format.equals("bgzf")) {
+				CompressedInput.compress(BenchData.CHECKIN,file);
+			} else {
+				try (FileInputStream fis = new FileInputStream(BenchData.CHECKIN);
+					 GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(file),65536)) {
+					fis.transferTo(gos);
+				}
+			}
+		}
+
+		@TearDown
+		public void tearDown()
+		{
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public long compressedReadRow(Compressed compressed, Blackhole bh) throws Exception
+	{
+		InputStream is = CompressedInput.open(compressed.file);
+		long n = run(is,bh);
+		is.close();
+		return n;
+	}
+
+	private static class RowCounter implements CSVAccumulator<RowCounter>
+	{
+		long rows;
+
+		@Override
+		public void accept(CSVRow row)
+		{
+			++rows;
+		}
+
+		@Override
+		public void merge(RowCounter other)
+		{
+			rows += other.rows;
+		}
+	}
+
+	@Benchmark
+	public long chunkScan(BenchData data) throws Exception
+	{
+		CSVChunkScanner scanner = new CSVChunkScanner(BenchData.CHECKIN);
+		return scanner.scan(toc -> new RowCounter()).rows;
+	}
+
+	/*
+	 *	The sample held in memory
+	 */
+
+	@Benchmark
+	public long byteCSVParserSample(BenchData data, Blackhole bh) throws Exception
+	{
+		ByteCSVParser parser = new ByteCSVParser(ByteBuffer.wrap(data.sampleBytes));
+		long n = 0;
+		CSVRow row;
+		while ((row = parser.readRow()) != null) {
+			bh.consume(row.getFieldCount());
+			++n;
+		}
+		return n;
+	}
+
+	@Benchmark
+	public long csvWriterWriteRow(BenchData data) throws Exception
+	{
+		CSVWriter writer = new CSVWriter(Writer.nullWriter());
+		for (String[] row: data.sampleRows) {
+			writer.writeRow(row);
+		}
+		writer.close();
+		return data.sampleRows.length;
+	}
+
+	@Benchmark
+	public long byteCSVWriterWriteRow(BenchData data) throws Exception
+	{
+		ByteCSVWriter writer = new ByteCSVWriter(Channels.newChannel(OutputStream.nullOutputStream()));
+		for (String[] row: data.sampleRows) {
+			writer.writeRow(row);
+		}
+		writer.close();
+		return data.sampleRows.length;
+	}
+
+	/*
+	 *	The hinteraction.csv cache
+	 */
+
+	/**
+	 * The segment index of the visit cache, if it is to be used
+	 */
+	@State(Scope.Benchmark)
+	public static class VisitCache
+	{
+		@Param({ "boundaries", "index" })
+		public String split;
+
+		long[] segments;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			if (split.equals("index")) {
+				segments = SegmentIndex.read(BenchData.VISITS);
+				if (segments == null) System.out.println("No segment index for " + BenchData.VISITS + "; rebuild the caches");
+			}
+		}
+	}
+
+	@Benchmark
+	public long visitCacheScan(VisitCache cache) throws Exception
+	{
+		CSVChunkScanner scanner = new CSVChunkScanner(BenchData.VISITS);
+		RowCounter counter = (cache.segments == null) ? scanner.scan(toc -> new RowCounter()) : scanner.scan(toc -> new RowCounter(),cache.segments);
+		return counter.rows;
+	}
+
+	/**
+	 * The registrants and made up visit counts to write
+	 */
+	@State(Scope.Benchmark)
+	public static class VisitCounts
+	{
+		@Param({ "CSVWriter", "ByteCSVWriter" })
+		public String writer;
+
+		RegistrantDictionary dict;
+		int[] counts;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			dict = RegistrantDictionary.read(BenchData.DICTIONARY);
+			counts = new int[dict.size()];
+			for (int i = 0; i < counts.length; ++i) counts[i] = (i * 31) % 7;
+		}
+	}
+
+	@Benchmark
+	public long visitCacheWrite(VisitCounts v) throws Exception
+	{
+		RegistrantDictionary dict = v.dict;
+		int[] counts = v.counts;
+		String[] row = { "REGISTRANT_CODE", "ER", "HOSPITAL", "OUTPATIENT", "TELEHEALTH" };
+		if (v.writer.equals("ByteCSVWriter")) {
+			ByteCSVWriter writer = new ByteCSVWriter(Channels.newChannel(OutputStream.nullOutputStream()));
+			writer.writeRow(row);
+			writer.writeRows(dict.size(),(id,out) -> {
+				out.field(dict.getCode(id));
+				for (int i = 0; i < 4; ++i) out.field(counts[id] + i);
+				out.endRow();
+			});
+			writer.close();
+		} else {
+			CSVWriter writer = new CSVWriter(Writer.nullWriter());
+			writer.writeRow(row);
+			for (int id = 0; id < dict.size(); ++id) {
+				row[0] = dict.getCode(id);
+				for (int i = 0; i < 4; ++i) row[i + 1] = Integer.toString(counts[id] + i);
+				writer.writeRow(row);
+			}
+			writer.close();
+		}
+		return dict.size();
+	}
+}
@@ -0,0 +1,149 @@
+package com.chaosinmotion.coviddata.bench;
+
+import com.chaosinmotion.coviddata.query.QueryDefinition;
+import com.chaosinmotion.coviddata.query.QueryEngine;
+import com.chaosinmotion.coviddata.reports.DemographicReport;
+import com.chaosinmotion.coviddata.reports.DemographicTable;
+import com.chaosinmotion.coviddata.reports.Report1;
+import com.chaosinmotion.coviddata.reports.ReportEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the reports run after the check-in file has been scanned:
+ * the demographic join against Report1's visits, and the declared reports.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReportBenchmarks
+{
+	/**
+	 * Load Report1's visits from its cache, as the demographic join needs
+	 */
+	private static Report1 loadVisits() throws Exception
+	{
+		Report1 report1 = new Report1();
+		ReportEngine engine = new ReportEngine();
+		engine.register(report1);
+		engine.run();
+		return report1;
+	}
+
+	/**
+	 * Report1's visits and the fields of the registrants file
+	 */
+	@State(Scope.Benchmark)
+	public static class Visits
+	{
+		Report1 report1;
+		String[] fields;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			report1 = loadVisits();
+			fields = DemographicTable.readFields(BenchData.REGISTRANTS);
+		}
+	}
+
+	@Benchmark
+	public long demographicLoad(Visits v) throws Exception
+	{
+		DemographicTable table = DemographicTable.read(BenchData.REGISTRANTS,v.report1.getVisits(),v.fields);
+		return table.getRowCount();
+	}
+
+	/**
+	 * The demographic tables, loaded for the fields to group by
+	 */
+	@State(Scope.Benchmark)
+	public static class Demographics
+	{
+		@Param({ "SEX", "AGE_GROUP,SEX,RACE" })
+		public String group;
+
+		String[] fields;
+		DemographicReport report;
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			fields = group.split(",");
+			report = new DemographicReport(loadVisits(),fields);
+			report.loadTables();
+		}
+	}
+
+	@Benchmark
+	public DemographicReport.Breakdown demographicGroup(Demographics d) throws Exception
+	{
+		return d.report.group(d.fields);
+	}
+
+	private static final String[] DECLARED_REPORTS = {
+		"[er]\nwhere = HEALTHCARE_VISITS has Emergency\nselect = count distinct REGISTRANT_CODE\n",
+		"[by_survey]\ngroup = SURVEY_STATIC_ID, FEELING_TODAY\nselect = count, avg DURATION_MINS\n",
+		"[fever]\nwhere = FEVER & DAYS_SINCE < 7\nselect = count distinct REGISTRANT_CODE\n"
+	};
+
+	/**
+	 * Three declared reports over the check-in file, run either together in
+	 * one scan, or one scan each.
+	 */
+	@State(Scope.Benchmark)
+	public static class Declared
+	{
+		@Param({ "separate", "fused" })
+		public String scan;
+
+		final ArrayList<List<QueryDefinition>> runs = new ArrayList<>();
+
+		@Setup
+		public void setup(BenchData data) throws Exception
+		{
+			File f = File.createTempFile("reports",".conf");
+			f.deleteOnExit();
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(f),StandardCharsets.UTF_8)) {
+				for (String r: DECLARED_REPORTS) w.write(r);
+			}
+			List<QueryDefinition> defs = QueryDefinition.read(f);
+			if (scan.equals("fused")) {
+				runs.add(defs);
+			} else {
+				for (QueryDefinition d: defs) runs.add(List.of(d));
+			}
+		}
+	}
+
+	@Benchmark
+	public void declaredReports(Declared d) throws Exception
+	{
+		PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+		for (List<QueryDefinition> run: d.runs) {
+			new QueryEngine(run).run(out);
+		}
+	}
+}
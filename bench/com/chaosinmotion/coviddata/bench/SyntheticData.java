@@ -0,0 +1,379 @@
+package com.chaosinmotion.coviddata.bench;
+
+import com.chaosinmotion.coviddata.csv.CSVWriter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic health check-in and vaccination files with the same
+ * layout and vocabulary as the V-safe files, so we can measure the
+ * performance of our parsing and caching code without the real data.
+ *
+ * The output is completely determined by the seed, the number of rows and
+ * the number of registrants, so two runs with the same settings produce
+ * byte for byte the same files.
+ *
+ * Usage: SyntheticData [rows [registrants [seed]]]
+ *
+ * This writes data/consolidated_health_checkin.csv,
+ * data/consolidated_vaccinations[1].csv, data/consolidated_registrants[1].csv
+ * and data/consolidated_race_ethnicity[1].csv in the current directory.
+ *
+ * We don't know the layout of the last two, so their fields are made up;
+ * DemographicReport takes the fields to group by from the file, so the names
+ * don't matter.
+ */
+public class SyntheticData
+{
+	public static final String[] CHECKIN_TOC = {
+		"SURVEY_STATIC_ID", "REGISTRANT_CODE", "RESPONSE_ID", "STARTED_ON",
+		"STARTED_ON_TIME", "DAYS_SINCE_VACCINATION", "ABDOMINAL_PAIN", "CHILLS",
+		"DIARRHEA", "FATIGUE", "FEELING_TODAY", "FEVER", "HAD_SYMPTOMS",
+		"HEADACHE", "HEALTH_IMPACT", "HEALTH_NOW", "HEALTH_NOW_COMPARISON",
+		"VACCINE_CAUSED_HEALTH_ISSUES", "HEALTHCARE_VISITS", "ITCHING",
+		"JOINT_PAINS", "MUSCLE_OR_BODY_ACHES", "NAUSEA", "PAIN", "PREGNANT",
+		"PREGNANCY_TEST", "RASH_OUTSIDE_INJECTION_SITE", "REDNESS",
+		"SITE_REACTION", "SWELLING", "SYSTEMIC_REACTION", "TEMPERATURE_CELSIUS",
+		"TEMPERATURE_FAHRENHEIT", "TEMPERATURE_READING", "TESTED_POSITIVE",
+		"TESTED_POSITIVE_DATE", "VOMITING"
+	};
+
+	public static final String[] VACCINATION_TOC = {
+		"REGISTRANT_CODE", "MANUFACTURER", "DOSE_NUMBER", "VACCINATION_DATE"
+	};
+
+	public static final String[] REGISTRANT_TOC = {
+		"REGISTRANT_CODE", "AGE_GROUP", "SEX", "STATE"
+	};
+
+	public static final String[] RACE_ETHNICITY_TOC = {
+		"REGISTRANT_CODE", "RACE", "ETHNICITY"
+	};
+
+	private static final String[] reaction = { "", "Mild", "Moderate", "Severe" };
+	private static final String[] healthNow = { "", "Excellent", "Good", "Fair", "Poor" };
+	private static final String[] feeling = { "", "Poor", "Fair", "Good" };
+	private static final String[] healthImpact = {
+		"Be unable to do their normal daily activities",
+		"Be unable to work",
+		"Get care from a doctor or other healthcare professional",
+		"Be unable to work or attend school"
+	};
+	private static final String[] healthChange = { "", "Worse", "About the same", "Better" };
+	private static final String[] healthVisit = {
+		"Emergency room or emergency department visit",
+		"Hospitalization",
+		"Outpatient clinic or urgent care clinic visit",
+		"Telehealth, virtual health, or email health consultation"
+	};
+	private static final String[] pregnantStatus = { "", "I don't know", "Yes", "No" };
+	private static final String[] siteReaction = { "Pain", "Redness", "Swelling", "Itching" };
+	private static final String[] systemicReaction = {
+		"Abdominal pain",
+		"Chills",
+		"Diarrhea",
+		"Fatigue or tiredness",
+		"Headache",
+		"Joint pains",
+		"Muscle or body aches",
+		"Nausea",
+		"Rash, not including the immediate area around the injection site",
+		"Vomiting",
+	};
+	private static final String[] manufacturer = { "Pfizer", "Moderna", "Janssen" };
+	private static final String[] ageGroup = { "16-17", "18-24", "25-34", "35-44", "45-54", "55-64", "65-74", "75+" };
+	private static final String[] sex = { "Female", "Male", "Unknown" };
+	private static final String[] state = { "CA", "FL", "IL", "NY", "OH", "PA", "TX", "WA" };
+	private static final String[] race = {
+		"White",
+		"Black or African American",
+		"Asian",
+		"American Indian or Alaska Native",
+		"Native Hawaiian or Other Pacific Islander",
+		"Other",
+		""
+	};
+	private static final String[] ethnicity = { "Hispanic or Latino", "Not Hispanic or Latino", "Unknown" };
+
+	// Columns which hold a reaction severity
+	private static final int[] reactionColumns = { 6, 7, 8, 9, 13, 19, 20, 21, 22, 23, 26, 27, 29, 36 };
+
+	// Day count range of our dates: 12/14/2020 to 7/31/2022
+	private static final int FIRST_DAY = 737773;
+	private static final int DAYS = 595;
+
+	private final long seed;
+	private final int rows;
+	private final int registrants;
+
+	/**
+	 * Create a generator.
+	 * @param seed The random seed
+	 * @param rows The number of check-in rows to generate
+	 * @param registrants The number of distinct registrants
+	 */
+	public SyntheticData(long seed, int rows, int registrants)
+	{
+		this.seed = seed;
+		this.rows = rows;
+		this.registrants = Math.max(1,registrants);
+	}
+
+	/**
+	 * The registrant code for a registrant. The codes look like the V-safe
+	 * codes: 16 hex digits with no particular order.
+	 */
+	private String registrantCode(int registrant)
+	{
+		long h = (registrant + 1) * 0x9E3779B97F4A7C15L ^ seed;
+		h ^= (h >>> 31);
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= (h >>> 29);
+		return String.format("%016X",h);
+	}
+
+	/**
+	 * Format a day count as M/D/YYYY
+	 */
+	private static String date(int day)
+	{
+		/*
+		 *	We keep this independent of GregorianDate, so a change there
+		 * 	can't change the data we generate.
+		 */
+		int y = 2020;
+		int m = 12;
+		int d = 14 + (day - FIRST_DAY);
+		for (;;) {
+			int len = ((m == 4) || (m == 6) || (m == 9) || (m == 11)) ? 30 : (m == 2) ? (((y % 4) == 0) ? 29 : 28) : 31;
+			if (d <= len) break;
+			d -= len;
+			if (++m > 12) {
+				m = 1;
+				++y;
+			}
+		}
+		return m + "/" + d + "/" + y;
+	}
+
+	private static String pick(SplittableRandom r, String[] values)
+	{
+		return values[r.nextInt(values.length)];
+	}
+
+	/**
+	 * Pick a colon separated list of values, or one of the empty values.
+	 */
+	private static String multi(SplittableRandom r, String[] values, int percent, boolean allowNone)
+	{
+		if (r.nextInt(100) >= percent) {
+			if (!allowNone) return "";
+			switch (r.nextInt(3)) {
+				case 0: return "";
+				case 1: return "None";
+				default: return "N/A";
+			}
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (String v: values) {
+			if (r.nextInt(3) == 0) {
+				if (builder.length() > 0) builder.append(':');
+				builder.append(v);
+			}
+		}
+		if (builder.length() == 0) builder.append(values[r.nextInt(values.length)]);
+		return builder.toString();
+	}
+
+	/**
+	 * Generate a check-in row.
+	 * @param r The random number generator
+	 * @param index The index of the row
+	 * @param row The row to fill
+	 */
+	private void checkinRow(SplittableRandom r, int index, String[] row)
+	{
+		Arrays.fill(row,"");
+
+		int registrant = r.nextInt(registrants);
+		boolean sick = (r.nextInt(4) == 0);
+
+		row[0] = "vsafe-daily";
+		row[1] = registrantCode(registrant);
+		row[2] = Integer.toString(index);
+		row[3] = date(FIRST_DAY + r.nextInt(DAYS));
+		row[4] = String.format("%02d:%02d",r.nextInt(24),r.nextInt(60));
+		row[5] = Integer.toString(r.nextInt(120));
+
+		for (int c: reactionColumns) {
+			row[c] = sick ? pick(r,reaction) : "";
+		}
+		row[10] = pick(r,feeling);
+		row[11] = r.nextBoolean() ? "Yes" : "No";
+		row[12] = sick ? "Yes" : "No";
+		row[14] = sick ? multi(r,healthImpact,30,true) : "";
+		row[15] = pick(r,healthNow);
+		row[16] = pick(r,healthChange);
+		row[17] = (sick && (r.nextInt(3) == 0)) ? "Yes" : "No";
+		row[18] = (r.nextInt(50) == 0) ? multi(r,healthVisit,100,false) : "";
+		row[24] = pick(r,pregnantStatus);
+		row[25] = (r.nextInt(10) == 0) ? "Yes" : "No";
+		row[28] = sick ? multi(r,siteReaction,50,true) : "";
+		row[30] = sick ? multi(r,systemicReaction,50,true) : "";
+
+		if (r.nextInt(20) == 0) {
+			row[31] = String.format("%.1f",36.5 + r.nextInt(30) / 10.0);
+			row[33] = "Yes";
+		}
+		if (r.nextInt(100) == 0) {
+			row[34] = "Yes";
+			row[35] = date(FIRST_DAY + r.nextInt(DAYS));
+		} else {
+			row[34] = "No";
+		}
+	}
+
+	/**
+	 * Write the check-in file.
+	 * @param f The file to write
+	 * @throws IOException
+	 */
+	public void writeCheckins(File f) throws IOException
+	{
+		SplittableRandom r = new SplittableRandom(seed);
+		CSVWriter writer = new CSVWriter(new FileWriter(f));
+		writer.writeRow(CHECKIN_TOC);
+
+		String[] row = new String[CHECKIN_TOC.length];
+		for (int i = 0; i < rows; ++i) {
+			checkinRow(r,i,row);
+			writer.writeRow(row);
+		}
+		writer.close();
+	}
+
+	/**
+	 * Write the vaccination file. Each registrant gets one to three doses.
+	 * @param f The file to write
+	 * @throws IOException
+	 */
+	public void writeVaccinations(File f) throws IOException
+	{
+		SplittableRandom r = new SplittableRandom(seed ^ 0x5DEECE66DL);
+		CSVWriter writer = new CSVWriter(new FileWriter(f));
+		writer.writeRow(VACCINATION_TOC);
+
+		String[] row = new String[VACCINATION_TOC.length];
+		for (int i = 0; i < registrants; ++i) {
+			int doses = 1 + r.nextInt(3);
+			int day = FIRST_DAY + r.nextInt(DAYS / 2);
+			row[0] = registrantCode(i);
+			row[1] = pick(r,manufacturer);
+			for (int d = 1; d <= doses; ++d) {
+				row[2] = Integer.toString(d);
+				row[3] = date(Math.min(FIRST_DAY + DAYS - 1,day));
+				writer.writeRow(row);
+				day += 21 + r.nextInt(150);
+			}
+		}
+		writer.close();
+	}
+
+	/**
+	 * Write the registrants file. One registrant in 20 has no row, and there
+	 * is a row for one registrant in 10 who never checked in.
+	 * @param f The file to write
+	 * @throws IOException
+	 */
+	public void writeRegistrants(File f) throws IOException
+	{
+		SplittableRandom r = new SplittableRandom(seed ^ 0x2545F4914F6CDD1DL);
+		CSVWriter writer = new CSVWriter(new FileWriter(f));
+		writer.writeRow(REGISTRANT_TOC);
+
+		String[] row = new String[REGISTRANT_TOC.length];
+		int extra = registrants / 10;
+		for (int i = 0; i < registrants + extra; ++i) {
+			if (r.nextInt(20) == 0) continue;
+			row[0] = registrantCode(i);
+			row[1] = pick(r,ageGroup);
+			row[2] = sex[(r.nextInt(10) < 6) ? 0 : (r.nextInt(10) < 9) ? 1 : 2];
+			row[3] = pick(r,state);
+			writer.writeRow(row);
+		}
+		writer.close();
+	}
+
+	/**
+	 * Write the race and ethnicity file. Most registrants have one row; one
+	 * in 25 has a second row with another race.
+	 * @param f The file to write
+	 * @throws IOException
+	 */
+	public void writeRaceEthnicity(File f) throws IOException
+	{
+		SplittableRandom r = new SplittableRandom(seed ^ 0x4F1BBCDCBFA53E0BL);
+		CSVWriter writer = new CSVWriter(new FileWriter(f));
+		writer.writeRow(RACE_ETHNICITY_TOC);
+
+		String[] row = new String[RACE_ETHNICITY_TOC.length];
+		for (int i = 0; i < registrants; ++i) {
+			if (r.nextInt(10) == 0) continue;
+			row[0] = registrantCode(i);
+			row[1] = pick(r,race);
+			row[2] = pick(r,ethnicity);
+			writer.writeRow(row);
+			if (r.nextInt(25) == 0) {
+				row[1] = pick(r,race);
+				writer.writeRow(row);
+			}
+		}
+		writer.close();
+	}
+
+	/**
+	 * Write the registrants and race and ethnicity files into the data
+	 * directory.
+	 * @param dir The data directory
+	 * @throws IOException
+	 */
+	public void writeDemographics(File dir) throws IOException
+	{
+		dir.mkdirs();
+		writeRegistrants(new File(dir,"consolidated_registrants[1].csv"));
+		writeRaceEthnicity(new File(dir,"consolidated_race_ethnicity[1].csv"));
+	}
+
+	/**
+	 * Write all of our files into the data directory.
+	 * @param dir The data directory
+	 * @throws IOException
+	 */
+	public void write(File dir) throws IOException
+	{
+		dir.mkdirs();
+		writeCheckins(new File(dir,"consolidated_health_checkin.csv"));
+		writeVaccinations(new File(dir,"consolidated_vaccinations[1].csv"));
+		writeDemographics(dir);
+	}
+
+	public static void main(String[] args)
+	{
+		try {
+			int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+			int registrants = (args.length > 1) ? Integer.parseInt(args[1]) : rows / 15;
+			long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1;
+
+			System.out.println("Writing " + rows + " rows for " + registrants + " registrants");
+			new SyntheticData(seed,rows,registrants).write(new File("data"));
+		}
+		catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -1,9 +1,21 @@
 import com.chaosinmotion.coviddata.csv.CSVParser;
+import com.chaosinmotion.coviddata.csv.CSVPipeline;
+import com.chaosinmotion.coviddata.query.QueryDefinition;
+import com.chaosinmotion.coviddata.query.QueryEngine;
+import com.chaosinmotion.coviddata.reports.CohortReport;
+import com.chaosinmotion.coviddata.reports.DemographicReport;
 import com.chaosinmotion.coviddata.reports.Report1;
 import com.chaosinmotion.coviddata.reports.Report2;
+import com.chaosinmotion.coviddata.reports.ReportEngine;
+import com.chaosinmotion.coviddata.utils.CompressedInput;
+import com.chaosinmotion.coviddata.utils.Metrics;
 
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,7 +29,7 @@ public class Main
 	 */
 	private static void dumpTOC(String filename) throws IOException
 	{
-		FileReader fr = new FileReader(filename);
+		Reader fr = new InputStreamReader(CompressedInput.open(CompressedInput.find(new File(filename))),StandardCharsets.UTF_8);
 		CSVParser parser = new CSVParser(fr);
 		String[] firstRow = parser.readRow();
 		fr.close();
@@ -52,11 +64,9 @@ public class Main
 
 	private static void scrapeHealthData() throws IOException
 	{
-		int rowCount = 0;
-
-		FileReader fr = new FileReader("data/consolidated_health_checkin.csv");
-		CSVParser parser = new CSVParser(fr);
-		String[] firstRow = parser.readRow();
+		InputStream fis = CompressedInput.open(CompressedInput.find(new File("data/consolidated_health_checkin.csv")));
+		CSVPipeline pipeline = new CSVPipeline(fis);
+		String[] firstRow = pipeline.readTOC();
 
 		// Build a list of found values in each of the columns from 6 to EOF
 		HashSet<String>[] found = new HashSet[firstRow.length-6];
@@ -64,22 +74,18 @@ public class Main
 			found[i-6] = new HashSet<>();
 		}
 
-		for (;;) {
-			String[] row = parser.readRow();
-			if (row == null) break;
+		/*
+		 *	The file is read and split into rows on other threads; we get the
+		 * 	rows in order here. Progress is logged by the "scrape" metrics
+		 * 	stage.
+		 */
 
-			++rowCount;
-			if ((rowCount % 1000000) == 0) {
-				if ((rowCount % 10000000) == 0) {
-					System.out.print("+");
-				} else {
-					System.out.print("-");
-				}
-				if ((rowCount % 100000000) == 0) {
-					System.out.println();
-				}
-				System.out.flush();
-			}
+		Metrics.Stage metrics = Metrics.stage("scrape").start();
+		int[] rowCount = new int[1];
+		pipeline.run(r -> {
+			String[] row = r.toArray();
+
+			if ((++rowCount[0] % 65536) == 0) metrics.add("rows",65536);
 
 			for (int i = 6; i < firstRow.length; ++i) {
 				if (i == 10) continue;
@@ -99,21 +105,23 @@ public class Main
 			}
 
 			// Special: Pull apart row 10, 14
-			String r = row[14];
-			String[] rparts = r.split(":");
+			String s = row[14];
+			String[] rparts = s.split(":");
 			if (found[14-6] != null) {
 				for (String rpart: rparts) found[14-6].add(rpart);
 			}
 
-			r = row[10];
-			rparts = r.split(":");
+			s = row[10];
+			rparts = s.split(":");
 			if (found[10-6] != null) {
 				for (String rpart: rparts) found[10-6].add(rpart);
 			}
-		}
+		});
+		fis.close();
+		metrics.add("rows",rowCount[0] % 65536);
+		metrics.stop();
 
-		System.out.println();
-		System.out.println("# rows " + rowCount);
+		System.out.println("# rows " + rowCount[0]);
 		System.out.println();
 
 		for (int i = 6; i < firstRow.length; ++i) {
@@ -132,10 +140,28 @@ public class Main
 			 *	Preliminaries: dump allowed values. This allows me to sort
 			 * 	out what's going on inside the data files.
 			 */
+			Metrics.start();
 //			dumpAllTOC();
 //			scrapeHealthData();
-			int totalCount = Report1.run();
-			Report2.run(totalCount);
+
+			Report1 report1 = new Report1();
+			ReportEngine engine = new ReportEngine();
+			engine.register(report1);
+			engine.register(new Report2(report1));
+			engine.register(new DemographicReport(report1));
+			engine.register(new CohortReport());
+			engine.run();
+
+			/*
+			 *	Any reports declared in reports.conf
+			 */
+			File queries = new File("reports.conf");
+			if (queries.exists()) {
+				System.out.println();
+				new QueryEngine(QueryDefinition.read(queries)).run(System.out);
+			}
+
+			Metrics.finish(new File("cache/metrics.json"));
 		}
 		catch (Throwable ex) {
 			ex.printStackTrace();
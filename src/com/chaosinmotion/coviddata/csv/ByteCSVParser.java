@@ -0,0 +1,240 @@
+package com.chaosinmotion.coviddata.csv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The ByteCSVParser class is a faster alternative to CSVParser, used for
+ * scanning the very large V-Safe health check-in file.
+ *
+ * Rather than reading one character at a time through a Reader and building
+ * an array of strings for each row, this reads raw bytes into a large buffer
+ * and returns a reusable CSVRow which records the offset and length of each
+ * field inside that buffer. No strings are created unless the caller asks for
+ * them.
+ *
+ * Because the delimiters we care about (comma, quote, CR and LF) are all
+ * ASCII, this works on UTF-8 data as well as plain ASCII.
+ *
+ * The parsing rules are the same as CSVParser.readRow(): quotes may start
+ * anywhere in a field, a doubled quote inside a quoted field is a literal
+ * quote, and \r\n or \n\r sequences are collapsed into a single end of line.
+ * Quoted fields are unescaped in place inside the buffer, which works because
+ * the unescaped text is never longer than the escaped text.
+ */
+public class ByteCSVParser
+{
+	private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/*
+	 *	Our data source. One of these will be set.
+	 */
+	private InputStream input;
+	private ByteBuffer source;
+
+	/*
+	 *	Our internal buffer. Data from pos to limit has not been read yet.
+	 * 	The base is the offset in the input of the first byte in our buffer,
+	 * 	which allows us to report our position in the input.
+	 */
+	private byte[] buffer;
+	private int pos;
+	private int limit;
+	private long base;
+	private boolean eof;
+
+	/*
+	 *	Row parsing state. These are kept as fields so we can shift them
+	 * 	when we need to move the buffer contents to read more data.
+	 */
+	private int rowStart;
+	private int fieldStart;
+	private int write;
+
+	private final CSVRow row;
+
+	public ByteCSVParser(InputStream input)
+	{
+		this(input,BUFFER_SIZE);
+	}
+
+	public ByteCSVParser(InputStream input, int bufferSize)
+	{
+		this.input = input;
+		buffer = new byte[bufferSize];
+		row = new CSVRow();
+		row.buffer = buffer;
+	}
+
+	/**
+	 * Parse the contents of a byte buffer, such as a memory-mapped region
+	 * of a file. The parser reads from the buffer's position to its limit.
+	 * @param source The source of the data
+	 */
+	public ByteCSVParser(ByteBuffer source)
+	{
+		this(source,BUFFER_SIZE);
+	}
+
+	public ByteCSVParser(ByteBuffer source, int bufferSize)
+	{
+		this.source = source;
+		buffer = new byte[bufferSize];
+		row = new CSVRow();
+		row.buffer = buffer;
+	}
+
+	/**
+	 * Parse the rows held in a byte array, in place. The array becomes our
+	 * buffer, so quoted fields are unescaped in the array itself. The range
+	 * must end at the end of a row.
+	 * @param data The array holding the rows
+	 * @param length The number of bytes of rows, starting at 0
+	 */
+	ByteCSVParser(byte[] data, int length)
+	{
+		buffer = data;
+		limit = length;
+		eof = true;
+		row = new CSVRow();
+		row.buffer = buffer;
+	}
+
+	/**
+	 * Returns the offset in the input of the next byte to be parsed. After
+	 * a call to readRow() this is the offset of the start of the next row.
+	 * @return The byte offset from the start of our input
+	 */
+	public long getPosition()
+	{
+		return base + pos;
+	}
+
+	/**
+	 * Shift the unread data down to the start of our buffer (keeping the
+	 * row we are building), growing the buffer if the row doesn't fit, then
+	 * read more data.
+	 * @return false if we are at the end of the input
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException
+	{
+		if (eof) return false;
+
+		int delta = rowStart;
+		if (delta > 0) {
+			System.arraycopy(buffer,delta,buffer,0,limit - delta);
+			limit -= delta;
+			pos -= delta;
+			fieldStart -= delta;
+			write -= delta;
+			rowStart = 0;
+			base += delta;
+			row.shift(delta);
+		}
+
+		if (limit >= buffer.length) {
+			// A single row bigger than our buffer. This should never happen.
+			byte[] resize = new byte[buffer.length * 2];
+			System.arraycopy(buffer,0,resize,0,limit);
+			buffer = resize;
+			row.buffer = buffer;
+		}
+
+		int n;
+		if (input != null) {
+			n = input.read(buffer,limit,buffer.length - limit);
+		} else {
+			n = Math.min(source.remaining(),buffer.length - limit);
+			if (n == 0) {
+				n = -1;
+			} else {
+				source.get(buffer,limit,n);
+			}
+		}
+
+		if (n <= 0) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	/**
+	 * Peek at the next byte without consuming it.
+	 * @return The next byte, or -1 if we are at the end of the input.
+	 * @throws IOException
+	 */
+	private int peek() throws IOException
+	{
+		if ((pos >= limit) && !fill()) return -1;
+		return buffer[pos];
+	}
+
+	/**
+	 * This reads a row and finds the start and end of each field, escaping
+	 * quotes and commas. The row returned is reused by the next call.
+	 * @return The row read at this location, or null if at EOF
+	 * @throws IOException
+	 */
+	public CSVRow readRow() throws IOException
+	{
+		boolean inQuote = false;
+
+		row.clear();
+		rowStart = pos;
+		fieldStart = pos;
+		write = pos;
+
+		if ((pos >= limit) && !fill()) return null;
+
+		for (;;) {
+			if ((pos >= limit) && !fill()) {
+				row.addField(fieldStart,write);
+				return row;
+			}
+
+			byte ch = buffer[pos++];
+
+			if (inQuote) {
+				/*
+				 *	As with CSVParser, everything but a quote passes through
+				 * 	unchanged, including commas and end of line characters.
+				 */
+				if (ch == '"') {
+					if (peek() == '"') {
+						++pos;
+						buffer[write++] = ch;
+					} else {
+						inQuote = false;
+					}
+				} else {
+					buffer[write++] = ch;
+				}
+			} else {
+				if (ch == ',') {
+					row.addField(fieldStart,write);
+					fieldStart = pos;
+					write = pos;
+				} else if ((ch == '\n') || (ch == '\r')) {
+					row.addField(fieldStart,write);
+
+					/*
+					 *	Collapse \r\n or \n\r sequences.
+					 */
+					int ch2 = peek();
+					if (((ch2 == '\n') || (ch2 == '\r')) && (ch != ch2)) {
+						++pos;
+					}
+					return row;
+				} else if (ch == '"') {
+					inQuote = true;
+				} else {
+					buffer[write++] = ch;
+				}
+			}
+		}
+	}
+}
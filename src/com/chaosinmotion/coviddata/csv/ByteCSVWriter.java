@@ -0,0 +1,385 @@
+package com.chaosinmotion.coviddata.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The ByteCSVWriter class is a faster alternative to CSVWriter, used for
+ * writing our larger caches, such as the one row per registrant of
+ * hinteraction.csv.
+ *
+ * Rather than escaping each field into a new string and writing it through
+ * a Writer, rows are built a field at a time in a large reusable byte buffer,
+ * which is written to a channel as it fills. Integers are formatted straight
+ * into the buffer, and strings are copied a character at a time; only a
+ * string containing a comma, a quote or a character which isn't ASCII takes
+ * the slow path through escaping and UTF-8 encoding.
+ *
+ * The output is the same as CSVWriter writing to a UTF-8 Writer: fields
+ * containing a comma or quote are quoted with quotes doubled, and each row
+ * ends with the platform line separator, as with BufferedWriter.newLine().
+ *
+ * Rows may also be built on several threads, each filling its own Part; the
+ * parts are then written in order. writeRows() does this for a range of rows
+ * on the fork/join pool, and records where each part starts so the file can
+ * be read back in parallel (see SegmentIndex).
+ */
+public class ByteCSVWriter
+{
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int ROWS_PER_PART = 16384;
+	private static final byte[] EOL = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Builds rows in memory.
+	 */
+	public static class Part
+	{
+		private byte[] buffer;
+		private int length;
+		private boolean rowStart = true;
+
+		public Part()
+		{
+			this(4096);
+		}
+
+		public Part(int capacity)
+		{
+			buffer = new byte[Math.max(16,capacity)];
+		}
+
+		/**
+		 * The number of bytes of rows built so far
+		 */
+		public int size()
+		{
+			return length;
+		}
+
+		/**
+		 * Discard the rows built so far
+		 */
+		public void clear()
+		{
+			length = 0;
+			rowStart = true;
+		}
+
+		private void reserve(int n)
+		{
+			if (length + n > buffer.length) {
+				buffer = Arrays.copyOf(buffer,Math.max(length + n,buffer.length * 2));
+			}
+		}
+
+		private void separator()
+		{
+			if (rowStart) {
+				rowStart = false;
+			} else {
+				reserve(1);
+				buffer[length++] = ',';
+			}
+		}
+
+		/**
+		 * Add a string field, quoting it if needed.
+		 * @param str The field
+		 */
+		public void field(String str)
+		{
+			separator();
+
+			int n = str.length();
+			reserve(n);
+			int start = length;
+			for (int i = 0; i < n; ++i) {
+				char ch = str.charAt(i);
+				if ((ch >= 0x80) || (ch == ',') || (ch == '"')) {
+					length = start;
+					byte[] data = str.getBytes(StandardCharsets.UTF_8);
+					append(data,0,data.length);
+					return;
+				}
+				buffer[length++] = (byte)ch;
+			}
+		}
+
+		/**
+		 * Add a field from UTF-8 bytes, such as a field of a CSVRow, quoting
+		 * it if needed.
+		 * @param data The buffer holding the field
+		 * @param off The offset of the field
+		 * @param len The length of the field
+		 */
+		public void field(byte[] data, int off, int len)
+		{
+			separator();
+			append(data,off,len);
+		}
+
+		private void append(byte[] data, int off, int len)
+		{
+			for (int i = 0; i < len; ++i) {
+				byte ch = data[off + i];
+				if ((ch == ',') || (ch == '"')) {
+					escape(Arrays.copyOfRange(data,off,off + len));
+					return;
+				}
+			}
+			reserve(len);
+			System.arraycopy(data,off,buffer,length,len);
+			length += len;
+		}
+
+		/**
+		 * Add an integer field
+		 * @param value The field
+		 */
+		public void field(int value)
+		{
+			separator();
+			reserve(11);
+
+			long v = value;
+			if (v < 0) {
+				buffer[length++] = '-';
+				v = -v;
+			}
+			int digits = 1;
+			for (long t = v; t >= 10; t /= 10) ++digits;
+
+			int end = length + digits;
+			for (int i = end - 1; i >= length; --i) {
+				buffer[i] = (byte)('0' + (v % 10));
+				v /= 10;
+			}
+			length = end;
+		}
+
+		/**
+		 * Write a field which must be quoted: surround it with quotes, and
+		 * double the quotes inside it.
+		 */
+		private void escape(byte[] data)
+		{
+			reserve(data.length * 2 + 2);
+			buffer[length++] = '"';
+			for (byte ch: data) {
+				if (ch == '"') buffer[length++] = ch;
+				buffer[length++] = ch;
+			}
+			buffer[length++] = '"';
+		}
+
+		/**
+		 * End the current row
+		 */
+		public void endRow()
+		{
+			reserve(EOL.length);
+			System.arraycopy(EOL,0,buffer,length,EOL.length);
+			length += EOL.length;
+			rowStart = true;
+		}
+
+		/**
+		 * Add a row of string fields
+		 * @param row The row
+		 */
+		public void writeRow(String[] row)
+		{
+			for (String str: row) field(str);
+			endRow();
+		}
+	}
+
+	/**
+	 * Writes the rows of a range, such as one row per registrant ID.
+	 */
+	public interface RowSource
+	{
+		/**
+		 * Build a row. This may be called on any thread, and for rows in
+		 * any order.
+		 * @param index The index of the row in the range
+		 * @param out The part to build the row in
+		 */
+		void write(int index, Part out);
+	}
+
+	private final WritableByteChannel channel;
+	private final Part rows = new Part(BUFFER_SIZE);
+	private long position;					// # bytes written to the channel
+
+	private long[] segments = new long[64];
+	private int segmentCount;
+
+	/**
+	 * Create a file to write
+	 * @param file The file
+	 * @throws IOException
+	 */
+	public ByteCSVWriter(File file) throws IOException
+	{
+		this(FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	public ByteCSVWriter(WritableByteChannel channel)
+	{
+		this.channel = channel;
+	}
+
+	private void write(byte[] data, int len) throws IOException
+	{
+		ByteBuffer b = ByteBuffer.wrap(data,0,len);
+		while (b.hasRemaining()) channel.write(b);
+		position += len;
+	}
+
+	/**
+	 * The number of bytes of rows written so far, including those not yet
+	 * written out to the channel
+	 */
+	public long getPosition()
+	{
+		return position + rows.length;
+	}
+
+	private void mark()
+	{
+		long p = getPosition();
+		if ((segmentCount > 0) && (segments[segmentCount - 1] == p)) return;
+		if (segmentCount == segments.length) segments = Arrays.copyOf(segments,segmentCount * 2);
+		segments[segmentCount++] = p;
+	}
+
+	/**
+	 * Return the offsets of the parts written by writeRows(), followed by
+	 * the offset after the last part. If the table of contents was the only
+	 * row written before writeRows(), and no rows were written after, these
+	 * cut the file into segments of whole rows for a SegmentIndex.
+	 * @return The offsets
+	 */
+	public long[] getSegments()
+	{
+		return Arrays.copyOf(segments,segmentCount);
+	}
+
+	/**
+	 * Write out our buffer if it is full
+	 */
+	private void check() throws IOException
+	{
+		if (rows.length >= BUFFER_SIZE) flush();
+	}
+
+	private void flush() throws IOException
+	{
+		write(rows.buffer,rows.length);
+		rows.length = 0;
+	}
+
+	public void field(String str)
+	{
+		rows.field(str);
+	}
+
+	public void field(byte[] data, int off, int len)
+	{
+		rows.field(data,off,len);
+	}
+
+	public void field(int value)
+	{
+		rows.field(value);
+	}
+
+	public void endRow() throws IOException
+	{
+		rows.endRow();
+		check();
+	}
+
+	public void writeRow(String[] row) throws IOException
+	{
+		rows.writeRow(row);
+		check();
+	}
+
+	/**
+	 * Write the rows built in a part, after the rows written so far.
+	 * @param part The part
+	 * @throws IOException
+	 */
+	public void write(Part part) throws IOException
+	{
+		if (!rows.rowStart || !part.rowStart) throw new RuntimeException("Programmer is an idiot; writing a part in the middle of a row");
+		if (rows.length + part.length > BUFFER_SIZE) {
+			flush();
+			write(part.buffer,part.length);
+		} else {
+			System.arraycopy(part.buffer,0,rows.buffer,rows.length,part.length);
+			rows.length += part.length;
+		}
+	}
+
+	/**
+	 * Write count rows, in order. The range is cut into parts which are built
+	 * in parallel on the common fork/join pool, then written in order; only
+	 * a few parts per thread are held in memory at once.
+	 * @param count The number of rows
+	 * @param source Builds each row
+	 * @throws IOException
+	 */
+	public void writeRows(int count, RowSource source) throws IOException
+	{
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		Part[] parts = new Part[2 * parallelism];
+		for (int i = 0; i < parts.length; ++i) parts[i] = new Part(ROWS_PER_PART * 32);
+
+		for (int base = 0; base < count; base += ROWS_PER_PART * parts.length) {
+			ArrayList<RecursiveAction> tasks = new ArrayList<>();
+			for (int i = 0; i < parts.length; ++i) {
+				int start = base + i * ROWS_PER_PART;
+				int end = Math.min(count,start + ROWS_PER_PART);
+				if (start >= end) break;
+
+				Part part = parts[i];
+				tasks.add(new RecursiveAction()
+				{
+					@Override
+					protected void compute()
+					{
+						part.clear();
+						for (int r = start; r < end; ++r) source.write(r,part);
+					}
+				});
+			}
+			ForkJoinTask.invokeAll(tasks);
+
+			for (int i = 0; i < tasks.size(); ++i) {
+				mark();
+				write(parts[i]);
+			}
+		}
+		mark();
+	}
+
+	public void close() throws IOException
+	{
+		flush();
+		channel.close();
+	}
+}
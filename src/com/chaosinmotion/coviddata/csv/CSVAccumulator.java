@@ -0,0 +1,47 @@
+package com.chaosinmotion.coviddata.csv;
+
+import java.io.IOException;
+
+/**
+ * An accumulator gathers results from the rows of a CSV file. When a file is
+ * scanned in parallel by CSVChunkScanner, each worker gets its own
+ * accumulator, and the accumulators are merged together when the workers
+ * are done.
+ *
+ * Merges happen in file order: the accumulator passed to merge() always
+ * holds rows which came after the rows of the accumulator it is merged into.
+ */
+public interface CSVAccumulator<T extends CSVAccumulator<T>>
+{
+	/**
+	 * Creates a new, empty accumulator for a worker. This is given the table
+	 * of contents (the first row of the file) so the accumulator can look up
+	 * the columns it is interested in.
+	 */
+	interface Factory<T>
+	{
+		T create(String[] toc);
+	}
+
+	/**
+	 * Process a row. The row is only valid for the duration of this call.
+	 * @param row The row read from the file
+	 * @throws IOException
+	 */
+	void accept(CSVRow row) throws IOException;
+
+	/**
+	 * Called when the chunk this accumulator was created for has been
+	 * completely read, before it is merged.
+	 * @throws IOException
+	 */
+	default void done() throws IOException
+	{
+	}
+
+	/**
+	 * Merge the contents of the other accumulator into this one.
+	 * @param other An accumulator containing rows after the rows in this one
+	 */
+	void merge(T other);
+}
@@ -0,0 +1,436 @@
+package com.chaosinmotion.coviddata.csv;
+
+import com.chaosinmotion.coviddata.utils.Metrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The CSVChunkScanner scans a large CSV file in parallel. The file is memory
+ * mapped, cut into chunks which break on real record boundaries, and each
+ * chunk is parsed with a ByteCSVParser on a fork/join pool. Each chunk gets
+ * its own accumulator, and the accumulators are merged (in file order) at
+ * the end.
+ *
+ * Finding a record boundary requires knowing if a given end of line is inside
+ * a quoted field. With the quoting rules used by CSVParser, we are inside a
+ * quote exactly when an odd number of quote characters precede us in the
+ * file, as an escaped quote is always a pair. So we first count the quotes in
+ * each chunk in parallel, which gives us the quote state at the start of each
+ * chunk, then we look forward from each nominal chunk start for the first
+ * end of line outside of a quote.
+ *
+ * The rows, bytes and time spent scanning each chunk are recorded in the
+ * "csv.chunks" metrics stage, along with the time spent finding chunk
+ * boundaries and merging accumulators. The scan time is split into the time
+ * spent parsing rows and the time spent in the accumulator (decoding fields
+ * and aggregating them), estimated by timing a sample of the rows.
+ */
+public class CSVChunkScanner
+{
+	/*
+	 *	The largest chunk we map at once. FileChannel.map is limited to
+	 * 	2GB, and smaller chunks balance better across threads.
+	 */
+	private static final long MAX_CHUNK = 256L * 1024 * 1024;
+	private static final int WINDOW = 1024 * 1024;
+
+	private static final Metrics.Stage METRICS = Metrics.stage("csv.chunks");
+	private static final int SAMPLE_RATE = 16;		// rows per accumulator timing
+
+	private final File file;
+	private final ForkJoinPool pool;
+
+	private String[] toc;
+	private long[] boundaries;
+
+	public CSVChunkScanner(File file)
+	{
+		this(file,ForkJoinPool.commonPool());
+	}
+
+	public CSVChunkScanner(File file, ForkJoinPool pool)
+	{
+		this.file = file;
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the table of contents (the first row) of the file. This is
+	 * only valid after scan() has been called.
+	 * @return The first row of the file
+	 */
+	public String[] getTOC()
+	{
+		return toc;
+	}
+
+	/**
+	 * Returns the number of chunks the file was split into by the last call
+	 * to scan().
+	 * @return The chunk count
+	 */
+	public int getChunkCount()
+	{
+		return (boundaries == null) ? 0 : boundaries.length - 1;
+	}
+
+	/**
+	 * Scan the file. The first row is treated as the table of contents and
+	 * passed to the factory; every other row is passed to an accumulator.
+	 * @param factory The factory used to create an accumulator per chunk
+	 * @return The merged accumulator
+	 * @throws IOException
+	 */
+	public <T extends CSVAccumulator<T>> T scan(CSVAccumulator.Factory<T> factory) throws IOException
+	{
+		return scan(factory,0,Long.MAX_VALUE);
+	}
+
+	/**
+	 * Scan the rows in a range of the file, such as the rows which have been
+	 * appended to the file since we last scanned it. The first row is still
+	 * read as the table of contents and passed to the factory. The start of
+	 * the range must be the start of a row; the end is clipped to the end
+	 * of the file, and must also be the start of a row.
+	 * @param factory The factory used to create an accumulator per chunk
+	 * @param start The offset of the first row to scan
+	 * @param end The offset after the last row to scan
+	 * @return The merged accumulator
+	 * @throws IOException
+	 */
+	public <T extends CSVAccumulator<T>> T scan(CSVAccumulator.Factory<T> factory, long start, long end) throws IOException
+	{
+		return scan(factory,start,end,null);
+	}
+
+	/**
+	 * Scan the file, cutting it into chunks at the offsets given rather than
+	 * finding the row boundaries ourselves, such as at the offsets recorded
+	 * by a SegmentIndex. The first offset must be the end of the table of
+	 * contents, and the last the end of the file.
+	 * @param factory The factory used to create an accumulator per chunk
+	 * @param segments The offsets of the chunk boundaries
+	 * @return The merged accumulator
+	 * @throws IOException
+	 */
+	public <T extends CSVAccumulator<T>> T scan(CSVAccumulator.Factory<T> factory, long[] segments) throws IOException
+	{
+		return scan(factory,0,Long.MAX_VALUE,segments);
+	}
+
+	private <T extends CSVAccumulator<T>> T scan(CSVAccumulator.Factory<T> factory, long start, long end, long[] segments) throws IOException
+	{
+		try (FileInputStream fis = new FileInputStream(file);
+			 FileChannel channel = fis.getChannel()) {
+			long size = channel.size();
+
+			/*
+			 *	Read our table of contents
+			 */
+
+			long dataStart;
+			try (FileInputStream tis = new FileInputStream(file)) {
+				ByteCSVParser parser = new ByteCSVParser(tis,64 * 1024);
+				CSVRow row = parser.readRow();
+				if (row == null) {
+					toc = new String[0];
+					dataStart = size;
+				} else {
+					toc = row.toArray();
+					dataStart = parser.getPosition();
+				}
+			}
+
+			if (segments != null) {
+				if ((segments.length < 1) || (segments[0] != dataStart) || (segments[segments.length - 1] != size)) {
+					throw new IOException("Segments do not match " + file);
+				}
+				boundaries = segments;
+			} else {
+				start = Math.max(start,dataStart);
+				end = Math.min(end,size);
+				if (start > end) start = end;
+				long time = System.nanoTime();
+				boundaries = findBoundaries(channel,start,end);
+				METRICS.time("split",time);
+			}
+
+			try {
+				return pool.invoke(new ParseTask<>(channel,factory,0,boundaries.length - 1));
+			}
+			catch (UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+		}
+	}
+
+	/*
+	 *	Chunking
+	 */
+
+	/**
+	 * Split the range [start,end) into chunks which start and end on record
+	 * boundaries.
+	 */
+	private long[] findBoundaries(FileChannel channel, long start, long end) throws IOException
+	{
+		long length = end - start;
+		int n = pool.getParallelism() * 4;
+		long min = (length + MAX_CHUNK - 1) / MAX_CHUNK;
+		if (n < min) n = (int)min;
+		if (length < n * (long)WINDOW) n = (int)Math.max(1,length / WINDOW);
+
+		long[] nominal = new long[n + 1];
+		for (int i = 0; i <= n; ++i) {
+			nominal[i] = start + length * i / n;
+		}
+
+		/*
+		 *	Count the quotes in each nominal chunk, then turn this into the
+		 * 	quote state at the start of each chunk.
+		 */
+
+		ArrayList<RecursiveTask<Integer>> counts = new ArrayList<>();
+		for (int i = 0; i < n; ++i) {
+			counts.add(new QuoteCountTask(channel,nominal[i],nominal[i + 1]));
+		}
+		for (RecursiveTask<Integer> t: counts) pool.execute(t);
+
+		boolean[] inQuote = new boolean[n];
+		int parity = 0;
+		for (int i = 0; i < n; ++i) {
+			inQuote[i] = (parity & 1) != 0;
+			parity += join(counts.get(i));
+		}
+
+		/*
+		 *	Now find the first row boundary after each nominal start.
+		 */
+
+		ArrayList<RecursiveTask<Long>> finds = new ArrayList<>();
+		for (int i = 1; i < n; ++i) {
+			finds.add(new BoundaryTask(channel,nominal[i],end,inQuote[i]));
+		}
+		for (RecursiveTask<Long> t: finds) pool.execute(t);
+
+		long[] tmp = new long[n + 1];
+		int len = 0;
+		tmp[len++] = start;
+		for (RecursiveTask<Long> t: finds) {
+			long b = join(t);
+			if (b > tmp[len - 1]) tmp[len++] = b;		// skip chunks swallowed by a long row
+		}
+		if (end > tmp[len - 1]) tmp[len++] = end;
+
+		long[] ret = new long[len];
+		System.arraycopy(tmp,0,ret,0,len);
+		return ret;
+	}
+
+	private static <V> V join(RecursiveTask<V> task) throws IOException
+	{
+		try {
+			return task.join();
+		}
+		catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long start, long end) throws IOException
+	{
+		long length = end - start;
+		if (length > Integer.MAX_VALUE) throw new IOException("Chunk too large");
+		return channel.map(FileChannel.MapMode.READ_ONLY,start,length);
+	}
+
+	@SuppressWarnings("serial")
+	private static class QuoteCountTask extends RecursiveTask<Integer>
+	{
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+
+		QuoteCountTask(FileChannel channel, long start, long end)
+		{
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Integer compute()
+		{
+			try {
+				MappedByteBuffer buffer = map(channel,start,end);
+				byte[] window = new byte[WINDOW];
+				int count = 0;
+				while (buffer.hasRemaining()) {
+					int n = Math.min(window.length,buffer.remaining());
+					buffer.get(window,0,n);
+					for (int i = 0; i < n; ++i) {
+						if (window[i] == '"') ++count;
+					}
+				}
+				return count;
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Find the first record boundary at or after start. We look for an end
+	 * of line character outside of a quote which follows a character that is
+	 * not an end of line; that is always the end of a row. We then skip the
+	 * second half of a \r\n or \n\r pair, as the parser does.
+	 */
+	@SuppressWarnings("serial")
+	private static class BoundaryTask extends RecursiveTask<Long>
+	{
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final boolean quote;
+
+		BoundaryTask(FileChannel channel, long start, long end, boolean quote)
+		{
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.quote = quote;
+		}
+
+		@Override
+		protected Long compute()
+		{
+			try {
+				boolean inQuote = quote;
+				boolean lastEOL = true;		// force us to see a character first
+				long pos = start;
+
+				while (pos < end) {
+					MappedByteBuffer buffer = map(channel,pos,Math.min(end,pos + WINDOW));
+					int n = buffer.remaining();
+
+					for (int i = 0; i < n; ++i) {
+						byte ch = buffer.get(i);
+						boolean eol = (ch == '\n') || (ch == '\r');
+
+						if (ch == '"') {
+							inQuote = !inQuote;
+						} else if (eol && !inQuote && !lastEOL) {
+							long b = pos + i + 1;
+							if (b < end) {
+								byte ch2 = (i + 1 < n) ? buffer.get(i + 1) : map(channel,b,b + 1).get(0);
+								if (((ch2 == '\n') || (ch2 == '\r')) && (ch != ch2)) ++b;
+							}
+							return b;
+						}
+						lastEOL = eol;
+					}
+					pos += n;
+				}
+				return end;
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/*
+	 *	Parsing
+	 */
+
+	@SuppressWarnings("serial")
+	private class ParseTask<T extends CSVAccumulator<T>> extends RecursiveTask<T>
+	{
+		private final FileChannel channel;
+		private final CSVAccumulator.Factory<T> factory;
+		private final int lo;
+		private final int hi;
+
+		ParseTask(FileChannel channel, CSVAccumulator.Factory<T> factory, int lo, int hi)
+		{
+			this.channel = channel;
+			this.factory = factory;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected T compute()
+		{
+			if (hi - lo > 1) {
+				int mid = (lo + hi) / 2;
+				ParseTask<T> left = new ParseTask<>(channel,factory,lo,mid);
+				ParseTask<T> right = new ParseTask<>(channel,factory,mid,hi);
+				right.fork();
+				T result = left.compute();
+				T other = right.join();
+				long start = System.nanoTime();
+				result.merge(other);
+				METRICS.time("merge",start);
+				return result;
+			}
+
+			T acc = factory.create(toc);
+			if (lo >= hi) return acc;
+
+			try {
+				/*
+				 *	Split the time between parsing rows and the accumulator.
+				 * 	Timing every row would cost as much as parsing a short
+				 * 	field, so we time the accumulator on one row in
+				 * 	SAMPLE_RATE and scale up; parsing is the rest.
+				 */
+
+				long start = System.nanoTime();
+				long rows = 0;
+				long sampled = 0;
+				long sampledTime = 0;
+				ByteCSVParser parser = new ByteCSVParser(map(channel,boundaries[lo],boundaries[hi]));
+				for (;;) {
+					CSVRow row = parser.readRow();
+					if (row == null) break;
+					if ((rows++ % SAMPLE_RATE) == 0) {
+						long t = System.nanoTime();
+						acc.accept(row);
+						sampledTime += System.nanoTime() - t;
+						++sampled;
+					} else {
+						acc.accept(row);
+					}
+				}
+				long t = System.nanoTime();
+				acc.done();
+				long end = System.nanoTime();
+
+				long total = end - start;
+				long accept = (sampled == 0) ? 0 : (long)((double)sampledTime * rows / sampled);
+				accept = Math.min(accept,t - start);
+
+				METRICS.add("rows",rows);
+				METRICS.add("bytes",boundaries[hi] - boundaries[lo]);
+				METRICS.add("chunks",1);
+				METRICS.timer("scan").add(total);
+				METRICS.timer("parse").add(t - start - accept);
+				METRICS.timer("accept").add(accept + (end - t));
+				return acc;
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package com.chaosinmotion.coviddata.csv;
+
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.RingBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The CSVPipeline reads a CSV stream in three stages, each on its own
+ * threads. This is for streams we must read from front to back and whose rows
+ * must be consumed in order, such as the vaccination file (whose rows feed a
+ * stable sort) or our own caches (whose rows assign registrant IDs). For the
+ * health check-in file, which we can map and cut into chunks, see
+ * CSVChunkScanner--unless it is compressed, in which case it is read here.
+ *
+ * A reader thread reads the stream into large blocks, cutting each block at
+ * the last end of row in it, and carrying the partial row over to the next
+ * block. Parser threads take blocks and find the fields of each row in place,
+ * the same way ByteCSVParser does. The consumer is then handed the rows of
+ * each block, in order, on the thread which called run(), while the reader
+ * and the parsers work on the blocks after it.
+ *
+ * The stages are connected by lock-free ring buffers. There is a fixed pool
+ * of blocks, so when the consumer falls behind the reader waits for a free
+ * block, and memory use is bounded no matter how large the stream is.
+ *
+ * The time spent reading (including decompressing), parsing and consuming
+ * blocks is recorded in the "csv.pipeline" metrics stage, with the rows and
+ * bytes read. With no parser threads, rows are parsed as they are consumed,
+ * so the parse time is counted in the consume time.
+ */
+public class CSVPipeline
+{
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	private static final Metrics.Stage METRICS = Metrics.stage("csv.pipeline");
+
+	/**
+	 * Receives the rows of the stream, in order.
+	 */
+	public interface Consumer
+	{
+		/**
+		 * Process a row. The row is only valid for the duration of this call.
+		 * @param row The row read from the stream
+		 * @throws IOException
+		 */
+		void accept(CSVRow row) throws IOException;
+	}
+
+	/**
+	 * A block of the stream, and once parsed, the fields of its rows.
+	 */
+	private static class Block
+	{
+		byte[] data;
+		int length;
+		long seq;
+
+		int rows;
+		int[] rowEnd = new int[4096];		// index after the last field of each row
+		int fields;
+		int[] start = new int[65536];
+		int[] end = new int[65536];
+
+		Block(int size)
+		{
+			data = new byte[size];
+		}
+
+		void parse() throws IOException
+		{
+			rows = 0;
+			fields = 0;
+
+			ByteCSVParser parser = new ByteCSVParser(data,length);
+			CSVRow row;
+			while ((row = parser.readRow()) != null) {
+				int count = row.getFieldCount();
+				if (fields + count > start.length) {
+					int size = Math.max(fields + count,start.length * 2);
+					start = Arrays.copyOf(start,size);
+					end = Arrays.copyOf(end,size);
+				}
+				for (int i = 0; i < count; ++i) {
+					start[fields] = row.getStart(i);
+					end[fields] = start[fields] + row.getLength(i);
+					++fields;
+				}
+
+				if (rows >= rowEnd.length) rowEnd = Arrays.copyOf(rowEnd,rows * 2);
+				rowEnd[rows++] = fields;
+			}
+		}
+	}
+
+	private static final Block END = new Block(0);
+
+	private final InputStream input;
+	private final int parsers;
+
+	/*
+	 *	Reader state. The carry holds the bytes read past the last end of
+	 * 	row, which start the next block.
+	 */
+	private byte[] carry = new byte[BLOCK_SIZE];
+	private int carryLength;
+	private boolean eof;
+
+	/*
+	 *	Pipeline state
+	 */
+	private final int mask;
+	private final RingBuffer<Block> free;
+	private final RingBuffer<Block> filled;
+	private final AtomicReferenceArray<Block> parsed;
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private volatile long blocks = -1;			// # of blocks, once known
+	private volatile boolean stopped;
+
+	/**
+	 * Create a pipeline with a parser thread per processor, leaving one for
+	 * the consumer. With only one processor, there is nothing to run the
+	 * stages in parallel with, so we read and parse on the consumer's thread.
+	 * @param input The stream to read
+	 */
+	public CSVPipeline(InputStream input)
+	{
+		this(input,Math.min(8,Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	/**
+	 * Create a pipeline
+	 * @param input The stream to read
+	 * @param parsers The number of parser threads, or 0 to read and parse
+	 *                on the thread which calls run()
+	 */
+	public CSVPipeline(InputStream input, int parsers)
+	{
+		this.input = input;
+		this.parsers = parsers;
+
+		free = new RingBuffer<>(2 * parsers + 2);
+		int size = free.capacity();
+		mask = size - 1;
+		filled = new RingBuffer<>(size + parsers);
+		parsed = new AtomicReferenceArray<>(size);
+	}
+
+	/**
+	 * Read the first row of the stream, such as the table of contents. This
+	 * must be called before run(), and then run() starts with the second row.
+	 * @return The first row, or null if the stream is empty
+	 * @throws IOException
+	 */
+	public String[] readTOC() throws IOException
+	{
+		int b;
+		for (;;) {
+			b = findBoundary(carry,carryLength,eof,true);
+			if ((b > 0) || eof) break;
+			if (carryLength == carry.length) carry = Arrays.copyOf(carry,carry.length * 2);
+			carryLength = fill(carry,carryLength);
+		}
+		if (b <= 0) b = carryLength;
+		if (b == 0) return null;
+
+		byte[] first = Arrays.copyOf(carry,b);
+		System.arraycopy(carry,b,carry,0,carryLength - b);
+		carryLength -= b;
+
+		return new ByteCSVParser(first,b).readRow().toArray();
+	}
+
+	/**
+	 * Read the stream into a single accumulator, the way CSVChunkScanner
+	 * scans a file. This is for streams which can't be split into chunks,
+	 * such as compressed files. The first row is the table of contents, and
+	 * is passed to the factory.
+	 * @param factory The factory used to create the accumulator
+	 * @return The accumulator, after done() has been called
+	 * @throws IOException
+	 */
+	public <T extends CSVAccumulator<T>> T scan(CSVAccumulator.Factory<T> factory) throws IOException
+	{
+		String[] toc = readTOC();
+		T acc = factory.create((toc == null) ? new String[0] : toc);
+		run(acc::accept);
+		acc.done();
+		return acc;
+	}
+
+	/**
+	 * Read the rest of the stream, handing each row to the consumer in order.
+	 * The consumer is called on this thread.
+	 * @param consumer The consumer
+	 * @throws IOException
+	 */
+	public void run(Consumer consumer) throws IOException
+	{
+		if (parsers <= 0) {
+			Block b = new Block(BLOCK_SIZE);
+			while (readBlock(b)) {
+				long start = System.nanoTime();
+				long rows = 0;
+				ByteCSVParser parser = new ByteCSVParser(b.data,b.length);
+				CSVRow row;
+				while ((row = parser.readRow()) != null) {
+					consumer.accept(row);
+					++rows;
+				}
+				METRICS.add("rows",rows);
+				METRICS.time("consume",start);
+			}
+			return;
+		}
+
+		for (int i = 0; i < parsed.length(); ++i) free.offer(new Block(BLOCK_SIZE));
+
+		Thread[] threads = new Thread[parsers + 1];
+		threads[0] = new Thread(this::read,"CSVPipeline reader");
+		for (int i = 1; i <= parsers; ++i) {
+			threads[i] = new Thread(this::parse,"CSVPipeline parser");
+		}
+		for (Thread t: threads) {
+			t.setDaemon(true);
+			t.start();
+		}
+
+		try {
+			CSVRow row = new CSVRow();
+			for (long next = 0; ; ++next) {
+				Block b = await(next);
+				if (b == null) break;
+
+				long start = System.nanoTime();
+				consume(b,row,consumer);
+				METRICS.add("rows",b.rows);
+				METRICS.time("consume",start);
+				free.put(b,this::failed);
+			}
+		}
+		catch (Throwable ex) {
+			fail(ex);
+		}
+		finally {
+			stopped = true;
+			for (Thread t: threads) {
+				try {
+					t.join();
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		Throwable ex = failure.get();
+		if (ex instanceof IOException e) throw e;
+		if (ex instanceof RuntimeException e) throw e;
+		if (ex instanceof Error e) throw e;
+		if (ex != null) throw new IOException(ex);
+	}
+
+	/**
+	 * Hand the rows of a parsed block to the consumer
+	 */
+	private static void consume(Block b, CSVRow row, Consumer consumer) throws IOException
+	{
+		row.buffer = b.data;
+		int field = 0;
+		for (int r = 0; r < b.rows; ++r) {
+			row.clear();
+			for (int e = b.rowEnd[r]; field < e; ++field) {
+				row.addField(b.start[field],b.end[field]);
+			}
+			consumer.accept(row);
+		}
+	}
+
+	/**
+	 * Wait for the next block in sequence to be parsed.
+	 * @return The block, or null if there are no more blocks
+	 * @throws IOException if another stage failed
+	 */
+	private Block await(long next) throws IOException
+	{
+		int slot = (int)next & mask;
+		for (int spins = 0; ; ++spins) {
+			Block b = parsed.get(slot);
+			if ((b != null) && (b.seq == next)) {
+				parsed.set(slot,null);
+				return b;
+			}
+			if (blocks == next) return null;
+			if (!RingBuffer.pause(spins,this::failed)) throw new IOException("CSV pipeline failed");
+		}
+	}
+
+	private boolean failed()
+	{
+		return stopped || (failure.get() != null);
+	}
+
+	private void fail(Throwable ex)
+	{
+		failure.compareAndSet(null,ex);
+	}
+
+	/*
+	 *	Reader
+	 */
+
+	/**
+	 * Read into the buffer until it is full or we reach the end of the stream
+	 * @return The new length of the data in the buffer
+	 */
+	private int fill(byte[] buffer, int length) throws IOException
+	{
+		while (length < buffer.length) {
+			int n = input.read(buffer,length,buffer.length - length);
+			if (n < 0) {
+				eof = true;
+				break;
+			}
+			length += n;
+		}
+		return length;
+	}
+
+	/**
+	 * Fill the block with the next rows of the stream: the partial row left
+	 * over from the last block, then as much of the stream as fits, cut at
+	 * the last end of row. If a row doesn't fit in a block, the block grows.
+	 * @param b The block to fill
+	 * @return False if there are no more rows
+	 */
+	private boolean readBlock(Block b) throws IOException
+	{
+		long start = System.nanoTime();
+		if (b.data.length < carry.length) b.data = new byte[carry.length];
+		System.arraycopy(carry,0,b.data,0,carryLength);
+		int length = carryLength;
+
+		int cut;
+		for (;;) {
+			length = fill(b.data,length);
+			if (eof) {
+				cut = length;
+				break;
+			}
+			cut = findBoundary(b.data,length,false,false);
+			if (cut > 0) break;
+			b.data = Arrays.copyOf(b.data,b.data.length * 2);
+		}
+
+		carryLength = length - cut;
+		if (carryLength > carry.length) carry = new byte[b.data.length];
+		System.arraycopy(b.data,cut,carry,0,carryLength);
+
+		b.length = cut;
+		METRICS.time("read",start);
+		if (cut == 0) return false;
+
+		METRICS.add("bytes",cut);
+		METRICS.add("blocks",1);
+		return true;
+	}
+
+	private void read()
+	{
+		try {
+			long seq = 0;
+			for (;;) {
+				Block b = free.take(this::failed);
+				if (b == null) return;
+
+				if (!readBlock(b)) {
+					free.offer(b);
+					break;
+				}
+				b.seq = seq++;
+				if (!filled.put(b,this::failed)) return;
+			}
+
+			blocks = seq;
+			for (int i = 0; i < parsers; ++i) {
+				if (!filled.put(END,this::failed)) return;
+			}
+		}
+		catch (Throwable ex) {
+			fail(ex);
+		}
+	}
+
+	/**
+	 * Find the end of a row in the data, following the same rules as
+	 * ByteCSVParser: a row ends at any end of line character outside of a
+	 * quote, and a \r\n or \n\r pair is one end of line. The data must start
+	 * at the start of a row.
+	 * @param data The data
+	 * @param length The length of the data
+	 * @param eof True if there is no more data after this
+	 * @param first True to find the first end of row, false for the last
+	 * @return The offset after the end of row, or -1 if none was found
+	 */
+	private static int findBoundary(byte[] data, int length, boolean eof, boolean first)
+	{
+		boolean inQuote = false;
+		int ret = -1;
+
+		for (int i = 0; i < length; ++i) {
+			byte ch = data[i];
+			if (ch == '"') {
+				inQuote = !inQuote;
+			} else if (((ch == '\n') || (ch == '\r')) && !inQuote) {
+				int b = i + 1;
+				if (b < length) {
+					byte ch2 = data[b];
+					if (((ch2 == '\n') || (ch2 == '\r')) && (ch != ch2)) ++b;
+				} else if (!eof) {
+					break;				// the other half of a pair may follow
+				}
+				if (first) return b;
+				ret = b;
+				i = b - 1;
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 *	Parsers
+	 */
+
+	private void parse()
+	{
+		try {
+			for (;;) {
+				Block b = filled.take(this::failed);
+				if ((b == null) || (b == END)) return;
+
+				long start = System.nanoTime();
+				b.parse();
+				METRICS.time("parse",start);
+				parsed.set((int)b.seq & mask,b);
+			}
+		}
+		catch (Throwable ex) {
+			fail(ex);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.chaosinmotion.coviddata.csv;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A CSVRow is the reusable row cursor returned by ByteCSVParser. Rather than
+ * building a string for each field, this records the offset and length of
+ * each field inside the parser's internal byte buffer. Fields are only turned
+ * into strings if someone asks for them.
+ *
+ * Note the contents of this object are only valid until the next call to
+ * ByteCSVParser.readRow(), as the same row object (and the same buffer) is
+ * reused for every row.
+ */
+public class CSVRow
+{
+	byte[] buffer;
+	private int count;
+	private int[] start;
+	private int[] end;
+
+	CSVRow()
+	{
+		count = 0;
+		start = new int[64];
+		end = new int[64];
+	}
+
+	/*
+	 *	Internal routines used by the parser to build the row.
+	 */
+
+	void clear()
+	{
+		count = 0;
+	}
+
+	void addField(int s, int e)
+	{
+		if (count >= start.length) {
+			int[] resize = new int[start.length * 2];
+			System.arraycopy(start,0,resize,0,count);
+			start = resize;
+
+			resize = new int[end.length * 2];
+			System.arraycopy(end,0,resize,0,count);
+			end = resize;
+		}
+		start[count] = s;
+		end[count] = e;
+		++count;
+	}
+
+	/**
+	 * Called by the parser when it shifts the contents of the buffer down
+	 * in order to read more data.
+	 * @param delta The number of bytes the buffer contents were shifted
+	 */
+	void shift(int delta)
+	{
+		for (int i = 0; i < count; ++i) {
+			start[i] -= delta;
+			end[i] -= delta;
+		}
+	}
+
+	/**
+	 * Return the number of fields in this row
+	 * @return The number of fields
+	 */
+	public int getFieldCount()
+	{
+		return count;
+	}
+
+	/**
+	 * The buffer containing our field data. Use with getStart() and
+	 * getLength() to read the raw bytes of a field.
+	 * @return The internal buffer.
+	 */
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
+
+	public int getStart(int index)
+	{
+		return start[index];
+	}
+
+	public int getLength(int index)
+	{
+		return end[index] - start[index];
+	}
+
+	/**
+	 * Returns true if the field is empty. Fields past the end of the row
+	 * are treated as empty, the same way the reports treat short rows.
+	 * @param index The field index
+	 * @return True if the field is missing or blank
+	 */
+	public boolean isEmpty(int index)
+	{
+		if (index >= count) return true;
+		return start[index] == end[index];
+	}
+
+	/**
+	 * Convert the field to a string. This allocates, so only do this for
+	 * fields you actually need as strings.
+	 * @param index The field index
+	 * @return The field as a string, or "" if the field is past the end
+	 */
+	public String getString(int index)
+	{
+		if (index >= count) return "";
+		return new String(buffer,start[index],end[index] - start[index],StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Compare the field against the string provided, ignoring case. This
+	 * only handles ASCII case folding, which is all we need for the
+	 * values stored in the V-Safe data.
+	 * @param index The field index
+	 * @param value The value to compare against
+	 * @return True if the field matches
+	 */
+	public boolean equalsIgnoreCase(int index, String value)
+	{
+		if (index >= count) return value.isEmpty();
+		return equalsIgnoreCase(buffer,start[index],end[index],value);
+	}
+
+	/**
+	 * Compare the ASCII bytes in the range [s,e) against the string,
+	 * ignoring case.
+	 */
+	public static boolean equalsIgnoreCase(byte[] buffer, int s, int e, String value)
+	{
+		int len = value.length();
+		if (e - s != len) return false;
+
+		for (int i = 0; i < len; ++i) {
+			int a = buffer[s + i] & 0xFF;
+			int b = value.charAt(i);
+			if (a == b) continue;
+			if ((a >= 'A') && (a <= 'Z')) a += 'a' - 'A';
+			if ((b >= 'A') && (b <= 'Z')) b += 'a' - 'A';
+			if (a != b) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse the field as a decimal integer without creating a string.
+	 * @param index The field index
+	 * @return The integer value
+	 * @throws NumberFormatException if the field is not a number
+	 */
+	public int getInt(int index)
+	{
+		if (index >= count) throw new NumberFormatException();
+
+		int s = start[index];
+		int e = end[index];
+		if (s == e) throw new NumberFormatException();
+
+		boolean neg = false;
+		if (buffer[s] == '-') {
+			neg = true;
+			++s;
+			if (s == e) throw new NumberFormatException();
+		}
+
+		int value = 0;
+		while (s < e) {
+			int d = buffer[s++] - '0';
+			if ((d < 0) || (d > 9)) throw new NumberFormatException();
+			value = value * 10 + d;
+		}
+		return neg ? -value : value;
+	}
+
+	/**
+	 * Convert the entire row into an array of strings, in the same format
+	 * returned by CSVParser.readRow().
+	 * @return The row as strings
+	 */
+	public String[] toArray()
+	{
+		String[] ret = new String[count];
+		for (int i = 0; i < count; ++i) {
+			ret[i] = getString(i);
+		}
+		return ret;
+	}
+}
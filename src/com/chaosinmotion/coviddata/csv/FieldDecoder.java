@@ -0,0 +1,179 @@
+package com.chaosinmotion.coviddata.csv;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes the value of an enumerated field, such as "Mild" or "Severe", into
+ * its index in a fixed vocabulary. This does the same thing as Utils.lookup
+ * and Utils.fields, but works directly on the bytes of a CSVRow, so no
+ * strings are created.
+ *
+ * The vocabulary is compiled into a perfect hash table: we search for a hash
+ * seed and table size where every word lands in its own slot. A lookup then
+ * costs one pass over the bytes to hash them, and one pass to compare against
+ * the single candidate. Matching ignores case, as with equalsIgnoreCase.
+ */
+public class FieldDecoder
+{
+	private final byte[][] words;		// lower case, indexed by slot
+	private final int[] index;			// index + 1, or 0 if empty
+	private final int seed;
+	private final int mask;
+
+	/**
+	 * Compile the vocabulary.
+	 * @param vocabulary The values of the field. A value decodes to its index
+	 *                   in this array.
+	 */
+	public FieldDecoder(String[] vocabulary)
+	{
+		byte[][] lower = new byte[vocabulary.length][];
+		for (int i = 0; i < vocabulary.length; ++i) {
+			String v = vocabulary[i];
+			lower[i] = new byte[v.length()];
+			for (int j = 0; j < v.length(); ++j) {
+				char c = v.charAt(j);
+				if (c >= 0x80) throw new RuntimeException("Programmer is an idiot; " + v + " is not ASCII");
+				lower[i][j] = (byte)toLower(c);
+			}
+		}
+
+		/*
+		 *	Find a collision-free table. For the handful of values in our
+		 * 	fields, this almost always succeeds at the first or second size.
+		 */
+
+		int size = Integer.highestOneBit(Math.max(vocabulary.length,1) * 2 - 1) << 1;
+		for (;;) {
+			for (int s = 1; s < 1024; ++s) {
+				int seed = 0x9E3779B1 * s;
+				int[] table = new int[size];
+				boolean perfect = true;
+				for (int i = 0; perfect && (i < lower.length); ++i) {
+					int slot = hash(seed,lower[i],0,lower[i].length) & (size - 1);
+					if (table[slot] == 0) {
+						table[slot] = i + 1;
+					} else if (!Arrays.equals(lower[table[slot] - 1],lower[i])) {
+						perfect = false;
+					}
+					// else a duplicate word keeps the first index
+				}
+				if (perfect) {
+					this.seed = seed;
+					this.mask = size - 1;
+					this.index = table;
+					this.words = new byte[size][];
+					for (int i = 0; i < size; ++i) {
+						if (table[i] != 0) words[i] = lower[table[i] - 1];
+					}
+					return;
+				}
+			}
+			size <<= 1;
+		}
+	}
+
+	private static int toLower(int c)
+	{
+		return ((c >= 'A') && (c <= 'Z')) ? c + ('a' - 'A') : c;
+	}
+
+	private static int hash(int seed, byte[] buffer, int s, int len)
+	{
+		int h = seed ^ len;
+		for (int i = 0; i < len; ++i) {
+			h = (h ^ toLower(buffer[s + i] & 0xFF)) * 0x01000193;
+		}
+		return h ^ (h >>> 15);
+	}
+
+	/**
+	 * Find the index of the value stored in the byte range provided.
+	 * @param buffer The buffer containing the value
+	 * @param s The start of the value
+	 * @param len The length of the value
+	 * @return The index of the value in the vocabulary, or -1 if not found
+	 */
+	public int find(byte[] buffer, int s, int len)
+	{
+		int slot = hash(seed,buffer,s,len) & mask;
+		byte[] word = words[slot];
+		if ((word == null) || (word.length != len)) return -1;
+		for (int i = 0; i < len; ++i) {
+			if (word[i] != toLower(buffer[s + i] & 0xFF)) return -1;
+		}
+		return index[slot] - 1;
+	}
+
+	/**
+	 * Decode a field of the row. A missing field is treated as empty. Throws
+	 * an exception if the value is not found and there is no default, as with
+	 * Utils.lookup.
+	 * @param row The row
+	 * @param field The index of the field in the row
+	 * @param defaultValue The value to return if not found, or -1 to throw
+	 * @return The index of the value in the vocabulary
+	 */
+	public int lookup(CSVRow row, int field, int defaultValue)
+	{
+		int ret;
+		if (field >= row.getFieldCount()) {
+			ret = find(row.getBuffer(),0,0);
+		} else {
+			ret = find(row.getBuffer(),row.getStart(field),row.getLength(field));
+		}
+		if (ret != -1) return ret;
+		if (defaultValue != -1) return defaultValue;
+
+		throw new RuntimeException("Programmer is an idiot; field " + row.getString(field) + " not found");
+	}
+
+	public int lookup(CSVRow row, int field)
+	{
+		return lookup(row,field,-1);
+	}
+
+	/**
+	 * Decode a colon-separated multi-value field of the row into a bitmap,
+	 * with bit i set if the i'th word of our vocabulary is present. This
+	 * follows Utils.fields: "None", "N/A" and empty fields have no bits set,
+	 * and an unknown value throws an exception.
+	 * @param row The row
+	 * @param field The index of the field in the row
+	 * @return The bitmap of values
+	 */
+	public int fields(CSVRow row, int field)
+	{
+		if (field >= row.getFieldCount()) return 0;
+
+		byte[] buffer = row.getBuffer();
+		int s = row.getStart(field);
+		int e = s + row.getLength(field);
+
+		if (s == e) return 0;
+		if (CSVRow.equalsIgnoreCase(buffer,s,e,"None")) return 0;
+		if (CSVRow.equalsIgnoreCase(buffer,s,e,"N/A")) return 0;
+
+		/*
+		 *	String.split drops trailing empty parts, so we do the same.
+		 */
+
+		while ((e > s) && (buffer[e - 1] == ':')) --e;
+
+		int retValue = 0;
+		while (s < e) {
+			int p = s;
+			while ((p < e) && (buffer[p] != ':')) ++p;
+
+			int i = find(buffer,s,p - s);
+			if (i == -1) {
+				throw new RuntimeException("Programmer is an idiot; flag " + new String(buffer,s,p - s,StandardCharsets.UTF_8) + " not found");
+			}
+			retValue |= 1 << i;
+			s = p + 1;
+		}
+		return retValue;
+	}
+
+}
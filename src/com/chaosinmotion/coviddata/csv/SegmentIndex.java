@@ -0,0 +1,84 @@
+package com.chaosinmotion.coviddata.csv;
+
+import java.io.*;
+
+/**
+ * A segment index records where a CSV file we wrote can be cut into segments
+ * which start and end on row boundaries, so it can be read back in parallel
+ * by CSVChunkScanner without first searching the file for row boundaries.
+ * The offsets come from ByteCSVWriter.getSegments().
+ *
+ * The index is kept next to the file, with .idx added to its name, and holds
+ * the length of the file it was written for; if the file no longer has that
+ * length, the index is ignored.
+ *
+ * The file format is:
+ *
+ *	int		MAGIC
+ *	int		VERSION
+ *	long	length of the CSV file
+ *	int		offset count
+ *	long[]	offsets: the end of the table of contents, the start of each
+ *			following segment, then the end of the file
+ */
+public class SegmentIndex
+{
+	private static final int MAGIC = 0x43534958;		// 'CSIX'
+	private static final int VERSION = 1;
+
+	private static File indexFile(File csv)
+	{
+		return new File(csv.getPath() + ".idx");
+	}
+
+	/**
+	 * Write the index for a CSV file, which must be closed.
+	 * @param csv The CSV file
+	 * @param segments The segment offsets
+	 * @throws IOException
+	 */
+	public static void write(File csv, long[] segments) throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(csv)),65536));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(csv.length());
+			dos.writeInt(segments.length);
+			for (long s: segments) dos.writeLong(s);
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Read the index for a CSV file
+	 * @param csv The CSV file
+	 * @return The segment offsets, or null if there is no index or it does
+	 * 		not match the file
+	 * @throws IOException
+	 */
+	public static long[] read(File csv) throws IOException
+	{
+		File f = indexFile(csv);
+		if (!f.exists()) return null;
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f),65536));
+		try {
+			if (dis.readInt() != MAGIC) return null;
+			if (dis.readInt() != VERSION) return null;
+			if (dis.readLong() != csv.length()) return null;
+
+			long[] segments = new long[dis.readInt()];
+			for (int i = 0; i < segments.length; ++i) segments[i] = dis.readLong();
+			return segments;
+		}
+		catch (EOFException ex) {
+			return null;
+		}
+		finally {
+			dis.close();
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package com.chaosinmotion.coviddata.query;
+
+import java.text.ParseException;
+
+/**
+ * The where clause of a declared report, compiled against a Projection. The
+ * syntax follows that of CohortIndex queries: terms combined with & (and),
+ * | (or), ! (not) and parentheses, where & binds tighter than |. A term is
+ * one of:
+ *
+ *	FIELD = value			the field is the value, ignoring case
+ *	FIELD != value			the field is not the value
+ *	FIELD has value			one of the ':' separated parts of the field
+ *							starts with the value, ignoring case, such as
+ *							HEALTHCARE_VISITS has Emergency
+ *	FIELD < number			the field is an integer, compared to the number;
+ *							also <=, > and >=
+ *	FIELD					the field is Yes
+ *
+ * A value may be quoted with double quotes if it contains any of &|()!, and
+ * an empty value matches a blank field.
+ *
+ * Text terms are evaluated once per distinct value of the field in each
+ * chunk, and the result cached by the code of the value (see Row), so most
+ * rows are tested with an array lookup.
+ */
+abstract class Filter
+{
+	/**
+	 * Test the current row
+	 * @param row The row
+	 * @return True if the row is kept
+	 */
+	abstract boolean test(Row row);
+
+	/**
+	 * Compile a where clause
+	 * @param where The clause
+	 * @param projection The projection of the file, which is given the
+	 *                   fields the clause uses
+	 * @return The filter
+	 * @throws ParseException if the clause is not valid, or names a field
+	 * 		the file does not have
+	 */
+	static Filter parse(String where, Projection projection) throws ParseException
+	{
+		int[] pos = new int[1];
+		Filter ret = parseOr(where,pos,projection);
+		skipSpace(where,pos);
+		if (pos[0] < where.length()) throw new ParseException("Unexpected '" + where.charAt(pos[0]) + "'",pos[0]);
+		return ret;
+	}
+
+	private static void skipSpace(String where, int[] pos)
+	{
+		while ((pos[0] < where.length()) && Character.isWhitespace(where.charAt(pos[0]))) ++pos[0];
+	}
+
+	private static Filter parseOr(String where, int[] pos, Projection projection) throws ParseException
+	{
+		Filter ret = parseAnd(where,pos,projection);
+		for (;;) {
+			skipSpace(where,pos);
+			if ((pos[0] >= where.length()) || (where.charAt(pos[0]) != '|')) return ret;
+			++pos[0];
+			ret = new Or(ret,parseAnd(where,pos,projection));
+		}
+	}
+
+	private static Filter parseAnd(String where, int[] pos, Projection projection) throws ParseException
+	{
+		Filter ret = parseTerm(where,pos,projection);
+		for (;;) {
+			skipSpace(where,pos);
+			if ((pos[0] >= where.length()) || (where.charAt(pos[0]) != '&')) return ret;
+			++pos[0];
+			ret = new And(ret,parseTerm(where,pos,projection));
+		}
+	}
+
+	private static Filter parseTerm(String where, int[] pos, Projection projection) throws ParseException
+	{
+		skipSpace(where,pos);
+		if (pos[0] >= where.length()) throw new ParseException("Unexpected end of query",pos[0]);
+
+		char c = where.charAt(pos[0]);
+		if ((c == '!') && !where.startsWith("!=",pos[0])) {
+			++pos[0];
+			return new Not(parseTerm(where,pos,projection));
+		}
+		if (c == '(') {
+			++pos[0];
+			Filter ret = parseOr(where,pos,projection);
+			skipSpace(where,pos);
+			if ((pos[0] >= where.length()) || (where.charAt(pos[0]) != ')')) throw new ParseException("Missing ')'",pos[0]);
+			++pos[0];
+			return ret;
+		}
+
+		/*
+		 *	Read up to the end of the term, skipping quoted values and the
+		 * 	'!' of "!=".
+		 */
+
+		int start = pos[0];
+		boolean quoted = false;
+		while (pos[0] < where.length()) {
+			c = where.charAt(pos[0]);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (!quoted) {
+				if ((c == '!') && where.startsWith("!=",pos[0])) {
+					++pos[0];
+				} else if ("&|()!".indexOf(c) >= 0) {
+					break;
+				}
+			}
+			++pos[0];
+		}
+		if (quoted) throw new ParseException("Missing '\"'",start);
+		return compile(where.substring(start,pos[0]).trim(),start,projection);
+	}
+
+	/**
+	 * Compile a single term
+	 */
+	private static Filter compile(String term, int offset, Projection projection) throws ParseException
+	{
+		if (term.isEmpty()) throw new ParseException("Missing term",offset);
+
+		/*
+		 *	Find the operator. Field names never contain these, so the first
+		 * 	one we find splits the field from the value.
+		 */
+
+		int op = -1;
+		String name = null;
+		for (int i = 0; (op < 0) && (i < term.length()); ++i) {
+			char c = term.charAt(i);
+			if (c == '"') break;
+			if ((c == '=') || (c == '<') || (c == '>')) {
+				op = i;
+				name = String.valueOf(c);
+			} else if ((c == '!') && term.startsWith("!=",i)) {
+				op = i;
+				name = "!=";
+			} else if (Character.isWhitespace(c) && term.regionMatches(true,i + 1,"has",0,3)
+					&& (term.length() > i + 4) && Character.isWhitespace(term.charAt(i + 4))) {
+				op = i + 1;
+				name = "has";
+			}
+		}
+
+		if (op < 0) {
+			int slot = projection.text(term);
+			return new TextTerm(slot,projection.term()) {
+				@Override
+				boolean match(String value)
+				{
+					return value.equalsIgnoreCase("Yes");
+				}
+			};
+		}
+
+		if ((name.equals("<") || name.equals(">")) && (term.length() > op + 1) && (term.charAt(op + 1) == '=')) {
+			name = name + "=";
+		}
+		String field = term.substring(0,op).trim();
+		String value = term.substring(op + name.length()).trim();
+		if ((value.length() >= 2) && value.startsWith("\"") && value.endsWith("\"")) {
+			value = value.substring(1,value.length() - 1);
+		}
+		if (field.isEmpty()) throw new ParseException("Missing field before " + name,offset);
+
+		final String v = value;
+		switch (name) {
+			case "=":
+				return new TextTerm(projection.text(field),projection.term()) {
+					@Override
+					boolean match(String value)
+					{
+						return value.equalsIgnoreCase(v);
+					}
+				};
+			case "!=":
+				return new TextTerm(projection.text(field),projection.term()) {
+					@Override
+					boolean match(String value)
+					{
+						return !value.equalsIgnoreCase(v);
+					}
+				};
+			case "has":
+				return new TextTerm(projection.text(field),projection.term()) {
+					@Override
+					boolean match(String value)
+					{
+						for (String part: value.split(":")) {
+							part = part.trim();
+							if (part.regionMatches(true,0,v,0,v.length())) return true;
+						}
+						return false;
+					}
+				};
+			default:
+				long n;
+				try {
+					n = Long.parseLong(v);
+				}
+				catch (NumberFormatException ex) {
+					throw new ParseException("Expected a number after " + field + " " + name,offset);
+				}
+				return new NumberTerm(projection.number(field),name,n);
+		}
+	}
+
+	/*
+	 *	Terms
+	 */
+
+	/**
+	 * A term which tests the value of a text field. The result for each value
+	 * is cached by its code.
+	 */
+	private static abstract class TextTerm extends Filter
+	{
+		private final int slot;
+		private final int term;
+
+		TextTerm(int slot, int term)
+		{
+			this.slot = slot;
+			this.term = term;
+		}
+
+		abstract boolean match(String value);
+
+		@Override
+		boolean test(Row row)
+		{
+			int code = row.text(slot);
+			int known = row.getTerm(term,code);
+			if (known == 0) {
+				boolean result = match(row.dicts[slot].getCode(code));
+				row.setTerm(term,code,result);
+				return result;
+			}
+			return known == 2;
+		}
+	}
+
+	/**
+	 * A term which compares the value of an integer field. Rows where the
+	 * field is blank or not an integer never match.
+	 */
+	private static class NumberTerm extends Filter
+	{
+		private final int slot;
+		private final int op;			// -2 <, -1 <=, 1 >=, 2 >
+		private final long value;
+
+		NumberTerm(int slot, String op, long value)
+		{
+			this.slot = slot;
+			this.value = value;
+			switch (op) {
+				case "<":	this.op = -2; break;
+				case "<=":	this.op = -1; break;
+				case ">=":	this.op = 1; break;
+				case ">":	this.op = 2; break;
+				default:	throw new RuntimeException("Programmer is an idiot; unknown operator " + op);
+			}
+		}
+
+		@Override
+		boolean test(Row row)
+		{
+			long n = row.number(slot);
+			if (n == Row.MISSING) return false;
+			switch (op) {
+				case -2:	return n < value;
+				case -1:	return n <= value;
+				case 1:		return n >= value;
+				default:	return n > value;
+			}
+		}
+	}
+
+	private static class And extends Filter
+	{
+		private final Filter a;
+		private final Filter b;
+
+		And(Filter a, Filter b)
+		{
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		boolean test(Row row)
+		{
+			return a.test(row) && b.test(row);
+		}
+	}
+
+	private static class Or extends Filter
+	{
+		private final Filter a;
+		private final Filter b;
+
+		Or(Filter a, Filter b)
+		{
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		boolean test(Row row)
+		{
+			return a.test(row) || b.test(row);
+		}
+	}
+
+	private static class Not extends Filter
+	{
+		private final Filter a;
+
+		Not(Filter a)
+		{
+			this.a = a;
+		}
+
+		@Override
+		boolean test(Row row)
+		{
+			return !a.test(row);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.chaosinmotion.coviddata.query;
+
+import com.chaosinmotion.coviddata.query.QueryDefinition.Kind;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+import com.chaosinmotion.coviddata.utils.RoaringBitmap;
+
+import java.util.Arrays;
+
+/**
+ * The groups of one declared report for one chunk, and the aggregates of
+ * each group. Everything is held in primitive arrays indexed by a dense group
+ * number: a group is found from the codes of its fields, which for a single
+ * field is an array lookup by code, and for several a lookup of the codes as
+ * bytes in a dictionary. With no grouping there is one group, 0.
+ *
+ * Distinct counts keep the codes of the values seen in each group in a
+ * bitmap, which are remapped when the chunks are merged.
+ */
+class GroupTable
+{
+	private final int[] group;				// text slots grouped by
+	private final Kind[] kinds;
+	private final int[] slots;				// slot or column of each aggregate
+
+	private int[] single;					// group + 1 by code, one field
+	private final RegistrantDictionary keys;	// group by codes, several fields
+	private final byte[] key;
+
+	private int size;
+	private int[] codes;					// codes[g * group.length + i]
+	private long[] rows;
+	private long[][] values;				// count, sum, min or max
+	private long[][] seen;					// values not missing
+	private RoaringBitmap[][] distinct;
+
+	GroupTable(int[] group, Kind[] kinds, int[] slots)
+	{
+		this.group = group;
+		this.kinds = kinds;
+		this.slots = slots;
+
+		single = (group.length == 1) ? new int[64] : null;
+		keys = (group.length > 1) ? new RegistrantDictionary(64) : null;
+		key = new byte[group.length * 4];
+
+		int capacity = (group.length == 0) ? 1 : 16;
+		codes = new int[capacity * group.length];
+		rows = new long[capacity];
+		values = new long[kinds.length][capacity];
+		seen = new long[kinds.length][capacity];
+		distinct = new RoaringBitmap[kinds.length][];
+		for (int a = 0; a < kinds.length; ++a) {
+			if (kinds[a] == Kind.COUNT_DISTINCT) distinct[a] = new RoaringBitmap[capacity];
+		}
+
+		if (group.length == 0) newGroup();		// Report a count of 0
+	}
+
+	/**
+	 * Add a group at the end of our arrays
+	 */
+	private int newGroup()
+	{
+		if (size == rows.length) {
+			int capacity = size * 2;
+			codes = Arrays.copyOf(codes,capacity * group.length);
+			rows = Arrays.copyOf(rows,capacity);
+			for (int a = 0; a < kinds.length; ++a) {
+				values[a] = Arrays.copyOf(values[a],capacity);
+				seen[a] = Arrays.copyOf(seen[a],capacity);
+				if (distinct[a] != null) distinct[a] = Arrays.copyOf(distinct[a],capacity);
+			}
+		}
+
+		int g = size++;
+		for (int a = 0; a < kinds.length; ++a) {
+			if (kinds[a] == Kind.MIN) values[a][g] = Long.MAX_VALUE;
+			else if (kinds[a] == Kind.MAX) values[a][g] = Long.MIN_VALUE;
+			else if (kinds[a] == Kind.COUNT_DISTINCT) distinct[a][g] = new RoaringBitmap();
+		}
+		return g;
+	}
+
+	/**
+	 * Find the group with the given codes, adding it if it is new
+	 * @param c The codes, one per field grouped by
+	 * @return The group
+	 */
+	private int find(int[] c)
+	{
+		int n = group.length;
+		if (n == 0) return 0;
+
+		if (n == 1) {
+			int code = c[0];
+			if (code >= single.length) single = Arrays.copyOf(single,Math.max(code + 1,single.length * 2));
+			int g = single[code] - 1;
+			if (g < 0) {
+				g = newGroup();
+				codes[g] = code;
+				single[code] = g + 1;
+			}
+			return g;
+		}
+
+		for (int i = 0; i < n; ++i) {
+			int v = c[i];
+			key[i * 4] = (byte)(v >> 24);
+			key[i * 4 + 1] = (byte)(v >> 16);
+			key[i * 4 + 2] = (byte)(v >> 8);
+			key[i * 4 + 3] = (byte)v;
+		}
+		int g = keys.add(key,0,key.length);
+		if (g == size) {
+			newGroup();
+			System.arraycopy(c,0,codes,g * n,n);
+		}
+		return g;
+	}
+
+	/**
+	 * Add a row which passed the report's filter
+	 * @param row The row
+	 * @param scratch Space for the codes of the fields grouped by
+	 */
+	void add(Row row, int[] scratch)
+	{
+		for (int i = 0; i < group.length; ++i) scratch[i] = row.text(group[i]);
+		int g = find(scratch);
+
+		++rows[g];
+		for (int a = 0; a < kinds.length; ++a) {
+			switch (kinds[a]) {
+				case COUNT:
+					break;
+				case COUNT_FIELD:
+					if (!row.isEmpty(slots[a])) ++values[a][g];
+					break;
+				case COUNT_DISTINCT:
+					distinct[a][g].add(row.text(slots[a]));
+					break;
+				default:
+					long n = row.number(slots[a]);
+					if (n != Row.MISSING) add(a,g,n,1);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Fold values into an aggregate of a group
+	 */
+	private void add(int a, int g, long n, long count)
+	{
+		seen[a][g] += count;
+		switch (kinds[a]) {
+			case MIN:
+				if (n < values[a][g]) values[a][g] = n;
+				break;
+			case MAX:
+				if (n > values[a][g]) values[a][g] = n;
+				break;
+			default:
+				values[a][g] += n;
+				break;
+		}
+	}
+
+	/**
+	 * Merge the groups of a later chunk, after the chunks' dictionaries have
+	 * been merged
+	 * @param other The table of the later chunk
+	 * @param remap For each text slot, the map from the other chunk's codes
+	 *              to ours
+	 */
+	void merge(GroupTable other, int[][] remap)
+	{
+		int n = group.length;
+		int[] c = new int[n];
+		for (int og = 0; og < other.size; ++og) {
+			for (int i = 0; i < n; ++i) c[i] = remap[group[i]][other.codes[og * n + i]];
+			int g = find(c);
+
+			rows[g] += other.rows[og];
+			for (int a = 0; a < kinds.length; ++a) {
+				switch (kinds[a]) {
+					case COUNT:
+						break;
+					case COUNT_FIELD:
+						values[a][g] += other.values[a][og];
+						break;
+					case COUNT_DISTINCT:
+						int[] map = remap[slots[a]];
+						RoaringBitmap bits = distinct[a][g];
+						other.distinct[a][og].forEach(v -> bits.add(map[v]));
+						break;
+					default:
+						if (other.seen[a][og] > 0) add(a,g,other.values[a][og],other.seen[a][og]);
+						break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The number of groups
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * The code of a field of a group
+	 * @param g The group
+	 * @param i The index of the field in the fields grouped by
+	 * @return The code, from the dictionary of the field's text slot
+	 */
+	int getCode(int g, int i)
+	{
+		return codes[g * group.length + i];
+	}
+
+	/**
+	 * The value of an aggregate of a group, formatted for printing
+	 * @param g The group
+	 * @param a The aggregate
+	 * @return The value, or an empty string if there is none, such as the
+	 * 		smallest value of a group where the field is always blank
+	 */
+	String getValue(int g, int a)
+	{
+		switch (kinds[a]) {
+			case COUNT:
+				return Long.toString(rows[g]);
+			case COUNT_FIELD:
+				return Long.toString(values[a][g]);
+			case COUNT_DISTINCT:
+				return Long.toString(distinct[a][g].getCardinality());
+			case SUM:
+				return Long.toString(values[a][g]);
+			case AVG:
+				return (seen[a][g] == 0) ? "" : String.format("%.3f",(double)values[a][g] / seen[a][g]);
+			default:
+				return (seen[a][g] == 0) ? "" : Long.toString(values[a][g]);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.chaosinmotion.coviddata.query;
+
+import com.chaosinmotion.coviddata.utils.IntList;
+import com.chaosinmotion.coviddata.utils.Utils;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+
+/**
+ * The fields of a file which the reports scanning it use, and how each is
+ * decoded. As the reports are planned, each asks for the fields it needs,
+ * and is given a slot for each: a text slot, holding the value of the field
+ * as a code from a dictionary of its values, or a number slot, holding the
+ * value as a long. The fields no report asks for are never decoded.
+ *
+ * Every report scanning a file shares one projection, so a field used by
+ * several reports is decoded once per row.
+ */
+class Projection
+{
+	private final String[] toc;
+	private final IntList text = new IntList();			// column of each text slot
+	private final IntList number = new IntList();		// column of each number slot
+	private final boolean[] used;
+	private int terms;
+
+	Projection(String[] toc)
+	{
+		this.toc = toc;
+		used = new boolean[toc.length];
+	}
+
+	private int column(String field) throws ParseException
+	{
+		int c = Utils.lookup(toc,field.trim(),toc.length);
+		if (c == toc.length) throw new ParseException("Unknown field " + field.trim(),0);
+		used[c] = true;
+		return c;
+	}
+
+	private static int slot(IntList slots, int column)
+	{
+		for (int i = 0; i < slots.size(); ++i) {
+			if (slots.get(i) == column) return i;
+		}
+		slots.add(column);
+		return slots.size() - 1;
+	}
+
+	/**
+	 * Get the text slot of a field, decoded as a code from a dictionary of
+	 * the values of the field.
+	 * @param field The field name
+	 * @return The slot
+	 * @throws ParseException if there is no such field
+	 */
+	int text(String field) throws ParseException
+	{
+		return slot(text,column(field));
+	}
+
+	/**
+	 * Get the number slot of a field, decoded as an integer.
+	 * @param field The field name
+	 * @return The slot
+	 * @throws ParseException if there is no such field
+	 */
+	int number(String field) throws ParseException
+	{
+		return slot(number,column(field));
+	}
+
+	/**
+	 * Get the column of a field which is only tested for being blank, and
+	 * so needs no decoding.
+	 * @param field The field name
+	 * @return The column
+	 * @throws ParseException if there is no such field
+	 */
+	int presence(String field) throws ParseException
+	{
+		return column(field);
+	}
+
+	/**
+	 * Allocate a filter term, which caches its result for each code of a
+	 * text slot in each Row.
+	 * @return The term ID
+	 */
+	int term()
+	{
+		return terms++;
+	}
+
+	/**
+	 * The number of fields in the file
+	 */
+	int getFieldCount()
+	{
+		return toc.length;
+	}
+
+	/**
+	 * The names of the fields used, in file order
+	 */
+	String[] getUsedFields()
+	{
+		ArrayList<String> list = new ArrayList<>();
+		for (int i = 0; i < toc.length; ++i) {
+			if (used[i]) list.add(toc[i]);
+		}
+		return list.toArray(new String[0]);
+	}
+
+	/**
+	 * Create a row to decode into, for a chunk of the file. Each chunk has
+	 * its own dictionaries.
+	 */
+	Row newRow()
+	{
+		return new Row(text.toArray(),number.toArray(),terms);
+	}
+}
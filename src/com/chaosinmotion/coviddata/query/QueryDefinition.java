@@ -0,0 +1,246 @@
+package com.chaosinmotion.coviddata.query;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A report declared in a query file, rather than written as a class: which
+ * file to scan, which rows to keep, how to group them and what to count.
+ *
+ * A query file holds any number of reports, each a section headed by the
+ * name of the report in brackets:
+ *
+ *	# Registrants who reported an ER visit, by survey
+ *	[er_by_survey]
+ *	file = data/consolidated_health_checkin.csv
+ *	where = HEALTHCARE_VISITS has Emergency
+ *	group = SURVEY_STATIC_ID
+ *	select = count distinct REGISTRANT_CODE, count
+ *
+ * file defaults to the health check-in file, where (see Filter) to every
+ * row, group to no grouping (one line of results) and select to count. The
+ * select list may hold:
+ *
+ *	count						the number of rows
+ *	count FIELD					the number of rows where FIELD isn't blank
+ *	count distinct FIELD		the number of distinct values of FIELD
+ *	sum FIELD					the sum, smallest, largest and average of an
+ *	min FIELD					integer FIELD, skipping rows where it is
+ *	max FIELD					blank or not an integer
+ *	avg FIELD
+ *
+ * Each report may also give an output file, to which its results are
+ * written as CSV as well as being printed.
+ *
+ * Field names are matched ignoring case, as with Utils.lookup.
+ */
+public class QueryDefinition
+{
+	public static final File CHECKIN = new File("data/consolidated_health_checkin.csv");
+
+	/**
+	 * The kinds of aggregate
+	 */
+	public enum Kind
+	{
+		COUNT,
+		COUNT_FIELD,
+		COUNT_DISTINCT,
+		SUM,
+		MIN,
+		MAX,
+		AVG
+	}
+
+	/**
+	 * One entry of the select list
+	 */
+	public static class Aggregate
+	{
+		public final Kind kind;
+		public final String field;			// null for COUNT
+
+		public Aggregate(Kind kind, String field)
+		{
+			this.kind = kind;
+			this.field = field;
+		}
+
+		/**
+		 * Return the name of the aggregate, as it would be written in the
+		 * select list. This is used as the heading of its column.
+		 */
+		@Override
+		public String toString()
+		{
+			switch (kind) {
+				case COUNT:
+					return "count";
+				case COUNT_FIELD:
+					return "count " + field;
+				case COUNT_DISTINCT:
+					return "count distinct " + field;
+				default:
+					return kind.name().toLowerCase() + " " + field;
+			}
+		}
+	}
+
+	private final String name;
+	private File file = CHECKIN;
+	private String where;
+	private String[] group = new String[0];
+	private Aggregate[] select = { new Aggregate(Kind.COUNT,null) };
+	private File output;
+
+	public QueryDefinition(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * The file to scan, before looking for a compressed copy
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * The filter expression, or null for every row
+	 */
+	public String getWhere()
+	{
+		return where;
+	}
+
+	/**
+	 * The fields to group by, which may be none
+	 */
+	public String[] getGroup()
+	{
+		return group;
+	}
+
+	public Aggregate[] getSelect()
+	{
+		return select;
+	}
+
+	/**
+	 * The CSV file to write the results to, or null
+	 */
+	public File getOutput()
+	{
+		return output;
+	}
+
+	/**
+	 * Parse a select list
+	 * @param str The list, such as "count distinct REGISTRANT_CODE, count"
+	 * @return The aggregates
+	 * @throws ParseException if an entry isn't understood
+	 */
+	public static Aggregate[] parseSelect(String str) throws ParseException
+	{
+		ArrayList<Aggregate> list = new ArrayList<>();
+		for (String item: str.split(",")) {
+			String[] words = item.trim().split("\\s+");
+			Aggregate a = null;
+			if (words[0].equalsIgnoreCase("count")) {
+				if (words.length == 1) {
+					a = new Aggregate(Kind.COUNT,null);
+				} else if (words.length == 2) {
+					a = new Aggregate(Kind.COUNT_FIELD,words[1]);
+				} else if ((words.length == 3) && words[1].equalsIgnoreCase("distinct")) {
+					a = new Aggregate(Kind.COUNT_DISTINCT,words[2]);
+				}
+			} else if (words.length == 2) {
+				for (Kind k: new Kind[] { Kind.SUM, Kind.MIN, Kind.MAX, Kind.AVG }) {
+					if (words[0].equalsIgnoreCase(k.name())) a = new Aggregate(k,words[1]);
+				}
+			}
+			if (a == null) throw new ParseException("Unknown aggregate '" + item.trim() + "'",0);
+			list.add(a);
+		}
+		return list.toArray(new Aggregate[0]);
+	}
+
+	/**
+	 * Read the reports declared in a query file
+	 * @param f The file
+	 * @return The reports, in the order declared
+	 * @throws IOException
+	 * @throws ParseException if the file is not valid; the error offset is
+	 * 		the line number
+	 */
+	public static List<QueryDefinition> read(File f) throws IOException, ParseException
+	{
+		ArrayList<QueryDefinition> list = new ArrayList<>();
+		QueryDefinition def = null;
+
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f),StandardCharsets.UTF_8))) {
+			String line;
+			int lineNo = 0;
+			while ((line = r.readLine()) != null) {
+				++lineNo;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+
+				if (line.startsWith("[")) {
+					if (!line.endsWith("]") || (line.length() == 2)) throw new ParseException(f + ":" + lineNo + ": bad report name " + line,lineNo);
+					def = new QueryDefinition(line.substring(1,line.length() - 1).trim());
+					for (QueryDefinition d: list) {
+						if (d.name.equals(def.name)) throw new ParseException(f + ":" + lineNo + ": duplicate report " + def.name,lineNo);
+					}
+					list.add(def);
+					continue;
+				}
+
+				int eq = line.indexOf('=');
+				if (eq <= 0) throw new ParseException(f + ":" + lineNo + ": expected key = value",lineNo);
+				if (def == null) throw new ParseException(f + ":" + lineNo + ": expected [report name]",lineNo);
+
+				String key = line.substring(0,eq).trim().toLowerCase();
+				String value = line.substring(eq + 1).trim();
+				switch (key) {
+					case "file":
+						def.file = new File(value);
+						break;
+					case "where":
+						def.where = value.isEmpty() ? null : value;
+						break;
+					case "group":
+						def.group = value.isEmpty() ? new String[0] : value.split("\\s*,\\s*");
+						break;
+					case "select":
+						try {
+							def.select = parseSelect(value);
+						}
+						catch (ParseException ex) {
+							throw new ParseException(f + ":" + lineNo + ": " + ex.getMessage(),lineNo);
+						}
+						break;
+					case "output":
+						def.output = value.isEmpty() ? null : new File(value);
+						break;
+					default:
+						throw new ParseException(f + ":" + lineNo + ": unknown key " + key,lineNo);
+				}
+			}
+		}
+		return list;
+	}
+}
@@ -0,0 +1,300 @@
+package com.chaosinmotion.coviddata.query;
+
+import com.chaosinmotion.coviddata.csv.CSVAccumulator;
+import com.chaosinmotion.coviddata.csv.CSVChunkScanner;
+import com.chaosinmotion.coviddata.csv.CSVPipeline;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.csv.CSVWriter;
+import com.chaosinmotion.coviddata.query.QueryDefinition.Aggregate;
+import com.chaosinmotion.coviddata.query.QueryDefinition.Kind;
+import com.chaosinmotion.coviddata.utils.CompressedInput;
+import com.chaosinmotion.coviddata.utils.Metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Runs the reports declared in a query file (see QueryDefinition). Each
+ * report is a pipeline of the same stages: scan a file, filter its rows,
+ * decode the fields it uses, group the rows and aggregate each group.
+ *
+ * The reports are planned together, file by file:
+ *
+ *	Every report over the same file is fused into a single scan, so the file
+ *	is read and split into rows once however many reports use it. Each row is
+ *	given to each report's filter in turn.
+ *
+ *	Only the fields some report uses are decoded (see Projection), and only
+ *	when a filter or aggregate asks for them (see Row), so most of the bytes
+ *	of a row are never looked at beyond finding the commas.
+ *
+ *	Text fields are decoded into dictionary codes, and groups and aggregates
+ *	are kept in primitive arrays indexed by group (see GroupTable), so the
+ *	work per row is array lookups rather than strings and hash maps.
+ *
+ * As with ReportEngine, a file is scanned in parallel chunks by a
+ * CSVChunkScanner, or front to back on a CSVPipeline if it is compressed.
+ * Chunks each build their own dictionaries and groups, which are merged as
+ * the chunks are.
+ *
+ * The reports built into ReportEngine are not run here; they keep their own
+ * caches, and can update them from rows appended to the check-in file.
+ *
+ * The scans are recorded in the "query" metrics stage.
+ */
+public class QueryEngine
+{
+	private final List<QueryDefinition> queries;
+
+	/**
+	 * A report planned against the projection of its file
+	 */
+	private static class Plan
+	{
+		final QueryDefinition def;
+		final Filter filter;			// null for every row
+		final int[] group;				// text slots
+		final Kind[] kinds;
+		final int[] slots;
+
+		Plan(QueryDefinition def, Projection projection) throws ParseException
+		{
+			this.def = def;
+			filter = (def.getWhere() == null) ? null : Filter.parse(def.getWhere(),projection);
+
+			String[] fields = def.getGroup();
+			group = new int[fields.length];
+			for (int i = 0; i < fields.length; ++i) group[i] = projection.text(fields[i]);
+
+			Aggregate[] select = def.getSelect();
+			kinds = new Kind[select.length];
+			slots = new int[select.length];
+			for (int a = 0; a < select.length; ++a) {
+				kinds[a] = select[a].kind;
+				switch (kinds[a]) {
+					case COUNT:
+						break;
+					case COUNT_FIELD:
+						slots[a] = projection.presence(select[a].field);
+						break;
+					case COUNT_DISTINCT:
+						slots[a] = projection.text(select[a].field);
+						break;
+					default:
+						slots[a] = projection.number(select[a].field);
+						break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs every report over a chunk of the file
+	 */
+	private static class ScanAccumulator implements CSVAccumulator<ScanAccumulator>
+	{
+		private final Plan[] plans;
+		private final Row row;
+		private final GroupTable[] tables;
+		private final int[] scratch;
+		private long rows;
+
+		ScanAccumulator(Plan[] plans, Projection projection)
+		{
+			this.plans = plans;
+			row = projection.newRow();
+			tables = new GroupTable[plans.length];
+			int n = 0;
+			for (int i = 0; i < plans.length; ++i) {
+				tables[i] = new GroupTable(plans[i].group,plans[i].kinds,plans[i].slots);
+				n = Math.max(n,plans[i].group.length);
+			}
+			scratch = new int[n];
+		}
+
+		@Override
+		public void accept(CSVRow r)
+		{
+			++rows;
+			row.set(r);
+			for (int i = 0; i < plans.length; ++i) {
+				Filter f = plans[i].filter;
+				if ((f == null) || f.test(row)) tables[i].add(row,scratch);
+			}
+		}
+
+		@Override
+		public void merge(ScanAccumulator other)
+		{
+			int[][] remap = row.merge(other.row);
+			for (int i = 0; i < tables.length; ++i) {
+				tables[i].merge(other.tables[i],remap);
+			}
+			rows += other.rows;
+		}
+	}
+
+	public QueryEngine(List<QueryDefinition> queries)
+	{
+		this.queries = queries;
+	}
+
+	/**
+	 * Run our reports, scanning each file once
+	 * @param out The stream to print the results to
+	 * @throws IOException
+	 * @throws ParseException if a report is not valid for its file
+	 */
+	public void run(PrintStream out) throws IOException, ParseException
+	{
+		LinkedHashMap<File,List<QueryDefinition>> files = new LinkedHashMap<>();
+		for (QueryDefinition q: queries) {
+			File f = CompressedInput.find(q.getFile()).getAbsoluteFile();
+			files.computeIfAbsent(f,k -> new ArrayList<>()).add(q);
+		}
+
+		for (File f: files.keySet()) {
+			scan(f,files.get(f),out);
+		}
+	}
+
+	/**
+	 * Run the reports over a single file
+	 */
+	private void scan(File file, List<QueryDefinition> defs, PrintStream out) throws IOException, ParseException
+	{
+		if (!file.exists()) throw new IOException("No file " + file);
+
+		String[] toc;
+		try (InputStream in = CompressedInput.open(file)) {
+			toc = new CSVPipeline(in).readTOC();
+		}
+		if (toc == null) throw new IOException("No table of contents in " + file);
+
+		Projection projection = new Projection(toc);
+		Plan[] plans = new Plan[defs.size()];
+		for (int i = 0; i < plans.length; ++i) {
+			try {
+				plans[i] = new Plan(defs.get(i),projection);
+			}
+			catch (ParseException ex) {
+				throw new ParseException("[" + defs.get(i).getName() + "] " + ex.getMessage(),ex.getErrorOffset());
+			}
+		}
+
+		String[] used = projection.getUsedFields();
+		out.println("Scanning " + file + " for " + plans.length + " report(s), decoding " + used.length + " of " + projection.getFieldCount() + " fields: " + String.join(", ",used));
+
+		Metrics.Stage metrics = Metrics.stage("query").start();
+		ScanAccumulator acc;
+		if (CompressedInput.isCompressed(file)) {
+			try (InputStream in = CompressedInput.open(file)) {
+				acc = new CSVPipeline(in).scan(t -> new ScanAccumulator(plans,projection));
+			}
+		} else {
+			acc = new CSVChunkScanner(file).scan(t -> new ScanAccumulator(plans,projection));
+		}
+		metrics.stop();
+		metrics.add("rows",acc.rows);
+		metrics.add("bytes",file.length());
+		metrics.add("reports",plans.length);
+
+		for (int i = 0; i < plans.length; ++i) {
+			out.println();
+			print(plans[i],acc.tables[i],acc.row,out);
+		}
+		out.println();
+	}
+
+	/**
+	 * Print the results of a report, with the groups sorted by their values,
+	 * and write them to the report's output file if it has one
+	 */
+	private static void print(Plan plan, GroupTable table, Row row, PrintStream out) throws IOException
+	{
+		QueryDefinition def = plan.def;
+		String[] fields = def.getGroup();
+		Aggregate[] select = def.getSelect();
+		int n = fields.length;
+
+		String[] header = new String[n + select.length];
+		System.arraycopy(fields,0,header,0,n);
+		for (int a = 0; a < select.length; ++a) header[n + a] = select[a].toString();
+
+		String[][] lines = new String[table.size()][];
+		for (int g = 0; g < lines.length; ++g) {
+			String[] line = lines[g] = new String[header.length];
+			for (int i = 0; i < n; ++i) line[i] = row.dicts[plan.group[i]].getCode(table.getCode(g,i));
+			for (int a = 0; a < select.length; ++a) line[n + a] = table.getValue(g,a);
+		}
+		Arrays.sort(lines,(a,b) -> {
+			for (int i = 0; i < n; ++i) {
+				int c = a[i].compareTo(b[i]);
+				if (c != 0) return c;
+			}
+			return 0;
+		});
+
+		if (def.getOutput() != null) {
+			CSVWriter w = new CSVWriter(new OutputStreamWriter(new FileOutputStream(def.getOutput()),StandardCharsets.UTF_8));
+			w.writeRow(header);
+			for (String[] line: lines) w.writeRow(line);
+			w.close();
+		}
+
+		int[] width = new int[header.length];
+		for (int i = 0; i < header.length; ++i) width[i] = header[i].length();
+		for (String[] line: lines) {
+			for (int i = 0; i < n; ++i) {
+				if (line[i].isEmpty()) line[i] = "(blank)";
+				width[i] = Math.max(width[i],line[i].length());
+			}
+			for (int i = n; i < line.length; ++i) width[i] = Math.max(width[i],line[i].length());
+		}
+
+		out.println(def.getName() + ":");
+		out.println(format(header,width,n));
+		for (String[] line: lines) out.println(format(line,width,n));
+	}
+
+	/**
+	 * Format a line of a table, with the group values on the left and the
+	 * aggregates right aligned
+	 */
+	private static String format(String[] line, int[] width, int n)
+	{
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < line.length; ++i) {
+			if (i > 0) b.append("  ");
+			b.append(String.format("%" + ((i < n) ? "-" : "") + width[i] + "s",line[i]));
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Run the reports declared in the query files given on the command line,
+	 * or in reports.conf if none are given.
+	 */
+	public static void main(String[] args)
+	{
+		try {
+			if (args.length == 0) args = new String[] { "reports.conf" };
+			for (String f: args) {
+				new QueryEngine(QueryDefinition.read(new File(f))).run(System.out);
+			}
+		}
+		catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.chaosinmotion.coviddata.query;
+
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+
+import java.util.Arrays;
+
+/**
+ * The decoded fields of the current row of a chunk, as laid out by a
+ * Projection. Fields are decoded lazily, the first time a filter or an
+ * aggregate asks for them, so a field only used by a report whose filter
+ * rejected the row is never decoded at all.
+ *
+ * Text fields are decoded into codes from a dictionary per field. The
+ * dictionaries belong to the chunk, and are merged when the chunks are, so
+ * codes are only comparable within a chunk until then. Number fields are
+ * parsed as longs, with MISSING for a field which is blank or is not an
+ * integer.
+ *
+ * Filter terms on text fields cache their result for each code, so a term is
+ * evaluated once per distinct value in the chunk rather than once per row.
+ */
+class Row
+{
+	static final long MISSING = Long.MIN_VALUE;
+
+	private final int[] textColumn;
+	private final int[] numberColumn;
+	final RegistrantDictionary[] dicts;
+
+	private final int[] codes;
+	private final long[] numbers;
+	private final long[] textStamp;
+	private final long[] numberStamp;
+	private long stamp;
+
+	private final byte[][] terms;		// 0 not yet known, 1 false, 2 true
+
+	private CSVRow row;
+
+	Row(int[] textColumn, int[] numberColumn, int termCount)
+	{
+		this.textColumn = textColumn;
+		this.numberColumn = numberColumn;
+
+		dicts = new RegistrantDictionary[textColumn.length];
+		for (int i = 0; i < dicts.length; ++i) dicts[i] = new RegistrantDictionary(64);
+
+		codes = new int[textColumn.length];
+		numbers = new long[numberColumn.length];
+		textStamp = new long[textColumn.length];
+		numberStamp = new long[numberColumn.length];
+
+		terms = new byte[termCount][];
+		for (int i = 0; i < termCount; ++i) terms[i] = new byte[64];
+	}
+
+	/**
+	 * Move to the next row. Nothing is decoded until asked for.
+	 * @param row The row
+	 */
+	void set(CSVRow row)
+	{
+		this.row = row;
+		++stamp;
+	}
+
+	/**
+	 * The code of a text field of the current row
+	 * @param slot The text slot
+	 * @return The code, from dicts[slot]
+	 */
+	int text(int slot)
+	{
+		if (textStamp[slot] != stamp) {
+			textStamp[slot] = stamp;
+			int c = textColumn[slot];
+			if (c >= row.getFieldCount()) {
+				codes[slot] = dicts[slot].add("");
+			} else {
+				codes[slot] = dicts[slot].add(row.getBuffer(),row.getStart(c),row.getLength(c));
+			}
+		}
+		return codes[slot];
+	}
+
+	/**
+	 * The value of a number field of the current row
+	 * @param slot The number slot
+	 * @return The value, or MISSING if it is blank or not an integer
+	 */
+	long number(int slot)
+	{
+		if (numberStamp[slot] != stamp) {
+			numberStamp[slot] = stamp;
+			int c = numberColumn[slot];
+			if (c >= row.getFieldCount()) {
+				numbers[slot] = MISSING;
+			} else {
+				numbers[slot] = parse(row.getBuffer(),row.getStart(c),row.getLength(c));
+			}
+		}
+		return numbers[slot];
+	}
+
+	/**
+	 * Determine if a field of the current row is blank. This needs no
+	 * decoding.
+	 * @param column The column, from Projection.presence()
+	 * @return True if the field is blank or missing
+	 */
+	boolean isEmpty(int column)
+	{
+		return row.isEmpty(column);
+	}
+
+	/**
+	 * Parse an integer, allowing surrounding spaces. Unlike CSVRow.getInt()
+	 * this never throws, as the odd malformed value in a field should not
+	 * stop a report.
+	 */
+	private static long parse(byte[] buffer, int s, int len)
+	{
+		int e = s + len;
+		while ((s < e) && (buffer[s] == ' ')) ++s;
+		while ((s < e) && (buffer[e - 1] == ' ')) --e;
+		if (s == e) return MISSING;
+
+		boolean negative = false;
+		if ((buffer[s] == '-') || (buffer[s] == '+')) {
+			negative = (buffer[s] == '-');
+			if (++s == e) return MISSING;
+		}
+		if (e - s > 18) return MISSING;		// Would overflow
+
+		long value = 0;
+		for (; s < e; ++s) {
+			int d = buffer[s] - '0';
+			if ((d < 0) || (d > 9)) return MISSING;
+			value = value * 10 + d;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * The cached result of a filter term for a code
+	 * @param term The term, from Projection.term()
+	 * @param code The code of the field the term tests
+	 * @return 0 if not yet known, 1 if false, 2 if true
+	 */
+	int getTerm(int term, int code)
+	{
+		byte[] cache = terms[term];
+		return (code < cache.length) ? cache[code] : 0;
+	}
+
+	void setTerm(int term, int code, boolean value)
+	{
+		byte[] cache = terms[term];
+		if (code >= cache.length) {
+			cache = terms[term] = Arrays.copyOf(cache,Math.max(code + 1,cache.length * 2));
+		}
+		cache[code] = (byte)(value ? 2 : 1);
+	}
+
+	/**
+	 * Merge the dictionaries of a later chunk into ours
+	 * @param other The row of the later chunk
+	 * @return For each text slot, the map from the other chunk's codes to ours
+	 */
+	int[][] merge(Row other)
+	{
+		int[][] remap = new int[dicts.length][];
+		for (int i = 0; i < dicts.length; ++i) {
+			remap[i] = dicts[i].merge(other.dicts[i]);
+		}
+		return remap;
+	}
+}
@@ -0,0 +1,42 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.csv.CSVRow;
+
+import java.io.IOException;
+
+/**
+ * A check-in accumulator gathers a report's data from a chunk of the health
+ * check-in file. The ReportEngine hands each row to every registered report's
+ * accumulator, along with the ID of the registrant the row belongs to.
+ *
+ * Registrant IDs may be local to the chunk being scanned. When accumulators
+ * are merged, the engine passes a table mapping the other accumulator's IDs
+ * into ours.
+ */
+public interface CheckinAccumulator<T extends CheckinAccumulator<T>>
+{
+	/**
+	 * Process a row. The row is only valid for the duration of this call.
+	 * @param registrant The registrant ID for this row
+	 * @param row The row read from the file
+	 * @throws IOException
+	 */
+	void accept(int registrant, CSVRow row) throws IOException;
+
+	/**
+	 * Called when the chunk this accumulator was created for has been
+	 * completely read.
+	 * @throws IOException
+	 */
+	default void done() throws IOException
+	{
+	}
+
+	/**
+	 * Merge the other accumulator, which holds rows after ours in the file.
+	 * @param other The other accumulator
+	 * @param remap Maps the other accumulator's registrant IDs to ours, or
+	 *              null if the IDs are the same.
+	 */
+	void merge(T other, int[] remap);
+}
@@ -0,0 +1,69 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.utils.CacheManifest;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+
+import java.io.IOException;
+
+/**
+ * A report which draws its data from the health check-in file. Reports are
+ * registered with a ReportEngine, which scans the check-in file once for all
+ * of the reports that need it.
+ *
+ * If the check-in file has been appended to, the engine first asks each
+ * report if it can update its cache from just the new rows with canAppend().
+ * The engine then calls load() on each report, scans the file if any report needs
+ * it, calls scanned() on the reports that asked for the scan, then calls
+ * finish() on every report in the order they were registered. A report that
+ * depends on another should be registered after it.
+ */
+public interface CheckinReport
+{
+	/**
+	 * Determine if our cache can be updated by scanning only the rows
+	 * appended to the check-in file. This is the case if our cache was built
+	 * from exactly the rows before the offset.
+	 * @param manifest The cache manifest
+	 * @param offset The size of the check-in file when our dictionary was
+	 *               built; the appended rows start here
+	 * @return true if we can update from the appended rows
+	 * @throws IOException
+	 */
+	boolean canAppend(CacheManifest manifest, long offset) throws IOException;
+
+	/**
+	 * Load any cached data.
+	 * @param dict The registrant dictionary from our cache, or null if we
+	 *             do not have one.
+	 * @param manifest The cache manifest, used to tell if our cache is stale
+	 * @param offset If not 0, only the rows from this offset on will be
+	 *               scanned. Our cache should be loaded, and updated from the
+	 *               new rows in scanned().
+	 * @return true if this report needs the check-in file to be scanned
+	 * @throws IOException
+	 */
+	boolean load(RegistrantDictionary dict, CacheManifest manifest, long offset) throws IOException;
+
+	/**
+	 * Create an accumulator for a chunk of the check-in file.
+	 * @param toc The table of contents of the check-in file
+	 * @return The accumulator
+	 */
+	CheckinAccumulator<?> createAccumulator(String[] toc);
+
+	/**
+	 * Called with the merged accumulator once the scan is complete.
+	 * @param dict The registrant dictionary
+	 * @param acc The merged accumulator
+	 * @param remap Maps the registrant IDs in the accumulator to the IDs in
+	 *              the dictionary, or null if they are the same.
+	 * @throws IOException
+	 */
+	void scanned(RegistrantDictionary dict, CheckinAccumulator<?> acc, int[] remap) throws IOException;
+
+	/**
+	 * Finish the report and print the results.
+	 * @throws Exception
+	 */
+	void finish() throws Exception;
+}
@@ -0,0 +1,384 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.utils.RoaringBitmap;
+import com.chaosinmotion.coviddata.utils.Utils;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * The cohort index holds, for each decoded value of each field of a
+ * Report2.Report, the set of registrants who reported that value at least
+ * once, as a compressed bitmap over registrant IDs. A question such as "how
+ * many registrants reported a severe headache and an ER visit" is then an AND
+ * of two bitmaps, rather than a new report which rescans the check-in file.
+ *
+ * Each set of registrants is a cohort, named after the field and the value:
+ *
+ *	HEADACHE=Severe							severity fields, one per level
+ *	HEALTHCARE_VISITS=Hospitalization		multi-value fields, one per value
+ *	FEVER									yes/no fields
+ *
+ * Cohorts are combined with query(), which takes an expression such as
+ *
+ *	HEADACHE=Severe & (HEALTHCARE_VISITS=Emergency | HEALTHCARE_VISITS=Hosp) & !FEVER
+ *
+ * A value may be abbreviated to any prefix which is unique for the field, and
+ * ALL is the set of all registrants. '&' binds more tightly than '|'.
+ *
+ * The index is built by CohortReport, and stored in cache/cohorts.idx.
+ */
+public class CohortIndex
+{
+	private static final int MAGIC = 0x43564349;		// 'CVCI'
+	public static final int VERSION = 1;
+
+	/*
+	 *	How the values of a field map to cohorts
+	 */
+	private static final int LEVEL = 0;			// one for each value but the first
+	private static final int FLAGS = 1;			// one for each bit
+	private static final int BOOLEAN = 2;		// one for "Yes"
+
+	private static final int SYSTEMIC_REACTION = -1;		// not a byte column
+
+	private static class Field
+	{
+		final String name;
+		final int column;			// ReportStore column
+		final int kind;
+		final String[] words;
+		int first;					// index of our first cohort
+
+		Field(String name, int column, int kind, String[] words)
+		{
+			this.name = name;
+			this.column = column;
+			this.kind = kind;
+			this.words = words;
+		}
+	}
+
+	private static final Field[] fields = {
+		new Field("ABDOMINAL_PAIN",ReportStore.ABDOMINAL_PAIN,LEVEL,Report2.reaction),
+		new Field("CHILLS",ReportStore.CHILLS,LEVEL,Report2.reaction),
+		new Field("DIARRHEA",ReportStore.DIARRHEA,LEVEL,Report2.reaction),
+		new Field("FATIGUE",ReportStore.FATIGUE,LEVEL,Report2.reaction),
+		new Field("FEELING_TODAY",ReportStore.FEELING_TODAY,LEVEL,Report2.feeling),
+		new Field("FEVER",ReportStore.FEVER,BOOLEAN,null),
+		new Field("HAD_SYMPTOMS",ReportStore.HAD_SYMPTOMS,BOOLEAN,null),
+		new Field("HEADACHE",ReportStore.HEADACHE,LEVEL,Report2.reaction),
+		new Field("HEALTH_IMPACT",ReportStore.HEALTH_IMPACT,FLAGS,Report2.healthImpact),
+		new Field("HEALTH_NOW",ReportStore.HEALTH_NOW,LEVEL,Report2.healthNow),
+		new Field("HEALTH_NOW_COMPARISON",ReportStore.HEALTH_NOW_COMPARISON,LEVEL,Report2.healthChange),
+		new Field("VACCINE_CAUSED_HEALTH_ISSUES",ReportStore.VACCINE_CAUSED_HEALTH_ISSUES,BOOLEAN,null),
+		new Field("HEALTHCARE_VISITS",ReportStore.HEALTHCARE_VISITS,FLAGS,Report2.healthVisit),
+		new Field("ITCHING",ReportStore.ITCHING,LEVEL,Report2.reaction),
+		new Field("JOINT_PAINS",ReportStore.JOINT_PAINS,LEVEL,Report2.reaction),
+		new Field("MUSCLE_OR_BODY_ACHES",ReportStore.MUSCLE_OR_BODY_ACHES,LEVEL,Report2.reaction),
+		new Field("NAUSEA",ReportStore.NAUSEA,LEVEL,Report2.reaction),
+		new Field("PAIN",ReportStore.PAIN,LEVEL,Report2.reaction),
+		new Field("PREGNANT",ReportStore.PREGNANT,LEVEL,Report2.pregnantStatus),
+		new Field("PREGNANCY_TEST",ReportStore.PREGNANCY_TEST,BOOLEAN,null),
+		new Field("RASH_OUTSIDE_INJECTION_SITE",ReportStore.RASH_OUTSIDE_INJECTION_SITE,LEVEL,Report2.reaction),
+		new Field("REDNESS",ReportStore.REDNESS,LEVEL,Report2.reaction),
+		new Field("SITE_REACTION",ReportStore.SITE_REACTION,FLAGS,Report2.siteReaction),
+		new Field("SWELLING",ReportStore.SWELLING,LEVEL,Report2.reaction),
+		new Field("SYSTEMIC_REACTION",SYSTEMIC_REACTION,FLAGS,Report2.systemicReation),
+		new Field("TESTED_POSITIVE",ReportStore.TESTED_POSITIVE,BOOLEAN,null),
+		new Field("VOMITING",ReportStore.VOMITING,LEVEL,Report2.reaction),
+	};
+
+	private static final String[] names;
+	private static final int[] fieldOf;		// field index of each cohort
+
+	static {
+		int n = 0;
+		for (Field f: fields) {
+			f.first = n;
+			n += (f.kind == BOOLEAN) ? 1 : (f.kind == LEVEL) ? f.words.length - 1 : f.words.length;
+		}
+
+		names = new String[n];
+		fieldOf = new int[n];
+		for (int i = 0; i < fields.length; ++i) {
+			Field f = fields[i];
+			if (f.kind == BOOLEAN) {
+				names[f.first] = f.name;
+				fieldOf[f.first] = i;
+			} else {
+				int skip = (f.kind == LEVEL) ? 1 : 0;
+				for (int j = skip; j < f.words.length; ++j) {
+					names[f.first + j - skip] = f.name + "=" + f.words[j];
+					fieldOf[f.first + j - skip] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of cohorts in the index
+	 */
+	public static int getCohortCount()
+	{
+		return names.length;
+	}
+
+	/**
+	 * Return the name of each cohort, in the order they are stored.
+	 */
+	public static String[] getCohortNames()
+	{
+		return names.clone();
+	}
+
+	/**
+	 * Decode a row of the health check-in file, setting the bit for each
+	 * cohort the row places the registrant in.
+	 * @param row The row
+	 * @param bits The bits to set, with bit i of bits[i / 64] for cohort i
+	 * @param offset The index of the first word in bits
+	 */
+	static void decode(CSVRow row, long[] bits, int offset)
+	{
+		for (Field f: fields) {
+			int value = (f.column == SYSTEMIC_REACTION) ? Report2.Report.decodeSystemicReaction(row)
+														: Report2.Report.decode(row,f.column) & 0xFF;
+			if (value == 0) continue;
+
+			switch (f.kind) {
+				case LEVEL:
+					set(bits,offset,f.first + value - 1);
+					break;
+				case BOOLEAN:
+					set(bits,offset,f.first);
+					break;
+				default:
+					for (int b = 0; b < f.words.length; ++b) {
+						if (0 != (value & (1 << b))) set(bits,offset,f.first + b);
+					}
+					break;
+			}
+		}
+	}
+
+	private static void set(long[] bits, int offset, int cohort)
+	{
+		bits[offset + (cohort >>> 6)] |= 1L << cohort;
+	}
+
+	private final int registrantCount;
+	private final RoaringBitmap[] cohorts;
+
+	/**
+	 * Create an index from its cohorts.
+	 * @param registrantCount The number of registrants
+	 * @param cohorts The registrants in each cohort, in the order of
+	 *                getCohortNames()
+	 */
+	CohortIndex(int registrantCount, RoaringBitmap[] cohorts)
+	{
+		if (cohorts.length != names.length) throw new RuntimeException("Programmer is an idiot; wrong number of cohorts");
+		this.registrantCount = registrantCount;
+		this.cohorts = cohorts;
+	}
+
+	/**
+	 * Read the index.
+	 * @param f The index file
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static CohortIndex read(File f) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f),65536));
+		try {
+			if (dis.readInt() != MAGIC) throw new IOException("Not a cohort index");
+			if (dis.readInt() != VERSION) throw new IOException("Unsupported cohort index version");
+			int registrantCount = dis.readInt();
+			int n = dis.readInt();
+			if (n != names.length) throw new IOException("Sync Error");
+
+			RoaringBitmap[] cohorts = new RoaringBitmap[n];
+			for (int i = 0; i < n; ++i) {
+				if (!dis.readUTF().equals(names[i])) throw new IOException("Sync Error");
+				cohorts[i] = RoaringBitmap.read(dis);
+			}
+			return new CohortIndex(registrantCount,cohorts);
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Write the index.
+	 * @param f The index file
+	 * @throws IOException
+	 */
+	public void write(File f) throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),65536));
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(registrantCount);
+		dos.writeInt(cohorts.length);
+		for (int i = 0; i < cohorts.length; ++i) {
+			dos.writeUTF(names[i]);
+			cohorts[i].write(dos);
+		}
+		dos.close();
+	}
+
+	/**
+	 * The number of registrants indexed. Registrant IDs run from 0 to
+	 * getRegistrantCount() - 1.
+	 */
+	public int getRegistrantCount()
+	{
+		return registrantCount;
+	}
+
+	/**
+	 * Return the registrants in a cohort.
+	 * @param cohort The index of the cohort, as in getCohortNames()
+	 * @return The registrants
+	 */
+	public RoaringBitmap get(int cohort)
+	{
+		return cohorts[cohort];
+	}
+
+	/**
+	 * Find a cohort by name, ignoring case. The value after the '=' may be
+	 * any prefix of the value which is unique for the field.
+	 * @param name The name, such as "HEALTHCARE_VISITS=Hospitalization"
+	 * @return The index of the cohort, or -1 if not found or not unique
+	 */
+	public static int find(String name)
+	{
+		name = name.trim();
+		for (int i = 0; i < names.length; ++i) {
+			if (names[i].equalsIgnoreCase(name)) return i;
+		}
+
+		int eq = name.indexOf('=');
+		if (eq <= 0) return -1;
+
+		int found = -1;
+		int len = name.length();
+		for (int i = 0; i < names.length; ++i) {
+			String n = names[i];
+			if ((n.length() >= len) && n.regionMatches(true,0,name,0,len)) {
+				if (found != -1) return -1;			// not unique
+				found = i;
+			}
+		}
+		return found;
+	}
+
+	/*
+	 *	Queries
+	 */
+
+	/**
+	 * Evaluate a query, returning the registrants who match.
+	 * @param query The query, as described above
+	 * @return The registrants
+	 * @throws ParseException if the query is not valid
+	 */
+	public RoaringBitmap query(String query) throws ParseException
+	{
+		int[] pos = new int[1];
+		RoaringBitmap ret = parseOr(query,pos);
+		skipSpace(query,pos);
+		if (pos[0] < query.length()) throw new ParseException("Unexpected '" + query.charAt(pos[0]) + "'",pos[0]);
+		return ret;
+	}
+
+	private static void skipSpace(String query, int[] pos)
+	{
+		while ((pos[0] < query.length()) && Character.isWhitespace(query.charAt(pos[0]))) ++pos[0];
+	}
+
+	private RoaringBitmap parseOr(String query, int[] pos) throws ParseException
+	{
+		RoaringBitmap ret = parseAnd(query,pos);
+		for (;;) {
+			skipSpace(query,pos);
+			if ((pos[0] >= query.length()) || (query.charAt(pos[0]) != '|')) return ret;
+			++pos[0];
+			ret = ret.or(parseAnd(query,pos));
+		}
+	}
+
+	private RoaringBitmap parseAnd(String query, int[] pos) throws ParseException
+	{
+		RoaringBitmap ret = parseTerm(query,pos);
+		for (;;) {
+			skipSpace(query,pos);
+			if ((pos[0] >= query.length()) || (query.charAt(pos[0]) != '&')) return ret;
+			++pos[0];
+			ret = ret.and(parseTerm(query,pos));
+		}
+	}
+
+	private RoaringBitmap parseTerm(String query, int[] pos) throws ParseException
+	{
+		skipSpace(query,pos);
+		if (pos[0] >= query.length()) throw new ParseException("Unexpected end of query",pos[0]);
+
+		char c = query.charAt(pos[0]);
+		if (c == '!') {
+			++pos[0];
+			return RoaringBitmap.range(registrantCount).andNot(parseTerm(query,pos));
+		}
+		if (c == '(') {
+			++pos[0];
+			RoaringBitmap ret = parseOr(query,pos);
+			skipSpace(query,pos);
+			if ((pos[0] >= query.length()) || (query.charAt(pos[0]) != ')')) throw new ParseException("Missing ')'",pos[0]);
+			++pos[0];
+			return ret;
+		}
+
+		int start = pos[0];
+		while ((pos[0] < query.length()) && ("&|()!".indexOf(query.charAt(pos[0])) < 0)) ++pos[0];
+		String name = query.substring(start,pos[0]).trim();
+
+		if (name.equalsIgnoreCase("ALL")) return RoaringBitmap.range(registrantCount);
+		int cohort = find(name);
+		if (cohort == -1) throw new ParseException("Unknown cohort " + name,start);
+		return cohorts[cohort];
+	}
+
+	/**
+	 * Run the queries given on the command line against cache/cohorts.idx,
+	 * printing the number of registrants which match each. With no queries,
+	 * prints the size of every cohort.
+	 */
+	public static void main(String[] args)
+	{
+		try {
+			CohortIndex index = read(new File("cache/cohorts.idx"));
+			int total = index.getRegistrantCount();
+
+			if (args.length == 0) {
+				for (int i = 0; i < names.length; ++i) {
+					int n = (int)index.get(i).getCardinality();
+					System.out.println(names[i] + ": " + n + Utils.perc(n,total));
+				}
+			}
+			for (String q: args) {
+				long start = System.nanoTime();
+				int n = (int)index.query(q).getCardinality();
+				long elapsed = System.nanoTime() - start;
+				System.out.println(q + ": " + n + Utils.perc(n,total) + "  (" + (elapsed / 1000) + " us)");
+			}
+		}
+		catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.utils.CacheManifest;
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+import com.chaosinmotion.coviddata.utils.RoaringBitmap;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Builds the cohort index (see CohortIndex) from the health check-in file,
+ * and keeps it up to date as rows are appended. This runs in the same scan as
+ * our other reports, so it costs one extra decode of each row when the caches
+ * are rebuilt, and nothing otherwise.
+ */
+public class CohortReport implements CheckinReport
+{
+	private static final File CACHE = new File("cache/cohorts.idx");
+	private static final File CHECKIN = new File("data/consolidated_health_checkin.csv");
+
+	private static final int WORDS = (CohortIndex.getCohortCount() + 63) / 64;
+
+	/**
+	 * The cohorts of each registrant as we scan, as WORDS longs of bits per
+	 * registrant indexed by registrant ID.
+	 */
+	private static class CohortTable
+	{
+		private long[] bits = new long[1024 * WORDS];
+		private int size;
+
+		private void ensure(int id)
+		{
+			if ((id + 1) * WORDS > bits.length) {
+				long[] resize = new long[Math.max((id + 1) * WORDS,bits.length * 2)];
+				System.arraycopy(bits,0,resize,0,size * WORDS);
+				bits = resize;
+			}
+			if (id >= size) size = id + 1;
+		}
+
+		void setSize(int size)
+		{
+			if (size > this.size) ensure(size - 1);
+		}
+
+		void or(int id, long[] row)
+		{
+			ensure(id);
+			int base = id * WORDS;
+			for (int w = 0; w < WORDS; ++w) bits[base + w] |= row[w];
+		}
+
+		void set(int id, int cohort)
+		{
+			ensure(id);
+			bits[id * WORDS + (cohort >>> 6)] |= 1L << cohort;
+		}
+
+		void merge(CohortTable other, int[] remap)
+		{
+			for (int i = 0; i < other.size; ++i) {
+				int id = (remap == null) ? i : remap[i];
+				ensure(id);
+				for (int w = 0; w < WORDS; ++w) bits[id * WORDS + w] |= other.bits[i * WORDS + w];
+			}
+		}
+
+		/**
+		 * Build the bitmaps for each cohort. Registrants are visited in
+		 * increasing order, so each bitmap is built by appending.
+		 */
+		CohortIndex toIndex()
+		{
+			int count = CohortIndex.getCohortCount();
+			RoaringBitmap[] cohorts = new RoaringBitmap[count];
+			for (int i = 0; i < count; ++i) cohorts[i] = new RoaringBitmap();
+
+			for (int id = 0; id < size; ++id) {
+				int base = id * WORDS;
+				for (int w = 0; w < WORDS; ++w) {
+					long word = bits[base + w];
+					while (word != 0) {
+						cohorts[(w << 6) + Long.numberOfTrailingZeros(word)].add(id);
+						word &= word - 1;
+					}
+				}
+			}
+			return new CohortIndex(size,cohorts);
+		}
+
+		/**
+		 * Load the cohorts from an existing index
+		 */
+		static CohortTable from(CohortIndex index)
+		{
+			CohortTable table = new CohortTable();
+			table.setSize(index.getRegistrantCount());
+			for (int c = 0; c < CohortIndex.getCohortCount(); ++c) {
+				int cohort = c;
+				index.get(c).forEach(id -> table.set(id,cohort));
+			}
+			return table;
+		}
+	}
+
+	private static class CohortAccumulator implements CheckinAccumulator<CohortAccumulator>
+	{
+		private final CohortTable table = new CohortTable();
+		private final long[] row = new long[WORDS];
+
+		@Override
+		public void accept(int registrant, CSVRow r)
+		{
+			for (int w = 0; w < WORDS; ++w) row[w] = 0;
+			CohortIndex.decode(r,row,0);
+			table.or(registrant,row);
+		}
+
+		@Override
+		public void merge(CohortAccumulator other, int[] remap)
+		{
+			table.merge(other.table,remap);
+		}
+	}
+
+	private CacheManifest manifest;
+	private CohortTable table;			// when appending, our existing cohorts
+	private CohortIndex index;
+
+	@Override
+	public boolean canAppend(CacheManifest manifest, long offset) throws IOException
+	{
+		if (manifest.check(CACHE,CohortIndex.VERSION,CHECKIN) != CacheManifest.Status.APPENDED) return false;
+		return manifest.getInputSize(CACHE,CHECKIN) == offset;
+	}
+
+	@Override
+	public boolean load(RegistrantDictionary dict, CacheManifest manifest, long offset) throws IOException
+	{
+		this.manifest = manifest;
+		if ((dict == null) || ((offset == 0) && (manifest.check(CACHE,CohortIndex.VERSION,CHECKIN) != CacheManifest.Status.VALID))) {
+			Metrics.cache(CACHE.getName(),false);
+			return true;
+		}
+		Metrics.cache(CACHE.getName(),true);
+
+		index = CohortIndex.read(CACHE);
+		if (offset == 0) return false;
+
+		table = CohortTable.from(index);
+		index = null;
+		return true;
+	}
+
+	@Override
+	public CheckinAccumulator<?> createAccumulator(String[] toc)
+	{
+		return new CohortAccumulator();
+	}
+
+	@Override
+	public void scanned(RegistrantDictionary dict, CheckinAccumulator<?> acc, int[] remap) throws IOException
+	{
+		CohortTable scanned = ((CohortAccumulator)acc).table;
+		if (table == null) {
+			table = scanned;
+		} else {
+			table.merge(scanned,remap);
+		}
+		table.setSize(dict.size());
+
+		long time = System.nanoTime();
+		index = table.toIndex();
+		table = null;
+		Metrics.stage("cohorts").time("index",time);
+
+		index.write(CACHE);
+		manifest.update(CACHE,CohortIndex.VERSION,CHECKIN);
+	}
+
+	/**
+	 * The cohort index. This is only valid once the report engine has loaded
+	 * or scanned our data.
+	 * @return The index
+	 */
+	public CohortIndex getIndex()
+	{
+		return index;
+	}
+
+	@Override
+	public void finish()
+	{
+		System.out.println();
+		System.out.println("Cohort index: " + CohortIndex.getCohortCount() + " cohorts over " + index.getRegistrantCount() + " registrants");
+	}
+}
@@ -0,0 +1,401 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.utils.CacheManifest;
+import com.chaosinmotion.coviddata.utils.CompressedInput;
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Breaks down the results of Report1 by the demographic fields of the
+ * registrants file and the race and ethnicity file: the percentage of
+ * registrants in each group who reported each type of health care visit.
+ *
+ * This is a hash join on the registrant code, with the check-in file on the
+ * large side. We never hold the check-in rows; Report1 has already reduced
+ * them to one set of visit counts per registrant (see RegistrantVisits), and
+ * the small files are loaded into dictionary encoded columns indexed by the
+ * same registrant IDs (see DemographicTable). Grouping is then a walk over
+ * the registrant IDs, combining the codes of each column into a group number
+ * and counting into arrays indexed by group.
+ *
+ * By default we print a breakdown for each field of each file; a report may
+ * instead be given the fields to group by, such as { "SEX", "RACE" }, which
+ * may come from either file. Registrants with no row in a file are grouped
+ * under (none).
+ *
+ * This requires Report1, which must be registered with the report engine
+ * before us. We need nothing from the scan of the check-in file.
+ */
+public class DemographicReport implements CheckinReport
+{
+	private static final File[] FILES = {
+		new File("data/consolidated_registrants[1].csv"),
+		new File("data/consolidated_race_ethnicity[1].csv")
+	};
+
+	// The most groups a breakdown may have, counting empty ones
+	private static final int MAX_GROUPS = 1 << 22;
+
+	private static final String[] MEASURES = { "Any", "ER", "Hospital", "Outpatient", "Telehealth" };
+
+	/**
+	 * The counts of registrants and visits for each group of a breakdown
+	 */
+	public static class Breakdown
+	{
+		private final String[] fields;
+		private final String[][] labels;		// labels[group][field]
+		private final int[] registrants;
+		private final int[][] visits;			// visits[measure][group]
+
+		private Breakdown(String[] fields, String[][] labels, int[] registrants, int[][] visits)
+		{
+			this.fields = fields;
+			this.labels = labels;
+			this.registrants = registrants;
+			this.visits = visits;
+		}
+
+		/**
+		 * The number of groups with at least one registrant
+		 */
+		public int getGroupCount()
+		{
+			return registrants.length;
+		}
+
+		/**
+		 * The values of the group, one per field grouped by
+		 * @param group The group
+		 * @return The values
+		 */
+		public String[] getLabels(int group)
+		{
+			return labels[group].clone();
+		}
+
+		public int getRegistrants(int group)
+		{
+			return registrants[group];
+		}
+
+		/**
+		 * The number of registrants in the group with a visit of a type
+		 * @param group The group
+		 * @param measure 0 for any visit, or 1 to 4 for ER, hospital,
+		 *                outpatient and telehealth visits
+		 * @return The number of registrants
+		 */
+		public int getVisits(int group, int measure)
+		{
+			return visits[measure][group];
+		}
+
+		/**
+		 * Print the breakdown as a table, with the percentage of the
+		 * registrants in each group with each type of visit.
+		 * @param out The stream to write to
+		 */
+		public void print(PrintStream out)
+		{
+			String[] names = new String[registrants.length];
+			int width = String.join(" / ",fields).length();
+			for (int g = 0; g < names.length; ++g) {
+				names[g] = String.join(" / ",labels[g]);
+				width = Math.max(width,names[g].length());
+			}
+
+			out.println("Health care visits by " + String.join(", ",fields) + ":");
+			StringBuilder header = new StringBuilder(String.format("%-" + width + "s %12s",String.join(" / ",fields),"Registrants"));
+			for (String m: MEASURES) header.append(String.format(" %11s",m));
+			out.println(header);
+
+			for (int g = 0; g < names.length; ++g) {
+				StringBuilder line = new StringBuilder(String.format("%-" + width + "s %12d",names[g],registrants[g]));
+				for (int m = 0; m < MEASURES.length; ++m) {
+					line.append(String.format(" %10.3f%%",visits[m][g] * 100.0 / registrants[g]));
+				}
+				out.println(line);
+			}
+		}
+	}
+
+	private final Report1 report1;
+	private final String[][] groupings;
+	private final ArrayList<DemographicTable> tables = new ArrayList<>();
+	private RegistrantVisits visits;
+
+	/**
+	 * Create our report. This requires Report1, which must be registered with
+	 * the report engine before us.
+	 * @param report1 The report giving the health care visits
+	 * @param groupings The fields of each breakdown to print, or none to
+	 *                  print a breakdown for each field
+	 */
+	public DemographicReport(Report1 report1, String[]... groupings)
+	{
+		this.report1 = report1;
+		this.groupings = groupings;
+	}
+
+	@Override
+	public boolean canAppend(CacheManifest manifest, long offset)
+	{
+		return true;
+	}
+
+	@Override
+	public boolean load(RegistrantDictionary dict, CacheManifest manifest, long offset)
+	{
+		return false;
+	}
+
+	@Override
+	public CheckinAccumulator<?> createAccumulator(String[] toc)
+	{
+		throw new RuntimeException("Programmer is an idiot; DemographicReport does not scan");
+	}
+
+	@Override
+	public void scanned(RegistrantDictionary dict, CheckinAccumulator<?> acc, int[] remap)
+	{
+		throw new RuntimeException("Programmer is an idiot; DemographicReport does not scan");
+	}
+
+	/**
+	 * Load the fields we need from each file we have. Only the fields named
+	 * by our groupings are loaded, if we were given any.
+	 * @throws IOException
+	 */
+	public void loadTables() throws IOException
+	{
+		visits = report1.getVisits();
+		tables.clear();
+
+		for (File f: FILES) {
+			File file = CompressedInput.find(f);
+			if (!file.exists()) continue;
+
+			String[] fields = DemographicTable.readFields(file);
+			if (groupings.length > 0) {
+				ArrayList<String> wanted = new ArrayList<>();
+				for (String field: fields) {
+					if (isGrouped(field)) wanted.add(field);
+				}
+				fields = wanted.toArray(new String[0]);
+			}
+			if (fields.length == 0) continue;
+
+			System.out.println("Reading " + file);
+			DemographicTable table = DemographicTable.read(file,visits,fields);
+			if (table.getUnmatchedCount() > 0) {
+				System.out.println("Skipped " + table.getUnmatchedCount() + " of " + table.getRowCount() + " rows for registrants with no check-ins");
+			}
+			for (int c = 0; c < table.getColumnCount(); ++c) {
+				if (table.isDropped(c)) {
+					System.out.println("Skipped " + table.getColumn(c) + ", which has more than " + DemographicTable.MAX_VALUES + " values");
+				}
+			}
+			tables.add(table);
+		}
+	}
+
+	private boolean isGrouped(String field)
+	{
+		for (String[] g: groupings) {
+			for (String name: g) {
+				if (name.equalsIgnoreCase(field)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Group the registrants by the fields given, and count the visits of each
+	 * group.
+	 * @param fields The fields to group by
+	 * @return The breakdown, with the groups sorted by their values
+	 * @throws IllegalArgumentException if we have no such field, or there are
+	 * 		too many groups
+	 */
+	public Breakdown group(String[] fields)
+	{
+		int n = fields.length;
+		if (n == 0) throw new IllegalArgumentException("No fields to group by");
+
+		DemographicTable[] table = new DemographicTable[n];
+		int[] column = new int[n];
+		int[][] codes = new int[n][];
+		int[] radix = new int[n];
+		long groups = 1;
+
+		for (int i = 0; i < n; ++i) {
+			for (DemographicTable t: tables) {
+				int c = t.findColumn(fields[i]);
+				if (c >= 0) {
+					if (t.isDropped(c)) throw new IllegalArgumentException(fields[i] + " has too many values to group by");
+					table[i] = t;
+					column[i] = c;
+					break;
+				}
+			}
+			if (table[i] == null) throw new IllegalArgumentException("No demographic field " + fields[i]);
+
+			codes[i] = table[i].getCodes(column[i]);
+			radix[i] = table[i].getCodeCount(column[i]);
+			groups *= radix[i];
+			if (groups > MAX_GROUPS) throw new IllegalArgumentException("Too many groups for " + String.join(", ",fields));
+		}
+
+		/*
+		 *	Walk the registrants, counting into the group given by the codes
+		 * 	of their fields.
+		 */
+
+		long time = System.nanoTime();
+		int size = visits.size();
+		int[] registrants = new int[(int)groups];
+		int[][] counts = new int[MEASURES.length][(int)groups];
+
+		for (int id = 0; id < size; ++id) {
+			int g = 0;
+			for (int i = 0; i < n; ++i) g = g * radix[i] + codes[i][id];
+
+			++registrants[g];
+			int flags = visits.getFlags(id);
+			if (flags != 0) {
+				++counts[0][g];
+				if (0 != (flags & VisitTable.VISIT_ER)) ++counts[1][g];
+				if (0 != (flags & VisitTable.VISIT_HOSPITAL)) ++counts[2][g];
+				if (0 != (flags & VisitTable.VISIT_OUTPATIENT)) ++counts[3][g];
+				if (0 != (flags & VisitTable.VISIT_TELEHEALTH)) ++counts[4][g];
+			}
+		}
+
+		/*
+		 *	Keep the groups with registrants, sorted by their values, with
+		 * 	(none) last.
+		 */
+
+		ArrayList<String[]> labels = new ArrayList<>();
+		ArrayList<Integer> found = new ArrayList<>();
+		for (int g = 0; g < groups; ++g) {
+			if (registrants[g] == 0) continue;
+
+			String[] label = new String[n];
+			int rest = g;
+			for (int i = n - 1; i >= 0; --i) {
+				label[i] = table[i].getValue(column[i],rest % radix[i]);
+				rest /= radix[i];
+			}
+			labels.add(label);
+			found.add(g);
+		}
+
+		Integer[] order = new Integer[found.size()];
+		for (int i = 0; i < order.length; ++i) order[i] = i;
+		Arrays.sort(order,Comparator.comparing(i -> labels.get(i),DemographicReport::compareLabels));
+
+		String[][] sortedLabels = new String[order.length][];
+		int[] sortedRegistrants = new int[order.length];
+		int[][] sortedCounts = new int[MEASURES.length][order.length];
+		for (int i = 0; i < order.length; ++i) {
+			int g = found.get(order[i]);
+			String[] label = labels.get(order[i]);
+			for (int f = 0; f < n; ++f) {
+				if (label[f] == null) label[f] = "(none)";
+				else if (label[f].isEmpty()) label[f] = "(blank)";
+			}
+			sortedLabels[i] = label;
+			sortedRegistrants[i] = registrants[g];
+			for (int m = 0; m < MEASURES.length; ++m) sortedCounts[m][i] = counts[m][g];
+		}
+
+		Metrics.stage("demographics").time("group",time);
+		return new Breakdown(fields.clone(),sortedLabels,sortedRegistrants,sortedCounts);
+	}
+
+	/**
+	 * Order groups by their values, field by field, with no value last
+	 */
+	private static int compareLabels(String[] a, String[] b)
+	{
+		for (int i = 0; i < a.length; ++i) {
+			if (a[i] == null) {
+				if (b[i] != null) return 1;
+			} else if (b[i] == null) {
+				return -1;
+			} else {
+				int c = a[i].compareTo(b[i]);
+				if (c != 0) return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Determine if we found any demographic data
+	 * @return True if we have at least one field to group by
+	 */
+	public boolean hasData()
+	{
+		return !tables.isEmpty();
+	}
+
+	/**
+	 * Print our results.
+	 * @throws IOException
+	 */
+	@Override
+	public void finish() throws IOException
+	{
+		loadTables();
+		System.out.println();
+		print(System.out);
+	}
+
+	/**
+	 * Write our breakdowns: the ones we were asked for, or one for each
+	 * field we have.
+	 * @param out The stream to write to
+	 */
+	public void print(PrintStream out)
+	{
+		if (tables.isEmpty()) {
+			out.println("No demographic data");
+			return;
+		}
+
+		if (groupings.length > 0) {
+			for (String[] g: groupings) {
+				try {
+					group(g).print(out);
+				}
+				catch (IllegalArgumentException ex) {
+					out.println(ex.getMessage());
+				}
+				out.println();
+			}
+		} else {
+			for (DemographicTable t: tables) {
+				for (int c = 0; c < t.getColumnCount(); ++c) {
+					if (t.isDropped(c)) continue;
+					try {
+						group(new String[] { t.getColumn(c) }).print(out);
+					}
+					catch (IllegalArgumentException ex) {
+						out.println(ex.getMessage());
+					}
+					out.println();
+				}
+			}
+		}
+	}
+}
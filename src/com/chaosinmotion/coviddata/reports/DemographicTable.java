@@ -0,0 +1,310 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.csv.CSVPipeline;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.utils.CompressedInput;
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+import com.chaosinmotion.coviddata.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A table of facts about each registrant, such as those in the registrants
+ * file or the race and ethnicity file, keyed by REGISTRANT_CODE. This is the
+ * small side of a join against the registrants of the check-in file: rather
+ * than hold each row, we keep one column per field we were asked for, indexed
+ * by the registrant IDs of RegistrantVisits, so a registrant's fields are
+ * found with an array lookup rather than a hash of their code.
+ *
+ * Each column is dictionary encoded: the distinct values of the field are
+ * kept once in a dictionary, and the column holds the ID of each registrant's
+ * value plus one, or 0 if the registrant has no row in the file. Most of
+ * these fields have a handful of values, so a column of 9.5 million
+ * registrants costs an int array and nothing else.
+ *
+ * Registrants who never checked in are skipped. A registrant may have more
+ * than one row, such as one row per race; if their rows disagree, the values
+ * are sorted and joined with ':', as with HEALTHCARE_VISITS, ignoring blank
+ * values, so the same values group together whatever order the rows are in.
+ *
+ * A field with more than MAX_VALUES distinct values, such as a date or an
+ * ID, is not a category worth breaking down by, so we drop it. The file is
+ * read twice: once to find the values of each field, and once to encode the
+ * fields we kept, so a dropped field never costs an array of registrants.
+ */
+public class DemographicTable
+{
+	private static final Metrics.Stage METRICS = Metrics.stage("demographics");
+
+	public static final int MAX_VALUES = 1000;
+
+	private final String[] columns;
+	private final RegistrantDictionary[] values;
+	private final int[][] codes;
+
+	private long rows;
+	private long unmatched;				// rows for registrants with no check-ins
+
+	private DemographicTable(String[] columns)
+	{
+		this.columns = columns;
+		values = new RegistrantDictionary[columns.length];
+		codes = new int[columns.length][];
+		for (int i = 0; i < columns.length; ++i) {
+			values[i] = new RegistrantDictionary(64);
+		}
+	}
+
+	/**
+	 * Return the fields of a file other than REGISTRANT_CODE, which may be
+	 * loaded as columns.
+	 * @param f The file, as returned by CompressedInput.find()
+	 * @return The field names
+	 * @throws IOException
+	 */
+	public static String[] readFields(File f) throws IOException
+	{
+		try (InputStream in = CompressedInput.open(f)) {
+			String[] toc = new CSVPipeline(in).readTOC();
+			if (toc == null) return new String[0];
+
+			int key = Utils.lookup(toc,"REGISTRANT_CODE");
+			String[] fields = new String[toc.length - 1];
+			for (int i = 0, j = 0; i < toc.length; ++i) {
+				if (i != key) fields[j++] = toc[i];
+			}
+			return fields;
+		}
+	}
+
+	/**
+	 * Load the named fields of a file, for the registrants we have visits for.
+	 * The file is read on a pipeline, so it is parsed on another thread while
+	 * we encode each row.
+	 * @param f The file, as returned by CompressedInput.find()
+	 * @param visits The registrants to load, which give our registrant IDs
+	 * @param fields The fields to load
+	 * @return The table
+	 * @throws IOException
+	 */
+	public static DemographicTable read(File f, RegistrantVisits visits, String[] fields) throws IOException
+	{
+		DemographicTable table = new DemographicTable(fields);
+		long time = System.nanoTime();
+
+		table.read(f,visits,false);
+		METRICS.time("values",time);
+		for (int c = 0; c < fields.length; ++c) {
+			if (!table.isDropped(c)) table.codes[c] = new int[visits.size()];
+		}
+
+		table.read(f,visits,true);
+		METRICS.time("load",time);
+		METRICS.add("rows",table.rows);
+		METRICS.add("unmatched",table.unmatched);
+		return table;
+	}
+
+	/**
+	 * Read the file
+	 * @param f The file
+	 * @param visits The registrants to load
+	 * @param encode False to only find the values of each field, or true to
+	 *               set the value of each registrant
+	 * @throws IOException
+	 */
+	private void read(File f, RegistrantVisits visits, boolean encode) throws IOException
+	{
+		rows = 0;
+		unmatched = 0;
+
+		try (InputStream in = CompressedInput.open(f)) {
+			CSVPipeline pipeline = new CSVPipeline(in);
+			String[] toc = pipeline.readTOC();
+			if (toc == null) return;
+
+			int key = Utils.lookup(toc,"REGISTRANT_CODE");
+			int[] index = new int[columns.length];
+			for (int i = 0; i < columns.length; ++i) {
+				index[i] = Utils.lookup(toc,columns[i],toc.length);
+				if (index[i] == toc.length) throw new IOException("No field " + columns[i] + " in " + f);
+			}
+
+			pipeline.run(row -> {
+				++rows;
+				if (row.getFieldCount() <= key) return;		// Should never happen.
+
+				int id = visits.find(row.getBuffer(),row.getStart(key),row.getLength(key));
+				if (id < 0) {
+					++unmatched;
+					return;
+				}
+				for (int c = 0; c < index.length; ++c) {
+					set(c,id,row,index[c],encode);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Set a registrant's value of a column from a field of the row
+	 * @param encode False to only add the value to the column's values
+	 */
+	private void set(int column, int id, CSVRow row, int field, boolean encode)
+	{
+		RegistrantDictionary dict = values[column];
+		if (dict == null) return;			// Too many values
+		int code;
+		if (row.getFieldCount() <= field) {
+			code = dict.add("");
+		} else {
+			code = dict.add(row.getBuffer(),row.getStart(field),row.getLength(field));
+		}
+		if (drop(column) || !encode) return;
+
+		int old = codes[column][id] - 1;
+		if ((old < 0) || (old == code)) {
+			codes[column][id] = code + 1;
+			return;
+		}
+
+		/*
+		 *	A second row which disagrees. This is rare, so we don't mind
+		 * 	working with strings.
+		 */
+
+		String prev = dict.getCode(old);
+		String value = dict.getCode(code);
+		if (value.isEmpty()) return;
+		if (prev.isEmpty()) {
+			codes[column][id] = code + 1;
+			return;
+		}
+		String[] parts = prev.split(":");
+		for (String v: parts) {
+			if (v.equals(value)) return;
+		}
+		parts = Arrays.copyOf(parts,parts.length + 1);
+		parts[parts.length - 1] = value;
+		Arrays.sort(parts);
+		code = dict.add(String.join(":",parts));
+		if (!drop(column)) codes[column][id] = code + 1;
+	}
+
+	/**
+	 * Drop a column if it has too many values
+	 * @return True if the column was dropped
+	 */
+	private boolean drop(int column)
+	{
+		if (values[column].size() <= MAX_VALUES) return false;
+		values[column] = null;
+		codes[column] = null;
+		return true;
+	}
+
+	/**
+	 * The number of columns
+	 */
+	public int getColumnCount()
+	{
+		return columns.length;
+	}
+
+	/**
+	 * The name of a column, which is the name of its field
+	 * @param column The column
+	 * @return The name
+	 */
+	public String getColumn(int column)
+	{
+		return columns[column];
+	}
+
+	/**
+	 * Find a column by name, ignoring case as Utils.lookup does
+	 * @param name The field name
+	 * @return The column, or -1 if we don't have it
+	 */
+	public int findColumn(String name)
+	{
+		int i = Utils.lookup(columns,name,columns.length);
+		return (i == columns.length) ? -1 : i;
+	}
+
+	/**
+	 * Determine if a column was dropped for having more than MAX_VALUES
+	 * values. Such a column has no codes or values.
+	 * @param column The column
+	 * @return True if the column was dropped
+	 */
+	public boolean isDropped(int column)
+	{
+		return values[column] == null;
+	}
+
+	/**
+	 * The number of codes in a column, including 0 for no value. Codes run
+	 * from 0 to getCodeCount() - 1.
+	 * @param column The column
+	 * @return The number of codes
+	 */
+	public int getCodeCount(int column)
+	{
+		return values[column].size() + 1;
+	}
+
+	/**
+	 * The registrant's value of a column
+	 * @param column The column
+	 * @param id The registrant ID
+	 * @return The code of the value, or 0 if the registrant has no row
+	 */
+	public int getCode(int column, int id)
+	{
+		return codes[column][id];
+	}
+
+	/**
+	 * The codes of every registrant for a column. This must not be changed.
+	 * @param column The column
+	 * @return The codes, indexed by registrant ID
+	 */
+	int[] getCodes(int column)
+	{
+		return codes[column];
+	}
+
+	/**
+	 * The value for a code
+	 * @param column The column
+	 * @param code The code
+	 * @return The value, or null for code 0
+	 */
+	public String getValue(int column, int code)
+	{
+		return (code == 0) ? null : values[column].getCode(code - 1);
+	}
+
+	/**
+	 * The number of rows read, including those for registrants with no
+	 * check-ins
+	 */
+	public long getRowCount()
+	{
+		return rows;
+	}
+
+	/**
+	 * The number of rows for registrants with no check-ins, which were
+	 * skipped
+	 */
+	public long getUnmatchedCount()
+	{
+		return unmatched;
+	}
+}
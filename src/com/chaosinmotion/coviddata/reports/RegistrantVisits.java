@@ -0,0 +1,142 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.utils.ColumnKernel;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+
+/**
+ * The health care visits of every registrant, as counted by Report1, for any
+ * report which needs to know who sought care. Report1 builds this once per
+ * run, from its cache or from the scan of the check-in file, and hands the
+ * same instance to every report which asks for it, so the visit counts are
+ * only loaded once and only held in memory once.
+ *
+ * Once built this never changes: Report1 hands over its dictionary and visit
+ * table and makes no further changes to them. So it may be read from any
+ * number of threads, such as the chunks of a scan or the requests of the
+ * query server, without locking.
+ *
+ * Registrants may be looked up by code, either from a string or directly
+ * from the bytes of a CSVRow, and the visit flags of every registrant are
+ * computed once up front, as most reports only need to know whether a
+ * registrant had a visit of each type.
+ */
+public class RegistrantVisits
+{
+	private final RegistrantDictionary dict;
+	private final VisitTable visits;
+	private final byte[] flags;
+	private final int size;
+
+	/**
+	 * Wrap the visit table. The table must hold every registrant in the
+	 * dictionary, and neither may be changed once this is built.
+	 * @param dict The registrant dictionary
+	 * @param visits The visit counts, indexed by registrant ID
+	 */
+	RegistrantVisits(RegistrantDictionary dict, VisitTable visits)
+	{
+		if (visits.size() != dict.size()) {
+			throw new RuntimeException("Programmer is an idiot; visit table has " + visits.size() + " registrants, dictionary " + dict.size());
+		}
+
+		this.dict = dict;
+		this.visits = visits;
+		this.size = dict.size();
+		this.flags = visits.getFlags();
+	}
+
+	/**
+	 * The number of registrants. IDs run from 0 to size() - 1.
+	 * @return The number of registrants
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Find the ID of a registrant
+	 * @param buffer The buffer containing the registrant code
+	 * @param s The start of the code
+	 * @param len The length of the code
+	 * @return The ID, or -1 if there is no such registrant
+	 */
+	public int find(byte[] buffer, int s, int len)
+	{
+		return dict.find(buffer,s,len);
+	}
+
+	/**
+	 * Find the ID of a registrant
+	 * @param code The registrant code
+	 * @return The ID, or -1 if there is no such registrant
+	 */
+	public int find(String code)
+	{
+		return dict.find(code);
+	}
+
+	/**
+	 * Return the registrant code for the ID
+	 * @param id The registrant ID
+	 * @return The registrant code
+	 */
+	public String getCode(int id)
+	{
+		return dict.getCode(id);
+	}
+
+	public int getER(int id)
+	{
+		return visits.getER(id);
+	}
+
+	public int getHospital(int id)
+	{
+		return visits.getHospital(id);
+	}
+
+	public int getOutpatient(int id)
+	{
+		return visits.getOutpatient(id);
+	}
+
+	public int getTelehealth(int id)
+	{
+		return visits.getTelehealth(id);
+	}
+
+	/**
+	 * The types of visit the registrant made
+	 * @param id The registrant ID
+	 * @return The VisitTable.VISIT_XXX flags
+	 */
+	public int getFlags(int id)
+	{
+		return flags[id];
+	}
+
+	/**
+	 * Determine if the registrant had any health care visit. An ID we
+	 * don't know, such as one found in rows appended since, had none.
+	 * @param id The registrant ID
+	 * @return True if the registrant had a visit
+	 */
+	public boolean hasVisit(int id)
+	{
+		return (id >= 0) && (id < size) && (flags[id] != 0);
+	}
+
+	/**
+	 * Count the registrants with each type of visit.
+	 * @param counts Set to the number of registrants with an ER, hospital,
+	 *               outpatient and telehealth visit, in that order
+	 * @return The number of registrants with any visit
+	 */
+	public int countVisits(long[] counts)
+	{
+		ColumnKernel kernel = ColumnKernel.get();
+		kernel.bitCounts(flags,size,counts);
+		return (int)kernel.countNonZero(flags,size);
+	}
+}
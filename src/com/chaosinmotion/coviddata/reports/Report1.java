@@ -1,15 +1,21 @@
 package com.chaosinmotion.coviddata.reports;
 
+import com.chaosinmotion.coviddata.utils.CacheManifest;
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
 import com.chaosinmotion.coviddata.utils.Utils;
-import com.chaosinmotion.coviddata.csv.CSVParser;
-import com.chaosinmotion.coviddata.csv.CSVWriter;
+import com.chaosinmotion.coviddata.csv.ByteCSVWriter;
+import com.chaosinmotion.coviddata.csv.CSVAccumulator;
+import com.chaosinmotion.coviddata.csv.CSVChunkScanner;
+import com.chaosinmotion.coviddata.csv.CSVPipeline;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.csv.SegmentIndex;
+import com.chaosinmotion.coviddata.csv.FieldDecoder;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.PrintStream;
 
 /**
  * Each report basically scours the health data set to figure out certain
@@ -28,210 +34,364 @@ import java.util.Map;
  * REGISTRANT_CODE. We then accumulate the number of patients who reported
  * an event.
  */
-public class Report1
+public class Report1 implements CheckinReport
 {
-	public static class Visit
+	/*
+	 *	The values of HEALTHCARE_VISITS, in the order of the VisitTable
+	 * 	VISIT_XXX flags
+	 */
+	private static final FieldDecoder visitDecoder = new FieldDecoder(new String[] {
+		"Emergency room or emergency department visit",
+		"Hospitalization",
+		"Outpatient clinic or urgent care clinic visit",
+		"Telehealth, virtual health, or email health consultation"
+	});
+
+	/**
+	 * Decode the colon-separated HEALTHCARE_VISITS field into a set of
+	 * VisitTable.VISIT_XXX flags, working directly on the bytes of the row.
+	 * @param row The row being parsed
+	 * @param index The index of the HEALTHCARE_VISITS column
+	 * @return The visit flags
+	 */
+	private static int visitFlags(CSVRow row, int index)
+	{
+		byte[] buffer = row.getBuffer();
+		int s = row.getStart(index);
+		int e = s + row.getLength(index);
+		int flags = 0;
+
+		while (s < e) {
+			int p = s;
+			while ((p < e) && (buffer[p] != ':')) ++p;
+
+			int i = visitDecoder.find(buffer,s,p - s);
+			if (i == -1) {
+				throw new RuntimeException("Programmer is an idiot; flag " + row.getString(index) + " not found");
+			}
+			flags |= 1 << i;
+			s = p + 1;
+		}
+		return flags;
+	}
+
+	/**
+	 * Accumulates the visit counts for each registrant for a chunk of the
+	 * health check-in file.
+	 */
+	private static class VisitAccumulator implements CheckinAccumulator<VisitAccumulator>
+	{
+		private final int hvisit;
+		private final VisitTable visitCount = new VisitTable();
+
+		VisitAccumulator(String[] toc)
+		{
+			hvisit = Utils.lookup(toc,"HEALTHCARE_VISITS");
+		}
+
+		@Override
+		public void accept(int registrant, CSVRow row)
+		{
+			/*
+			 *	Decode the health visit flags directly from the bytes in
+			 * 	the row, and increment the appropriate fields.
+			 */
+
+			int flags = (hvisit >= row.getFieldCount()) ? 0 : visitFlags(row,hvisit);
+			visitCount.add(registrant,flags);
+		}
+
+		@Override
+		public void merge(VisitAccumulator other, int[] remap)
+		{
+			visitCount.merge(other.visitCount,remap);
+		}
+	}
+
+	/**
+	 * Reads a segment of our cache. The rows of registrants already in the
+	 * dictionary are set in place in the shared visit table; the rows of new
+	 * registrants are kept, in order, to be added once the segments have been
+	 * merged.
+	 */
+	private static class CacheAccumulator implements CSVAccumulator<CacheAccumulator>
 	{
-		// Emergency room or emergency department visit
-		int er;
-		// Hospitalization
-		int hospital;
-		// Outpatient clinic or urgent care clinic visit
-		int outpatient;
-		// Telehealth, virtual health, or email health consultation
-		int telehealth;
-
-		boolean hasVisit()
+		private final RegistrantDictionary dict;
+		private final VisitTable visitCount;
+		private final RegistrantDictionary pending = new RegistrantDictionary(16);
+		private final VisitTable pendingCount = new VisitTable(16);
+
+		CacheAccumulator(RegistrantDictionary dict, VisitTable visitCount)
+		{
+			this.dict = dict;
+			this.visitCount = visitCount;
+		}
+
+		@Override
+		public void accept(CSVRow row)
+		{
+			int id = dict.find(row.getBuffer(),row.getStart(0),row.getLength(0));
+			if (id >= 0) {
+				visitCount.set(id,row.getInt(1),row.getInt(2),row.getInt(3),row.getInt(4));
+			} else {
+				id = pending.add(row.getBuffer(),row.getStart(0),row.getLength(0));
+				pendingCount.set(id,row.getInt(1),row.getInt(2),row.getInt(3),row.getInt(4));
+			}
+		}
+
+		@Override
+		public void merge(CacheAccumulator other)
 		{
-			return (er != 0) || (hospital != 0) || (outpatient != 0) || (telehealth != 0);
+			int[] remap = pending.merge(other.pending);
+			pendingCount.merge(other.pendingCount,remap);
 		}
 	}
 
+	// Version of the hinteraction.csv format
+	private static final int VERSION = 1;
+
+	private static final File CACHE = new File("cache/hinteraction.csv");
+	private static final File CHECKIN = new File("data/consolidated_health_checkin.csv");
+
+	private CacheManifest manifest;
+	private RegistrantDictionary dict;
+	private VisitTable visitCount;			// while being loaded or scanned
+	private RegistrantVisits visits;		// once final
+
 	/**
-	 * Run our report. Print our results. Note we return the total number of
-	 * registrants so we can quickly calculate percentages.
+	 * Load the visit counts from our cache.
+	 * @param f The hinteraction.csv cache file
+	 * @param dict The dictionary to fill. Registrants already in the
+	 *             dictionary keep their IDs; new registrants are added in
+	 *             the order they appear in the cache.
+	 * @return The visits, indexed by registrant ID
 	 * @throws IOException
 	 */
-	public static int run() throws IOException
+	static VisitTable readCache(File f, RegistrantDictionary dict) throws IOException
 	{
-		HashMap<String,Visit> visitCount = new HashMap<>();
+		long[] segments = SegmentIndex.read(f);
+		if (segments != null) return readSegments(f,segments,dict);
+
+		FileInputStream fis = new FileInputStream(f);
+		CSVPipeline pipeline = new CSVPipeline(fis);
+		pipeline.readTOC();			// skip toc
 
 		/*
-		 *	Before we go through this heavy lifting, see if we've cached the
-		 * 	data first.
+		 *	The rows come to us in order, so new registrants are added to
+		 * 	the dictionary in the order they appear in the cache.
 		 */
-		File f = new File("cache/hinteraction.csv");
-		if (f.exists()) {
-			System.out.println("Reading cache");
 
-			/*
-			 *	Open our cache.
-			 */
+		VisitTable visitCount = new VisitTable(dict.size());
+		pipeline.run(row -> {
+			int id = dict.add(row.getBuffer(),row.getStart(0),row.getLength(0));
+			visitCount.set(id,row.getInt(1),row.getInt(2),row.getInt(3),row.getInt(4));
+		});
 
-			FileReader fr = new FileReader(f);
-			CSVParser parser = new CSVParser(fr);
-			parser.readRow();			// skip toc
+		fis.close();
+		return visitCount;
+	}
 
-			for (;;) {
-				String[] row = parser.readRow();
-				if (row == null) break;
+	/**
+	 * Load the visit counts from our cache in parallel, a segment of the
+	 * segment index at a time.
+	 *
+	 * The visit table is sized to the dictionary before we start, so setting
+	 * a registrant's counts never grows it, and each row is a different
+	 * registrant, so no two segments write the same entry. The registrants
+	 * not in the dictionary are added once the segments are merged, in the
+	 * order they appear in the cache, just as readCache does.
+	 */
+	private static VisitTable readSegments(File f, long[] segments, RegistrantDictionary dict) throws IOException
+	{
+		VisitTable visitCount = new VisitTable(dict.size());
+		visitCount.setSize(dict.size());
 
-				Visit v = new Visit();
-				v.er = Integer.parseInt(row[1]);
-				v.hospital = Integer.parseInt(row[2]);
-				v.outpatient = Integer.parseInt(row[3]);
-				v.telehealth = Integer.parseInt(row[4]);
+		CSVChunkScanner scanner = new CSVChunkScanner(f);
+		CacheAccumulator acc = scanner.scan(toc -> new CacheAccumulator(dict,visitCount),segments);
 
-				visitCount.put(row[0],v);
-			}
+		int[] remap = dict.merge(acc.pending);
+		visitCount.merge(acc.pendingCount,remap);
+		return visitCount;
+	}
 
-			fr.close();
+	@Override
+	public boolean canAppend(CacheManifest manifest, long offset) throws IOException
+	{
+		if (manifest.check(CACHE,VERSION,CHECKIN) != CacheManifest.Status.APPENDED) return false;
+		return manifest.getInputSize(CACHE,CHECKIN) == offset;
+	}
 
-			System.out.println("Finished reading cache");
-		} else {
-			/*
-			 *	Open our big massive file, and track the TOC indexes for the
-			 * 	fields I'm interested in
-			 */
-			FileReader fr = new FileReader("data/consolidated_health_checkin.csv");
-			CSVParser parser = new CSVParser(fr);
-			String[] firstRow = parser.readRow();
+	/**
+	 * Before we go through this heavy lifting, see if we've cached the data
+	 * first. If only new rows are being scanned, we load our cache and add
+	 * the visits from the new rows to it.
+	 */
+	@Override
+	public boolean load(RegistrantDictionary dict, CacheManifest manifest, long offset) throws IOException
+	{
+		this.manifest = manifest;
+		if ((dict == null) || ((offset == 0) && (manifest.check(CACHE,VERSION,CHECKIN) != CacheManifest.Status.VALID))) {
+			Metrics.cache(CACHE.getName(),false);
+			return true;
+		}
+		Metrics.cache(CACHE.getName(),true);
 
-			int hvisit = Utils.lookup(firstRow,"HEALTHCARE_VISITS");
-			int rindex = Utils.lookup(firstRow,"REGISTRANT_CODE");
+		System.out.println("Reading cache");
 
-			/*
-			 *	Now run the rest. This all takes time, you know.
-			 */
+		long time = System.nanoTime();
+		this.dict = dict;
+		visitCount = readCache(CACHE,dict);
+		Metrics.stage("report1").time("load",time);
 
-			int rowCount = 0;
-			for (;;) {
-				String[] row = parser.readRow();
-				if (row == null) break;
-
-				++rowCount;
-				if ((rowCount % 1000000) == 0) {
-					if ((rowCount % 10000000) == 0) {
-						System.out.print("+");
-					} else {
-						System.out.print("-");
-					}
-					if ((rowCount % 100000000) == 0) {
-						System.out.println();
-					}
-					System.out.flush();
-				}
-
-				if (row.length < rindex) continue;		// Should never happen.
-				String registrantCode = row[rindex];
-				String healthVisit = (hvisit >= row.length) ? "" : row[hvisit];
-
-				boolean er = false;
-				boolean hospital = false;
-				boolean outpatient = false;
-				boolean telehealth = false;
-				if (!healthVisit.isEmpty()) {
-					String[] hflags = healthVisit.split(":");
-
-					for (String h : hflags) {
-						if (h.equalsIgnoreCase("Emergency room or emergency department visit")) {
-							er = true;
-						} else if (h.equalsIgnoreCase("Hospitalization")) {
-							hospital = true;
-						} else if (h.equalsIgnoreCase("Outpatient clinic or urgent care clinic visit")) {
-							outpatient = true;
-						} else if (h.equalsIgnoreCase("Telehealth, virtual health, or email health consultation")) {
-							telehealth = true;
-						} else {
-							throw new RuntimeException("Programmer is an idiot; flag " + h + " not found");
-						}
-					}
-				}
-
-				/*
-				 *	Now get the registrant's health flags and increment the
-				 * 	appropriate fields.
-				 */
-
-				Visit v = visitCount.get(registrantCode);
-				if (v == null) {
-					v = new Visit();
-					visitCount.put(registrantCode,v);
-				}
-
-				if (er) v.er++;
-				if (hospital) v.hospital++;
-				if (outpatient) v.outpatient++;
-				if (telehealth) v.telehealth++;
-			}
+		System.out.println("Finished reading cache");
 
-			fr.close();
+		/*
+		 *	If only new rows are being scanned, our counts are updated in
+		 * 	scanned(); otherwise they are final, and other reports may use
+		 * 	them while the file is being scanned.
+		 */
 
-			/*
-			 *	Now write our cache. This will be much quicker to load later.
-			 */
+		if (offset != 0) return true;
+		visitCount.setSize(dict.size());
+		publish();
+		return false;
+	}
 
-			FileWriter outfile = new FileWriter(f);
-			CSVWriter writer = new CSVWriter(outfile);
-
-			String[] row = new String[5];
-			row[0] = "REGISTRANT_CODE";
-			row[1] = "ER";
-			row[2] = "HOSPITAL";
-			row[3] = "OUTPATIENT";
-			row[4] = "TELEHEALTH";
-			writer.writeRow(row);
-
-			for (Map.Entry<String,Visit> e: visitCount.entrySet()) {
-				Visit v = e.getValue();
-
-				row[0] = e.getKey();
-				row[1] = Integer.toString(v.er);
-				row[2] = Integer.toString(v.hospital);
-				row[3] = Integer.toString(v.outpatient);
-				row[4] = Integer.toString(v.telehealth);
-				writer.writeRow(row);
-			}
+	@Override
+	public CheckinAccumulator<?> createAccumulator(String[] toc)
+	{
+		return new VisitAccumulator(toc);
+	}
 
-			writer.close();
+	@Override
+	public void scanned(RegistrantDictionary dict, CheckinAccumulator<?> acc, int[] remap) throws IOException
+	{
+		VisitTable scanned = ((VisitAccumulator)acc).visitCount;
+		if (visitCount == null) {
+			visitCount = scanned;
+		} else {
+			visitCount.merge(scanned,remap);
 		}
 
+		this.dict = dict;
+		visitCount.setSize(dict.size());
 
+		/*
+		 *	Now write our cache. This will be much quicker to load later.
+		 * 	Rows are written in registrant ID order, and are built in
+		 * 	parallel with the counts formatted straight into the output.
+		 */
 
+		Metrics.Stage metrics = Metrics.stage("report1").start();
+		ByteCSVWriter writer = new ByteCSVWriter(CACHE);
+
+		String[] row = new String[5];
+		row[0] = "REGISTRANT_CODE";
+		row[1] = "ER";
+		row[2] = "HOSPITAL";
+		row[3] = "OUTPATIENT";
+		row[4] = "TELEHEALTH";
+		writer.writeRow(row);
+
+		VisitTable visits = visitCount;
+		writer.writeRows(dict.size(),(id,out) -> {
+			out.field(dict.getCode(id));
+			out.field(visits.getER(id));
+			out.field(visits.getHospital(id));
+			out.field(visits.getOutpatient(id));
+			out.field(visits.getTelehealth(id));
+			out.endRow();
+		});
+
+		writer.close();
+		SegmentIndex.write(CACHE,writer.getSegments());
+		manifest.update(CACHE,VERSION,CHECKIN);
+
+		metrics.add("rows",dict.size());
+		metrics.stop();
+
+		publish();
+	}
+
+	/**
+	 * Our counts are final: hand them over to the reports which share them.
+	 * We make no further changes to the table or dictionary after this.
+	 */
+	private void publish()
+	{
+		visits = new RegistrantVisits(dict,visitCount);
+		visitCount = null;
+		Metrics.stage("report1").set("registrants",visits.size());
+	}
+
+	/**
+	 * The visit counts for each registrant, shared by every report which
+	 * needs them. This is null until the report engine has loaded or
+	 * scanned our data; reports given a check-in row during the scan may
+	 * only use it if it was already available when the scan started.
+	 * @return The visits
+	 */
+	public RegistrantVisits getVisits()
+	{
+		return visits;
+	}
+
+	public RegistrantDictionary getDictionary()
+	{
+		return dict;
+	}
+
+	/**
+	 * Returns the total number of registrants, so later reports can quickly
+	 * calculate percentages.
+	 * @return The number of registrants
+	 */
+	public int getTotalCount()
+	{
+		return visits.size();
+	}
+
+	/**
+	 * Print our results.
+	 */
+	@Override
+	public void finish()
+	{
+		System.out.println();
+		print(System.out);
+	}
+
+	/**
+	 * Write our results.
+	 * @param out The stream to write to
+	 */
+	public void print(PrintStream out)
+	{
 		/*
 		 *	At this point we have a list of registrant codes and counts of
 		 * 	their interactions with health care providers. Dump our results.
 		 */
 
-		int totalCount = visitCount.size();		// Total # of unique registrant codes
+		int totalCount = visits.size();		// Total # of unique registrant codes
 
-		int totalER = 0;
-		int totalHospital = 0;
-		int totalOutpatient = 0;
-		int totalTelehealth = 0;
-		int anyReaction = 0;
-
-		for (Map.Entry<String,Visit> e: visitCount.entrySet()) {
-			Visit v = e.getValue();
+		/*
+		 *	Rather than test each registrant's counts in turn, count the
+		 * 	bits of the visit flags of every registrant.
+		 */
 
-			if (v.er != 0) totalER++;
-			if (v.hospital != 0) totalHospital++;
-			if (v.outpatient != 0) totalOutpatient++;
-			if (v.telehealth != 0) totalTelehealth++;
+		long[] counts = new long[4];
+		int anyReaction = visits.countVisits(counts);
 
-			if ((v.er != 0) || (v.hospital != 0) || (v.outpatient != 0) || (v.telehealth != 0)) {
-				anyReaction++;
-			}
-		}
+		int totalER = (int)counts[0];
+		int totalHospital = (int)counts[1];
+		int totalOutpatient = (int)counts[2];
+		int totalTelehealth = (int)counts[3];
 
-		System.out.println();
-		System.out.println("Total registrants: " + totalCount);
-		System.out.println("Any:               " + anyReaction + " " + Utils.perc(anyReaction,totalCount));
-		System.out.println("ER Visits:         " + totalER + " " + Utils.perc(totalER,totalCount));
-		System.out.println("Hospital Visits:   " + totalHospital + " " + Utils.perc(totalHospital,totalCount));
-		System.out.println("Outpatient Visits: " + totalOutpatient + " " + Utils.perc(totalOutpatient,totalCount));
-		System.out.println("Telehealth Visits: " + totalTelehealth + " " + Utils.perc(totalTelehealth,totalCount));
-
-		return totalCount;
+		out.println("Total registrants: " + totalCount);
+		out.println("Any:               " + anyReaction + " " + Utils.perc(anyReaction,totalCount));
+		out.println("ER Visits:         " + totalER + " " + Utils.perc(totalER,totalCount));
+		out.println("Hospital Visits:   " + totalHospital + " " + Utils.perc(totalHospital,totalCount));
+		out.println("Outpatient Visits: " + totalOutpatient + " " + Utils.perc(totalOutpatient,totalCount));
+		out.println("Telehealth Visits: " + totalTelehealth + " " + Utils.perc(totalTelehealth,totalCount));
 	}
 }
@@ -1,8 +1,20 @@
 package com.chaosinmotion.coviddata.reports;
 
+import com.chaosinmotion.coviddata.utils.CacheManifest;
+import com.chaosinmotion.coviddata.utils.ColumnKernel;
+import com.chaosinmotion.coviddata.utils.CompressedInput;
 import com.chaosinmotion.coviddata.utils.GregorianDate;
+import com.chaosinmotion.coviddata.utils.IntList;
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.RecordArena;
+import com.chaosinmotion.coviddata.utils.RecordSorter;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
 import com.chaosinmotion.coviddata.utils.Utils;
-import com.chaosinmotion.coviddata.csv.CSVParser;
+import com.chaosinmotion.coviddata.csv.CSVAccumulator;
+import com.chaosinmotion.coviddata.csv.CSVChunkScanner;
+import com.chaosinmotion.coviddata.csv.CSVPipeline;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.csv.FieldDecoder;
 
 import java.io.*;
 import java.nio.Buffer;
@@ -15,35 +27,35 @@ import java.util.*;
  * some other interesting information by looking through the history of those
  * who sought care.
  *
- * This requires Report1 to have been run, so we can load the cached values
- * for health care interaction.
+ * This requires Report1 to have been run, so we can use the visits it
+ * counted (see RegistrantVisits) rather than loading them again.
  */
-public class Report2
+public class Report2 implements CheckinReport
 {
-	private static String[] reaction = { "", "Mild", "Moderate", "Severe" };
-	private static String[] healthNow = { "", "Excellent", "Good", "Fair", "Poor" };
-	private static String[] feeling = { "", "Poor", "Fair", "Good" };
-	private static String[] healthImpact = {
+	static String[] reaction = { "", "Mild", "Moderate", "Severe" };
+	static String[] healthNow = { "", "Excellent", "Good", "Fair", "Poor" };
+	static String[] feeling = { "", "Poor", "Fair", "Good" };
+	static String[] healthImpact = {
 			"Be unable to do their normal daily activities",
 			"Be unable to work",
 			"Be unable to do your normal daily activities",
 			"Get care from a doctor or other healthcare professional",
 			"Be unable to work or attend school"
 	};
-	private static String[] healthChange = { "", "Worse", "About the same", "Better" };
-	private static String[] healthVisit = {
+	static String[] healthChange = { "", "Worse", "About the same", "Better" };
+	static String[] healthVisit = {
 		"Emergency room or emergency department visit",
 		"Hospitalization",
 		"Outpatient clinic or urgent care clinic visit",
 		"Telehealth, virtual health, or email health consultation"
 	};
-	private static String[] pregnantStatus = {		// default == 0
+	static String[] pregnantStatus = {		// default == 0
 		"I don't know", "Yes", "No"
 	};
-	private static String[] siteReaction = {
+	static String[] siteReaction = {
 		"Pain", "Redness", "Swelling", "Itching"
 	};
-	private static String[] systemicReation = {
+	static String[] systemicReation = {
 		"Abdominal pain",
 		"Chills",
 		"Diarrhea",
@@ -55,7 +67,22 @@ public class Report2
 		"Rash, not including the immediate area around the injection site",
 		"Vomiting",
 	};
-	private static String[] yesno = { "No", "Yes" };
+	static String[] yesno = { "No", "Yes" };
+
+	/*
+	 *	Precompiled decoders for the above, which decode directly from the
+	 * 	bytes of a CSVRow.
+	 */
+	private static final FieldDecoder reactionDecoder = new FieldDecoder(reaction);
+	private static final FieldDecoder healthNowDecoder = new FieldDecoder(healthNow);
+	private static final FieldDecoder feelingDecoder = new FieldDecoder(feeling);
+	private static final FieldDecoder healthImpactDecoder = new FieldDecoder(healthImpact);
+	private static final FieldDecoder healthChangeDecoder = new FieldDecoder(healthChange);
+	private static final FieldDecoder healthVisitDecoder = new FieldDecoder(healthVisit);
+	private static final FieldDecoder pregnantStatusDecoder = new FieldDecoder(pregnantStatus);
+	private static final FieldDecoder siteReactionDecoder = new FieldDecoder(siteReaction);
+	private static final FieldDecoder systemicReactionDecoder = new FieldDecoder(systemicReation);
+	private static final FieldDecoder yesnoDecoder = new FieldDecoder(yesno);
 
 	/**
 	 * Provide a compact representation so we can quickly scan for stuff.
@@ -63,6 +90,8 @@ public class Report2
 	public static class Report
 	{
 		static final byte versionID = 1;
+		static final int SIZE = 37;			// # bytes written by write()
+		static final int DATE_OFFSET = 1;	// offset of the date written by write()
 
 		// For ABDOMINAL_PAIN, CHILLS, DIARRHEA, FATIGUE, HEADACHE, ITCHING,
 		// JOINT\_PAINS, MUSCLE\_OR\_BODY\_ACHES, NAUSEA, PAIN,
@@ -97,7 +126,7 @@ public class Report2
 		private static final int SITE_REACTION_SWELLING = 4;
 		private static final int SITE_REACTION_ITCHING = 8;
 
-		GregorianDate date;			// Date of this report
+		int date;					// Date of this report, as a day count
 		byte ABDOMINAL_PAIN;
 		byte CHILLS;
 		byte DIARRHEA;
@@ -127,12 +156,12 @@ public class Report2
 //		short TEMPERATURE_FAHRENHEIT;
 //		byte TEMPERATURE_READING;
 		boolean TESTED_POSITIVE;
-		GregorianDate TESTED_POSITIVE_DATE;
+		int TESTED_POSITIVE_DATE;		// day count, or 0 if not set
 		byte VOMITING;
 
 		public Report(String[] row) throws ParseException
 		{
-			date = new GregorianDate(row[3]);		// started on
+			date = GregorianDate.parse(row[3],0,row[3].length());		// started on
 
 			ABDOMINAL_PAIN = (byte)Utils.lookup(reaction,row[6]);
 			CHILLS = (byte)Utils.lookup(reaction,row[7]);
@@ -169,18 +198,129 @@ public class Report2
 
 			String testDate = row[35];
 			if (!testDate.equalsIgnoreCase("")) {
-				TESTED_POSITIVE_DATE = new GregorianDate(row[35]);
+				TESTED_POSITIVE_DATE = GregorianDate.parse(testDate,0,testDate.length());
 			}
 
 			VOMITING = (byte)Utils.lookup(reaction,row[36]);
 		}
 
+		/**
+		 * Decode a report directly from a row of the health check-in file.
+		 * This gives the same result as Report(row.toArray()), without
+		 * creating a string for each field.
+		 * @param row The row
+		 * @throws ParseException
+		 */
+		public Report(CSVRow row) throws ParseException
+		{
+			date = parseDate(row,3);		// started on
+
+			ABDOMINAL_PAIN = decode(row,ReportStore.ABDOMINAL_PAIN);
+			CHILLS = decode(row,ReportStore.CHILLS);
+			DIARRHEA = decode(row,ReportStore.DIARRHEA);
+			FATIGUE = decode(row,ReportStore.FATIGUE);
+			FEELING_TODAY = decode(row,ReportStore.FEELING_TODAY);
+			FEVER = decode(row,ReportStore.FEVER) == 1;
+			HAD_SYMPTOMS = decode(row,ReportStore.HAD_SYMPTOMS) == 1;
+			HEADACHE = decode(row,ReportStore.HEADACHE);
+			HEALTH_IMPACT = decode(row,ReportStore.HEALTH_IMPACT);
+			HEALTH_NOW = decode(row,ReportStore.HEALTH_NOW);
+			HEALTH_NOW_COMPARISON = decode(row,ReportStore.HEALTH_NOW_COMPARISON);
+			VACCINE_CAUSED_HEALTH_ISSUES = decode(row,ReportStore.VACCINE_CAUSED_HEALTH_ISSUES) == 1;
+			HEALTHCARE_VISITS = decode(row,ReportStore.HEALTHCARE_VISITS);
+			ITCHING = decode(row,ReportStore.ITCHING);
+			JOINT_PAINS = decode(row,ReportStore.JOINT_PAINS);
+			MUSCLE_OR_BODY_ACHES = decode(row,ReportStore.MUSCLE_OR_BODY_ACHES);
+			NAUSEA = decode(row,ReportStore.NAUSEA);
+			PAIN = decode(row,ReportStore.PAIN);
+			PREGNANT = decode(row,ReportStore.PREGNANT);
+			PREGNANCY_TEST = decode(row,ReportStore.PREGNANCY_TEST) == 1;
+			RASH_OUTSIDE_INJECTION_SITE = decode(row,ReportStore.RASH_OUTSIDE_INJECTION_SITE);
+			REDNESS = decode(row,ReportStore.REDNESS);
+			SITE_REACTION = decode(row,ReportStore.SITE_REACTION);
+			SWELLING = decode(row,ReportStore.SWELLING);
+
+			SYSTEMIC_REACTION = decodeSystemicReaction(row);
+			TESTED_POSITIVE = decode(row,ReportStore.TESTED_POSITIVE) == 1;
+
+			if (!row.isEmpty(35)) {
+				TESTED_POSITIVE_DATE = parseDate(row,35);
+			}
+
+			VOMITING = decode(row,ReportStore.VOMITING);
+		}
+
+		/**
+		 * Parse a date field of a row into a day count.
+		 * @param row The row
+		 * @param field The index of the field
+		 * @return The day count
+		 * @throws ParseException
+		 */
+		static int parseDate(CSVRow row, int field) throws ParseException
+		{
+			if (field >= row.getFieldCount()) throw new ParseException("Missing date",0);
+			return GregorianDate.parse(row.getBuffer(),row.getStart(field),row.getLength(field));
+		}
+
+		/**
+		 * Decode the SYSTEMIC_REACTION field of a row of the health check-in
+		 * file into a set of bits, one for each word of systemicReation.
+		 * @param row The row
+		 * @return The bits
+		 */
+		public static short decodeSystemicReaction(CSVRow row)
+		{
+			return (short)systemicReactionDecoder.fields(row,30);
+		}
+
+		/**
+		 * Decode a single field of a row of the health check-in file, so a
+		 * report which only needs a few fields doesn't need to decode them
+		 * all. Booleans decode to 0 or 1.
+		 * @param row The row
+		 * @param column The ReportStore column constant of the field
+		 * @return The decoded value, as stored in the ReportStore column
+		 */
+		public static byte decode(CSVRow row, int column)
+		{
+			switch (column) {
+				case ReportStore.ABDOMINAL_PAIN: return (byte)reactionDecoder.lookup(row,6);
+				case ReportStore.CHILLS: return (byte)reactionDecoder.lookup(row,7);
+				case ReportStore.DIARRHEA: return (byte)reactionDecoder.lookup(row,8);
+				case ReportStore.FATIGUE: return (byte)reactionDecoder.lookup(row,9);
+				case ReportStore.FEELING_TODAY: return (byte)feelingDecoder.lookup(row,10);
+				case ReportStore.FEVER: return (byte)yesnoDecoder.lookup(row,11,0);
+				case ReportStore.HAD_SYMPTOMS: return (byte)yesnoDecoder.lookup(row,12,0);
+				case ReportStore.HEADACHE: return (byte)reactionDecoder.lookup(row,13);
+				case ReportStore.HEALTH_IMPACT: return (byte)healthImpactDecoder.fields(row,14);
+				case ReportStore.HEALTH_NOW: return (byte)healthNowDecoder.lookup(row,15);
+				case ReportStore.HEALTH_NOW_COMPARISON: return (byte)healthChangeDecoder.lookup(row,16);
+				case ReportStore.VACCINE_CAUSED_HEALTH_ISSUES: return (byte)yesnoDecoder.lookup(row,17,0);
+				case ReportStore.HEALTHCARE_VISITS: return (byte)healthVisitDecoder.fields(row,18);
+				case ReportStore.ITCHING: return (byte)reactionDecoder.lookup(row,19);
+				case ReportStore.JOINT_PAINS: return (byte)reactionDecoder.lookup(row,20);
+				case ReportStore.MUSCLE_OR_BODY_ACHES: return (byte)reactionDecoder.lookup(row,21);
+				case ReportStore.NAUSEA: return (byte)reactionDecoder.lookup(row,22);
+				case ReportStore.PAIN: return (byte)reactionDecoder.lookup(row,23);
+				case ReportStore.PREGNANT: return (byte)pregnantStatusDecoder.lookup(row,24,0);
+				case ReportStore.PREGNANCY_TEST: return (byte)yesnoDecoder.lookup(row,25,0);
+				case ReportStore.RASH_OUTSIDE_INJECTION_SITE: return (byte)reactionDecoder.lookup(row,26);
+				case ReportStore.REDNESS: return (byte)reactionDecoder.lookup(row,27);
+				case ReportStore.SITE_REACTION: return (byte)siteReactionDecoder.fields(row,28);
+				case ReportStore.SWELLING: return (byte)reactionDecoder.lookup(row,29);
+				case ReportStore.TESTED_POSITIVE: return (byte)yesnoDecoder.lookup(row,34,0);
+				case ReportStore.VOMITING: return (byte)reactionDecoder.lookup(row,36);
+				default: throw new RuntimeException("Programmer is an idiot; column " + column + " unknown");
+			}
+		}
+
 		public Report(DataInput input) throws IOException
 		{
 			byte v = input.readByte();
 			if (v != versionID) throw new IOException("Sync Error");
 
-			date = new GregorianDate(input.readInt());
+			date = input.readInt();
 
 			ABDOMINAL_PAIN = input.readByte();
 			CHILLS = input.readByte();
@@ -209,21 +349,69 @@ public class Report2
 			SYSTEMIC_REACTION = input.readShort();
 			TESTED_POSITIVE = input.readBoolean();
 
-			int ct = input.readInt();
-			if (ct == 0) {
-				TESTED_POSITIVE_DATE = null;
-			} else {
-				TESTED_POSITIVE_DATE = new GregorianDate(ct);
-			}
+			TESTED_POSITIVE_DATE = input.readInt();
 
 			VOMITING = input.readByte();
 		}
 
+		/**
+		 * Read a report back from our columnar cache.
+		 * @param store The cache
+		 * @param r The index of the report in the cache
+		 */
+		Report(ReportStore store, int r)
+		{
+			date = store.getDate(r);
+
+			ABDOMINAL_PAIN = store.getByte(ReportStore.ABDOMINAL_PAIN,r);
+			CHILLS = store.getByte(ReportStore.CHILLS,r);
+			DIARRHEA = store.getByte(ReportStore.DIARRHEA,r);
+			FATIGUE = store.getByte(ReportStore.FATIGUE,r);
+			FEELING_TODAY = store.getByte(ReportStore.FEELING_TODAY,r);
+			FEVER = store.getBoolean(ReportStore.FEVER,r);
+			HAD_SYMPTOMS = store.getBoolean(ReportStore.HAD_SYMPTOMS,r);
+			HEADACHE = store.getByte(ReportStore.HEADACHE,r);
+			HEALTH_IMPACT = store.getByte(ReportStore.HEALTH_IMPACT,r);
+			HEALTH_NOW = store.getByte(ReportStore.HEALTH_NOW,r);
+			HEALTH_NOW_COMPARISON = store.getByte(ReportStore.HEALTH_NOW_COMPARISON,r);
+			VACCINE_CAUSED_HEALTH_ISSUES = store.getBoolean(ReportStore.VACCINE_CAUSED_HEALTH_ISSUES,r);
+			HEALTHCARE_VISITS = store.getByte(ReportStore.HEALTHCARE_VISITS,r);
+			ITCHING = store.getByte(ReportStore.ITCHING,r);
+			JOINT_PAINS = store.getByte(ReportStore.JOINT_PAINS,r);
+			MUSCLE_OR_BODY_ACHES = store.getByte(ReportStore.MUSCLE_OR_BODY_ACHES,r);
+			NAUSEA = store.getByte(ReportStore.NAUSEA,r);
+			PAIN = store.getByte(ReportStore.PAIN,r);
+			PREGNANT = store.getByte(ReportStore.PREGNANT,r);
+			PREGNANCY_TEST = store.getBoolean(ReportStore.PREGNANCY_TEST,r);
+			RASH_OUTSIDE_INJECTION_SITE = store.getByte(ReportStore.RASH_OUTSIDE_INJECTION_SITE,r);
+			REDNESS = store.getByte(ReportStore.REDNESS,r);
+			SITE_REACTION = store.getByte(ReportStore.SITE_REACTION,r);
+			SWELLING = store.getByte(ReportStore.SWELLING,r);
+			SYSTEMIC_REACTION = store.getSystemicReaction(r);
+			TESTED_POSITIVE = store.getBoolean(ReportStore.TESTED_POSITIVE,r);
+
+			TESTED_POSITIVE_DATE = store.getTestedPositiveDate(r);
+
+			VOMITING = store.getByte(ReportStore.VOMITING,r);
+		}
+
+		/**
+		 * Read the date of a report in the form written by write(), without
+		 * decoding the rest of it.
+		 * @param record The bytes written by write()
+		 * @return The day count of the report
+		 */
+		static int getDate(byte[] record)
+		{
+			return ((record[DATE_OFFSET] & 0xFF) << 24) | ((record[DATE_OFFSET + 1] & 0xFF) << 16)
+					| ((record[DATE_OFFSET + 2] & 0xFF) << 8) | (record[DATE_OFFSET + 3] & 0xFF);
+		}
+
 		public void write(DataOutput writer) throws IOException
 		{
 			writer.writeByte(versionID);
 
-			writer.writeInt(date.getCount());
+			writer.writeInt(date);
 
 			writer.writeByte(ABDOMINAL_PAIN);
 			writer.writeByte(CHILLS);
@@ -251,7 +439,7 @@ public class Report2
 			writer.writeByte(SWELLING);
 			writer.writeShort(SYSTEMIC_REACTION);
 			writer.writeBoolean(TESTED_POSITIVE);
-			writer.writeInt(TESTED_POSITIVE_DATE == null ? 0 : TESTED_POSITIVE_DATE.getCount());
+			writer.writeInt(TESTED_POSITIVE_DATE);
 			writer.writeByte(VOMITING);
 		}
 	}
@@ -259,19 +447,31 @@ public class Report2
 	public static class Vaccine
 	{
 		static final byte versionID = 1;
-		GregorianDate date;
+		static final int SIZE = 6;			// # bytes written by write()
+		int date;					// day count
 		byte vaccineNumber;
 
 		public Vaccine(String[] row) throws ParseException
 		{
-			date = new GregorianDate(row[3]);
+			date = GregorianDate.parse(row[3],0,row[3].length());
 			vaccineNumber = (byte)Integer.parseInt(row[2]);
 		}
 
+		/**
+		 * Decode a vaccination directly from a row of the vaccination file.
+		 * @param row The row
+		 * @throws ParseException
+		 */
+		public Vaccine(CSVRow row) throws ParseException
+		{
+			date = Report.parseDate(row,3);
+			vaccineNumber = (byte)row.getInt(2);
+		}
+
 		public void write(DataOutput writer) throws IOException
 		{
 			writer.writeByte(versionID);
-			writer.writeInt(date.getCount());
+			writer.writeInt(date);
 			writer.writeByte(vaccineNumber);
 		}
 
@@ -279,284 +479,439 @@ public class Report2
 		{
 			byte v = input.readByte();
 			if (v != versionID) throw new IOException("Sync");
-			date = new GregorianDate(input.readInt());
+			date = input.readInt();
 			vaccineNumber = input.readByte();
 		}
 	}
 
-	public static class Data
+	/**
+	 * A spill file holds the reports from one chunk of the health check-in
+	 * file, each written as the chunk's registrant ID followed by the report.
+	 * The map translates the chunk's registrant IDs into final IDs, and is
+	 * updated as the chunks are merged.
+	 */
+	private static class Spill
+	{
+		final File file;
+		int count;				// # of reports written
+		int[] map;				// null if the IDs are already final
+
+		Spill(File file)
+		{
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Gathers the reports from a chunk of the health check-in file.
+	 *
+	 * If we already know which registrants had a health care visit, we keep
+	 * the reports for those registrants in an off-heap arena, in file order,
+	 * each tagged with the ID of the registrant it belongs to. Otherwise
+	 * visits are being counted in the same scan, so we don't know who to keep
+	 * until the scan is done; we write each report in compact form to a spill
+	 * file, and filter the spilled reports once Report1 has its counts.
+	 */
+	private static class ReportAccumulator implements CheckinAccumulator<ReportAccumulator>
 	{
-		ArrayList<Report> reports = new ArrayList<>();
-		ArrayList<Vaccine> vaccines = new ArrayList<>();
+		private final RegistrantVisits visits;			// or null
+		private final RecordArena reports = new RecordArena(Report.SIZE);
+
+		private final ArrayList<Spill> spills = new ArrayList<>();
+		private DataOutputStream spill;
 
-		public Data()
+		ReportAccumulator(RegistrantVisits visits)
 		{
+			this.visits = visits;
 		}
 
-		public Data(DataInput dis) throws IOException, ParseException
+		@Override
+		public void accept(int registrant, CSVRow row) throws IOException
 		{
-			if (1 != dis.readByte()) throw new IOException("Sync");
-			int nreports = dis.readInt();
-			int nvaccines = dis.readInt();
-			for (int i = 0; i < nreports; ++i) {
-				reports.add(new Report(dis));
+			try {
+				if (visits != null) {
+					if (!visits.hasVisit(registrant)) return;
+
+					new Report(row).write(reports.add(registrant));
+				} else {
+					if (spill == null) {
+						File f = File.createTempFile("healthlogs",".spill",new File("cache"));
+						f.deleteOnExit();
+						spills.add(new Spill(f));
+						spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),1024000));
+					}
+
+					spill.writeInt(registrant);
+					new Report(row).write(spill);
+					spills.get(spills.size() - 1).count++;
+				}
 			}
-			for (int i = 0; i < nvaccines; ++i) {
-				vaccines.add(new Vaccine(dis));
+			catch (ParseException ex) {
+				throw new IOException(ex);
 			}
 		}
 
-		public void write(DataOutput writer) throws IOException
+		@Override
+		public void done() throws IOException
 		{
-			writer.writeByte(1);		// version
-			writer.writeInt(reports.size());
-			writer.writeInt(vaccines.size());
-
-			for (Report r: reports) {
-				r.write(writer);
+			if (spill != null) {
+				spill.close();
+				spill = null;
 			}
-			for (Vaccine v: vaccines) {
-				v.write(writer);
+		}
+
+		@Override
+		public void merge(ReportAccumulator other, int[] remap)
+		{
+			other.remap(remap);
+			reports.addAll(other.reports);
+			spills.addAll(other.spills);
+		}
+
+		/**
+		 * Translate the registrant IDs of the reports we've gathered.
+		 * @param remap Maps our IDs to new IDs, or null if unchanged
+		 */
+		void remap(int[] remap)
+		{
+			if (remap == null) return;
+
+			reports.mapTags(remap);
+			for (Spill s: spills) {
+				if (s.map == null) {
+					s.map = remap;
+				} else {
+					int[] map = new int[s.map.length];
+					for (int i = 0; i < map.length; ++i) map[i] = remap[s.map[i]];
+					s.map = map;
+				}
 			}
 		}
 	}
 
-	public static void run(int totalCount) throws IOException, ParseException, ClassNotFoundException
+	/**
+	 * Gathers the reports of a set of registrants from the rows of the health
+	 * check-in file we scanned before it was appended to. This is used to find
+	 * the earlier reports of registrants whose first health care visit is in
+	 * the appended rows, as they were not in our cache.
+	 */
+	private static class PrefixAccumulator implements CSVAccumulator<PrefixAccumulator>
 	{
-		HashMap<String, Report1.Visit> visitCount = new HashMap<>();
+		private final int rindex;
+		private final RegistrantDictionary dict;		// read-only
+		private final boolean[] wanted;					// read-only
+		private final RecordArena reports = new RecordArena(Report.SIZE);
 
-		/*
-		 *	Before we go through this heavy lifting, see if we've cached the
-		 * 	data first.
-		 */
-		File f = new File("cache/hinteraction.csv");
-		if (f.exists()) {
-			System.out.println("Reading cache");
+		PrefixAccumulator(String[] toc, RegistrantDictionary dict, boolean[] wanted)
+		{
+			rindex = Utils.lookup(toc,"REGISTRANT_CODE");
+			this.dict = dict;
+			this.wanted = wanted;
+		}
 
-			/*
-			 *	Open our cache.
-			 */
+		@Override
+		public void accept(CSVRow row) throws IOException
+		{
+			if (row.getFieldCount() <= rindex) return;        // Should never happen.
 
-			FileReader fr = new FileReader(f);
-			CSVParser parser = new CSVParser(fr);
-			String[] firstRow = parser.readRow();
+			int id = dict.find(row.getBuffer(),row.getStart(rindex),row.getLength(rindex));
+			if ((id < 0) || !wanted[id]) return;
 
-			for (; ; ) {
-				String[] row = parser.readRow();
-				if (row == null) break;
+			try {
+				new Report(row).write(reports.add(id));
+			}
+			catch (ParseException ex) {
+				throw new IOException(ex);
+			}
+		}
 
-				Report1.Visit v = new Report1.Visit();
-				v.er = Integer.parseInt(row[1]);
-				v.hospital = Integer.parseInt(row[2]);
-				v.outpatient = Integer.parseInt(row[3]);
-				v.telehealth = Integer.parseInt(row[4]);
+		@Override
+		public void merge(PrefixAccumulator other)
+		{
+			reports.addAll(other.reports);
+		}
+	}
 
-				visitCount.put(row[0], v);
-			}
+	private static final File CACHE = new File("cache/healthlogs.bin");
+	private static final int SORT_RUN = 262144;		// # records sorted in memory at once
+	private static final File CHECKIN = new File("data/consolidated_health_checkin.csv");
+	private static final File VACCINATIONS = new File("data/consolidated_vaccinations[1].csv");
+
+	private final Report1 report1;
+	private CacheManifest manifest;
+	private boolean rebuild;
+	private long offset;				// if appending, the start of the new rows
+	private ReportAccumulator scanned;
+
+	/**
+	 * Create our report. This requires Report1, which must be registered with
+	 * the report engine before us.
+	 * @param report1 The report giving the health care visits
+	 */
+	public Report2(Report1 report1)
+	{
+		this.report1 = report1;
+	}
 
-			fr.close();
+	@Override
+	public boolean canAppend(CacheManifest manifest, long offset) throws IOException
+	{
+		/*
+		 *	We always reread the vaccination file when we update, so it's
+		 * 	fine if that was appended to as well.
+		 */
+		if (manifest.check(CACHE,ReportStore.VERSION,CHECKIN,VACCINATIONS) != CacheManifest.Status.APPENDED) return false;
+		return manifest.getInputSize(CACHE,CHECKIN) == offset;
+	}
 
-			System.out.println("Finished reading cache");
+	@Override
+	public boolean load(RegistrantDictionary dict, CacheManifest manifest, long offset) throws IOException
+	{
+		this.manifest = manifest;
+		this.offset = offset;
+		if (offset != 0) {
+			rebuild = true;
 		} else {
-			throw new RuntimeException("Report2.run cannot run before Report1.run has been run");
+			rebuild = (manifest.check(CACHE,ReportStore.VERSION,CHECKIN,VACCINATIONS) != CacheManifest.Status.VALID);
 		}
+		Metrics.cache(CACHE.getName(),!rebuild);
+		return rebuild;
+	}
 
+	@Override
+	public CheckinAccumulator<?> createAccumulator(String[] toc)
+	{
 		/*
-		 *	Now build the set of those who have had any sort of interaction
-		 * 	with a health care provider, setting flags for other events that
-		 * 	may be of interest here.
+		 *	If Report1 was loaded from our cache and we're scanning the whole
+		 * 	file, we know who had a visit and can filter as we scan.
 		 */
+		return new ReportAccumulator((offset == 0) ? report1.getVisits() : null);
+	}
 
-		HashMap<String, Report2.Data> hcData;
-
-		f = new File("cache/healthlogs.ser");
-		if (f.exists()) {
-			System.out.println("Reading second cache");
-
-			// The file contains a serialized block of data that builds our hash
-			// map
-
-			FileInputStream fis = new FileInputStream(f);
-			BufferedInputStream bis = new BufferedInputStream(fis,1024000);
-			DataInputStream dis = new DataInputStream(bis);
-
-			int rowCount = 0;
-			hcData = new HashMap<>();
-			int length = dis.readInt();
-			for (int i = 0; i < length; ++i) {
-				++rowCount;
-				if ((rowCount % 10000) == 0) {
-					if ((rowCount % 100000) == 0) {
-						System.out.print("+");
-					} else {
-						System.out.print("-");
-					}
-					if ((rowCount % 1000000) == 0) {
-						System.out.println();
-					}
-					System.out.flush();
-				}
+	@Override
+	public void scanned(RegistrantDictionary dict, CheckinAccumulator<?> acc, int[] remap)
+	{
+		scanned = (ReportAccumulator)acc;
+		scanned.remap(remap);
+	}
 
-				String r = dis.readUTF();
-				Data d = new Data(dis);
-				hcData.put(r,d);
-			}
+	/**
+	 * When appending, copy the reports from our existing cache for the
+	 * registrants who had a health care visit, then scan the rows we had
+	 * already seen for the reports of those registrants who had their first
+	 * visit in the new rows. The reports from the new rows are added after
+	 * this, so each registrant's reports stay in file order.
+	 * @param sorter The sorter to add the reports to
+	 * @param visitor True for each registrant ID with a health care visit
+	 * @param dict The registrant dictionary
+	 * @throws IOException
+	 */
+	private void loadPrevious(RecordSorter sorter, boolean[] visitor, RegistrantDictionary dict) throws IOException
+	{
+		System.out.println("Reading previous health logs");
 
-			dis.close();
+		boolean[] wanted = visitor.clone();
 
-			System.out.println("Finished reading second cache");
-		} else {
-			/*
-			 *	Load from our data
-			 */
+		ReportStore store = new ReportStore(CACHE);
+		int registrants = store.getRegistrantCount();
+		for (int i = 0; i < registrants; ++i) {
+			int id = store.getRegistrantId(i);
+			wanted[id] = false;
 
-			hcData = new HashMap<>();
-			for (Map.Entry<String, Report1.Visit> entry : visitCount.entrySet()) {
-				// Only create record if we have seen a doctor at any time.
-				Report1.Visit v = entry.getValue();
-				if (v.hasVisit()) {
-					hcData.put(entry.getKey(), new Data());
-				}
+			int end = store.getReportEnd(i);
+			for (int r = store.getReportStart(i); r < end; ++r) {
+				Report report = new Report(store,r);
+				report.write(sorter.add(RecordSorter.key(id,report.date)));
 			}
+		}
+		store.close();
 
-			/*
-			 *	Crack open our really big file, copy data records associated with
-			 * 	each reporter who made a visit.
-			 */
-
-			FileReader fr = new FileReader("data/consolidated_health_checkin.csv");
-			CSVParser parser = new CSVParser(fr);
-			String[] firstRow = parser.readRow();
+		int count = 0;
+		for (boolean w: wanted) {
+			if (w) ++count;
+		}
+		if (count == 0) return;
 
-			int rindex = Utils.lookup(firstRow, "REGISTRANT_CODE");
+		System.out.println("Scanning earlier rows for " + count + " new registrant(s)");
 
-			int rowCount = 0;
-			for (; ; ) {
-				String[] row = parser.readRow();
-				if (row == null) break;
+		CSVChunkScanner scanner = new CSVChunkScanner(CHECKIN);
+		PrefixAccumulator acc = scanner.scan(toc -> new PrefixAccumulator(toc,dict,wanted),0,offset);
+		sort(acc.reports,sorter);
+	}
 
-				++rowCount;
+	/**
+	 * Add the reports gathered during our scan for those registrants who had
+	 * a health care visit to the sorter.
+	 * @param sorter The sorter to add the reports to
+	 * @param visitor True for each registrant ID with a health care visit
+	 * @throws IOException
+	 */
+	private void gatherReports(RecordSorter sorter, boolean[] visitor) throws IOException
+	{
+		sort(scanned.reports,sorter);
 
-				if ((rowCount % 1000000) == 0) {
-					if ((rowCount % 10000000) == 0) {
-						System.out.print("+");
-					} else {
-						System.out.print("-");
-					}
-					if ((rowCount % 100000000) == 0) {
-						System.out.println();
-					}
-					System.out.flush();
-				}
+		/*
+		 *	The spilled reports are already in the form the sorter wants, so
+		 * 	we copy the bytes across rather than decoding each report.
+		 */
 
-				if (row.length < rindex) continue;        // Should never happen.
+		byte[] record = new byte[Report.SIZE];
+		for (Spill s: scanned.spills) {
+			FileInputStream fis = new FileInputStream(s.file);
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(fis,1024000));
+			for (int i = 0; i < s.count; ++i) {
+				int id = dis.readInt();
+				dis.readFully(record);
 
-				String registrantCode = row[rindex];
-				Data data = hcData.get(registrantCode);
-				if (data != null) {
-					Report rdata = new Report(row);
-					data.reports.add(rdata);
-				}
+				if (s.map != null) id = s.map[id];
+				if (visitor[id]) sorter.add(RecordSorter.key(id,Report.getDate(record))).write(record);
 			}
-			fr.close();
+			dis.close();
+			s.file.delete();
+		}
+	}
 
-			/*
-			 *	Crack open the vaccine data
-			 */
+	/**
+	 * Add the reports in an arena, tagged with their registrant IDs, to the
+	 * sorter. The reports are copied as they are, without decoding them.
+	 * @param reports The reports
+	 * @param sorter The sorter to add the reports to
+	 * @throws IOException
+	 */
+	private static void sort(RecordArena reports, RecordSorter sorter) throws IOException
+	{
+		RecordArena.Cursor c = reports.cursor();
+		while (c.next()) {
+			c.copyTo(sorter.add(RecordSorter.key(c.getTag(),c.getInt(Report.DATE_OFFSET))));
+		}
+	}
 
-			System.out.println();
-			fr = new FileReader("data/consolidated_vaccinations[1].csv");
-			parser = new CSVParser(fr);
-			parser.readRow();
-
-			rowCount = 0;
-			for (; ; ) {
-				String[] row = parser.readRow();
-				if (row == null) break;
-
-				++rowCount;
-				if ((rowCount % 1000000) == 0) {
-					if ((rowCount % 10000000) == 0) {
-						System.out.print("+");
-					} else {
-						System.out.print("-");
-					}
-					if ((rowCount % 100000000) == 0) {
-						System.out.println();
-					}
-					System.out.flush();
-				}
+	/**
+	 * Rebuild our report history, if our load found it out of date.
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	private void build() throws IOException, ParseException
+	{
+		RegistrantDictionary dict = report1.getDictionary();
+		RegistrantVisits visits = report1.getVisits();
+
+		/*
+		 *	Now build the set of those who have had any sort of interaction
+		 * 	with a health care provider, setting flags for other events that
+		 * 	may be of interest here.
+		 */
+
+		File f = CACHE;
+		if (rebuild) {
+			Metrics.Stage metrics = Metrics.stage("report2").start();
 
-				if (row.length < rindex) continue;        // Should never happen.
+			/*
+			 *	Find those who have seen a doctor at any time
+			 */
 
-				String registrantCode = row[0];
-				Data data = hcData.get(registrantCode);
-				if (data != null) {
-					Vaccine vaccine = new Vaccine(row);
-					data.vaccines.add(vaccine);
+			int size = dict.size();
+			boolean[] visitor = new boolean[size];
+			IntList ids = new IntList();
+			for (int id = 0; id < size; ++id) {
+				if (visits.hasVisit(id)) {
+					visitor[id] = true;
+					ids.add(id);
 				}
 			}
-			fr.close();
 
 			/*
-			 *	Scan the data and sort
+			 *	Rather than hold every report of every registrant in memory
+			 * 	and sort each registrant's reports, we hand the reports and
+			 * 	vaccines to an external sort by registrant ID and date. The
+			 * 	sort is stable, so reports on the same day stay in file order.
 			 */
 
-			for (Map.Entry<String, Data> e : hcData.entrySet()) {
-				Data d = e.getValue();
-				d.reports.sort(new Comparator<Report>()
-				{
-					@Override
-					public int compare(Report o1, Report o2)
-					{
-						return o1.date.compareTo(o2.date);
-					}
-				});
-				d.vaccines.sort(new Comparator<Vaccine>()
+			RecordSorter reports = new RecordSorter(new File("cache"),"healthlogs",Report.SIZE,SORT_RUN);
+			RecordSorter vaccines = new RecordSorter(new File("cache"),"vaccinations",Vaccine.SIZE,SORT_RUN);
+			metrics.set("visitors",ids.size());
+			try {
+				long time = System.nanoTime();
+				if (offset != 0) loadPrevious(reports,visitor,dict);
+				gatherReports(reports,visitor);
+				scanned = null;
+				metrics.time("gather",time);
+				metrics.set("reports",reports.size());
+
+				/*
+				 *	Crack open the vaccine data. This is read on a pipeline, so
+				 * 	the file is read and parsed on other threads while we decode
+				 * 	each row; the rows still come to us in order, so vaccines on
+				 * 	the same day stay in file order.
+				 */
+
+				time = System.nanoTime();
+				manifest.snapshot(VACCINATIONS);
+				InputStream fis = CompressedInput.open(CompressedInput.find(VACCINATIONS));
+				CSVPipeline pipeline = new CSVPipeline(fis);
+				pipeline.readTOC();
+				pipeline.run(new CSVPipeline.Consumer()
 				{
 					@Override
-					public int compare(Vaccine o1, Vaccine o2)
+					public void accept(CSVRow row) throws IOException
 					{
-						return o1.date.compareTo(o2.date);
+						if (row.getFieldCount() < 1) return;             // Should never happen.
+
+						int id = dict.find(row.getBuffer(), row.getStart(0), row.getLength(0));
+						if ((id >= 0) && visitor[id]) {
+							try {
+								Vaccine vaccine = new Vaccine(row);
+								vaccine.write(vaccines.add(RecordSorter.key(id,vaccine.date)));
+							}
+							catch (ParseException ex) {
+								throw new IOException(ex);
+							}
+						}
 					}
 				});
-			}
+				fis.close();
+				metrics.time("vaccinations",time);
+				metrics.set("vaccines",vaccines.size());
 
-			/*
-			 *	This was a lot of data. Now spit it out
-			 */
+				/*
+				 *	This was a lot of data. Now spit it out as it comes back
+				 * 	from the sort.
+				 */
 
-			FileOutputStream fos = new FileOutputStream(f);
-			BufferedOutputStream bos = new BufferedOutputStream(fos,1024000);
-			DataOutputStream dos = new DataOutputStream(bos);
-
-			int size = hcData.size();
-			dos.writeInt(size);
-
-			rowCount = 0;
-			for (Map.Entry<String,Data> d: hcData.entrySet()) {
-				++rowCount;
-				if ((rowCount % 10000) == 0) {
-					if ((rowCount % 100000) == 0) {
-						System.out.print("+");
-					} else {
-						System.out.print("-");
-					}
-					if ((rowCount % 1000000) == 0) {
-						System.out.println();
-					}
-					System.out.flush();
+				time = System.nanoTime();
+				ReportStore.Writer writer = new ReportStore.Writer(f,dict,ids.toArray(),(int)reports.size(),(int)vaccines.size());
+
+				RecordSorter.Cursor c = reports.sort();
+				while (c.next()) {
+					writer.addReport(RecordSorter.keyHigh(c.getKey()),new Report(c.getInput()));
 				}
+				c.close();
 
-				dos.writeUTF(d.getKey());
-				d.getValue().write(dos);
+				c = vaccines.sort();
+				while (c.next()) {
+					writer.addVaccine(RecordSorter.keyHigh(c.getKey()),new Vaccine(c.getInput()));
+				}
+				c.close();
+
+				writer.close();
+				metrics.time("sort_write",time);
+			}
+			finally {
+				reports.close();
+				vaccines.close();
+				metrics.stop();
 			}
 
-			dos.flush();
-			dos.close();
+			manifest.update(f,ReportStore.VERSION,CHECKIN,VACCINATIONS);
 
 			System.out.println();
 		}
+	}
+
+	@Override
+	public void finish() throws IOException, ParseException
+	{
+		build();
 
 		/*
 		 *	This was a lot of data. We now have an ordered list of data records
@@ -565,63 +920,114 @@ public class Report2
 		 * 	a problem or not.
 		 */
 
-		/*
-		 *	Here's a fun thing we can do: Break down the number of people who
-		 * 	have had an interaction with a health care provider by those who
-		 * 	have the 'VACCINE_CAUSED_HEALTH_ISSUES' set somewhere in their
-		 * 	history. If we see they visited a health care provider but it came
-		 * 	before they think they had a vaccine-caused problem, then it doesn't
-		 * 	count, right?
-		 *
-		 * 	Yes, no, maybe? But if you never said "I think the vaccine caused
-		 * 	my symptoms" and you went to see a doctor--then let's not count
-		 * 	those. We'll also not count those who saw a doctor and *later* said
-		 * 	"the vaccine caused this" on the assumption their visit was for
-		 * 	something unrelated and later they felt problems.
-		 */
+		System.out.println("Reading second cache");
+		loadHistory().print(System.out,report1.getTotalCount());
+	}
 
-		int total = 0;
-		int er = 0;
-		int hosp = 0;
-		int out = 0;
-		int thealth = 0;
+	/**
+	 * Roll up the visits of our report history needed to print our results.
+	 * This is only valid once the report engine has finished us.
+	 * @return The visit history
+	 * @throws IOException
+	 */
+	public VisitHistory loadHistory() throws IOException
+	{
+		ReportStore store = new ReportStore(CACHE);
+		VisitHistory history = new VisitHistory(store);
+		store.close();
+		return history;
+	}
 
-		for (Map.Entry<String,Data> d: hcData.entrySet()) {
-			/*
-			 *	Try this in SQL! :-P
-			 */
+	/**
+	 * The health care visits of the report history we need for our results,
+	 * rolled up once so the results can be printed without rereading the
+	 * store.
+	 */
+	public static class VisitHistory
+	{
+		private static final int SLICE = 65536;		// registrants per roll up
 
-			boolean count = false;
-			byte visits = 0;
+		private final int total;
+		private final int er;
+		private final int hosp;
+		private final int outpatient;
+		private final int thealth;
 
-			for (Report r: d.getValue().reports) {
-				boolean vflag = false;
+		VisitHistory(ReportStore store)
+		{
+			/*
+			 *	Here's a fun thing we can do: Break down the number of people who
+			 * 	have had an interaction with a health care provider by those who
+			 * 	have the 'VACCINE_CAUSED_HEALTH_ISSUES' set somewhere in their
+			 * 	history. If we see they visited a health care provider but it came
+			 * 	before they think they had a vaccine-caused problem, then it doesn't
+			 * 	count, right?
+			 *
+			 * 	Yes, no, maybe? But if you never said "I think the vaccine caused
+			 * 	my symptoms" and you went to see a doctor--then let's not count
+			 * 	those. We'll also not count those who saw a doctor and *later* said
+			 * 	"the vaccine caused this" on the assumption their visit was for
+			 * 	something unrelated and later they felt problems.
+			 */
 
-				if (r.VACCINE_CAUSED_HEALTH_ISSUES) {
-					vflag = true;
-				}
+			/*
+			 *	Try this in SQL! :-P
+			 *
+			 * 	For each registrant, OR together the HEALTHCARE_VISITS of every
+			 * 	report where VACCINE_CAUSED_HEALTH_ISSUES is set, then count the
+			 * 	registrants with each visit bit. The columns are copied out of the
+			 * 	mapped store SLICE registrants at a time, so the roll up and the
+			 * 	counts run over small primitive arrays rather than report by
+			 * 	report, without holding a copy of either column.
+			 */
 
-				if (vflag && (r.HEALTHCARE_VISITS != 0)) {
-					visits |= r.HEALTHCARE_VISITS;
+			ColumnKernel kernel = ColumnKernel.get();
+			int registrants = store.getRegistrantCount();
+			int[] offsets = new int[SLICE + 1];
+			byte[] rollup = new byte[SLICE];
+			byte[] visits = new byte[SLICE];
+			byte[] vaccineCaused = new byte[SLICE];
+			long[] counts = new long[4];
+			long any = 0;
+
+			for (int start = 0; start < registrants; start += SLICE) {
+				int n = Math.min(SLICE,registrants - start);
+				store.getReportOffsets(start,n,offsets);
+				int reports = offsets[n];
+				if (reports > visits.length) {
+					visits = new byte[reports];
+					vaccineCaused = new byte[reports];
 				}
-			}
 
-			if (visits != 0) {
-				++total;
+				int report = store.getReportStart(start);
+				store.getColumn(ReportStore.HEALTHCARE_VISITS,report,reports,visits);
+				store.getColumn(ReportStore.VACCINE_CAUSED_HEALTH_ISSUES,report,reports,vaccineCaused);
 
-				if (0 != (visits & Report.HEALTHCARE_VISIT_ER)) ++er;
-				if (0 != (visits & Report.HEALTHCARE_VISIT_HOSPITAL)) ++hosp;
-				if (0 != (visits & Report.HEALTHCARE_VISIT_OUTPATIENT)) ++out;
-				if (0 != (visits & Report.HEALTHCARE_VISIT_TELEHEALTH)) ++thealth;
+				kernel.groupOr(visits,vaccineCaused,offsets,n,rollup);
+				kernel.bitCounts(rollup,n,counts);
+				any += kernel.countNonZero(rollup,n);
 			}
-		}
 
-		System.out.println("Health care interactions by people after vaccine flag set:");
-		System.out.println("Any:               " + total + " " + Utils.perc(total,totalCount));
-		System.out.println("ER Visits:         " + er + " " + Utils.perc(er,totalCount));
-		System.out.println("Hospital Visits:   " + hosp + " " + Utils.perc(hosp,totalCount));
-		System.out.println("Outpatient Visits: " + out + " " + Utils.perc(out,totalCount));
-		System.out.println("Telehealth Visits: " + thealth + " " + Utils.perc(thealth,totalCount));
+			total = (int)any;
+			er = (int)counts[Integer.numberOfTrailingZeros(Report.HEALTHCARE_VISIT_ER)];
+			hosp = (int)counts[Integer.numberOfTrailingZeros(Report.HEALTHCARE_VISIT_HOSPITAL)];
+			outpatient = (int)counts[Integer.numberOfTrailingZeros(Report.HEALTHCARE_VISIT_OUTPATIENT)];
+			thealth = (int)counts[Integer.numberOfTrailingZeros(Report.HEALTHCARE_VISIT_TELEHEALTH)];
+		}
 
+		/**
+		 * Write our results.
+		 * @param out The stream to write to
+		 * @param totalCount The total number of registrants
+		 */
+		public void print(PrintStream out, int totalCount)
+		{
+			out.println("Health care interactions by people after vaccine flag set:");
+			out.println("Any:               " + total + " " + Utils.perc(total,totalCount));
+			out.println("ER Visits:         " + er + " " + Utils.perc(er,totalCount));
+			out.println("Hospital Visits:   " + hosp + " " + Utils.perc(hosp,totalCount));
+			out.println("Outpatient Visits: " + outpatient + " " + Utils.perc(outpatient,totalCount));
+			out.println("Telehealth Visits: " + thealth + " " + Utils.perc(thealth,totalCount));
+		}
 	}
 }
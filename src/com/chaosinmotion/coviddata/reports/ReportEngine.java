@@ -0,0 +1,260 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.csv.CSVAccumulator;
+import com.chaosinmotion.coviddata.csv.CSVChunkScanner;
+import com.chaosinmotion.coviddata.csv.CSVPipeline;
+import com.chaosinmotion.coviddata.csv.CSVRow;
+import com.chaosinmotion.coviddata.utils.CacheManifest;
+import com.chaosinmotion.coviddata.utils.CompressedInput;
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+import com.chaosinmotion.coviddata.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * The report engine runs a set of reports over the health check-in file,
+ * scanning the file once no matter how many reports need it. Each report
+ * registers an accumulator which is given every row, along with the ID of
+ * the row's registrant.
+ *
+ * If we have an up to date registrant dictionary in our cache, rows are tagged with the
+ * registrant IDs from that dictionary. Otherwise each chunk of the file
+ * builds its own dictionary, and the dictionaries are merged (and the IDs
+ * remapped) as the chunks are merged. The resulting dictionary is written to
+ * our cache.
+ *
+ * If the check-in file has only had rows appended since our dictionary was
+ * built, and every report can update its cache from the new rows, we scan
+ * only the new rows, and merge the dictionary built from them into our
+ * cached dictionary.
+ *
+ * The check-in file may also be kept compressed (see CompressedInput). A
+ * compressed file can't be cut into chunks, so it is read from front to back
+ * on a CSVPipeline instead, and is always scanned in full.
+ *
+ * The scan is recorded in the "engine" metrics stage, and whether each cache
+ * could be used in the "cache" stage.
+ */
+public class ReportEngine
+{
+	private static final String CHECKIN = "data/consolidated_health_checkin.csv";
+	private static final String DICTIONARY = "cache/registrants.dict";
+	private static final String MANIFEST = "cache/manifest.properties";
+
+	private final ArrayList<CheckinReport> reports = new ArrayList<>();
+
+	/**
+	 * Register a report. Reports are finished in the order they are
+	 * registered.
+	 * @param report The report to register
+	 */
+	public void register(CheckinReport report)
+	{
+		reports.add(report);
+	}
+
+	/**
+	 * Run all of our reports.
+	 * @throws Exception
+	 */
+	public void run() throws Exception
+	{
+		CacheManifest manifest = new CacheManifest(new File(MANIFEST));
+		File checkin = CompressedInput.find(new File(CHECKIN));
+		boolean compressed = CompressedInput.isCompressed(checkin);
+
+		/*
+		 *	Only use our cached dictionary if the check-in file hasn't changed
+		 * 	since we built it. If rows have only been appended to the file,
+		 * 	and every report can update its cache from the new rows, we only
+		 * 	scan the new rows.
+		 */
+
+		File df = new File(DICTIONARY);
+		RegistrantDictionary dict = null;
+		long offset = 0;
+
+		CacheManifest.Status status = manifest.check(df,RegistrantDictionary.VERSION,checkin);
+
+		/*
+		 *	Rows may be appended while we scan. We only scan up to the size
+		 * 	the file has now, and our caches are recorded as built from the
+		 * 	file as it is now, so the next run picks up the rest.
+		 */
+
+		long end = manifest.snapshot(checkin);
+		if (status == CacheManifest.Status.APPENDED) {
+			offset = manifest.getInputSize(df,checkin);
+			if (compressed || !isRowBoundary(checkin,offset)) {
+				offset = 0;
+			} else {
+				for (CheckinReport r: reports) {
+					if (!r.canAppend(manifest,offset)) {
+						offset = 0;
+						break;
+					}
+				}
+			}
+			if (offset != 0) status = CacheManifest.Status.VALID;
+		}
+		Metrics.cache(df.getName(),status == CacheManifest.Status.VALID);
+		if (status == CacheManifest.Status.VALID) {
+			dict = RegistrantDictionary.read(df);
+		}
+
+		ArrayList<CheckinReport> scan = new ArrayList<>();
+		for (CheckinReport r: reports) {
+			if (r.load(dict,manifest,offset)) scan.add(r);
+		}
+
+		if (!scan.isEmpty()) {
+			if (offset != 0) {
+				System.out.println("Scanning health check-in data appended after row " + manifest.getRowCount(df) + " for " + scan.size() + " report(s)");
+			} else {
+				System.out.println("Scanning health check-in data for " + scan.size() + " report(s)");
+			}
+
+			/*
+			 *	When scanning appended rows, new registrants may show up, so
+			 * 	we build dictionaries for the new rows and merge them into
+			 * 	our dictionary when done.
+			 */
+
+			final RegistrantDictionary global = (offset == 0) ? dict : null;
+			Metrics.Stage metrics = Metrics.stage("engine").start();
+			EngineAccumulator acc;
+			if (compressed) {
+				try (InputStream in = CompressedInput.open(checkin)) {
+					acc = new CSVPipeline(in).scan(toc -> new EngineAccumulator(toc,scan,global));
+				}
+
+				System.out.println("Scanned " + checkin);
+			} else {
+				CSVChunkScanner scanner = new CSVChunkScanner(checkin);
+				acc = scanner.scan(toc -> new EngineAccumulator(toc,scan,global),offset,end);
+
+				System.out.println("Scanned " + scanner.getChunkCount() + " chunks");
+			}
+			metrics.stop();
+			metrics.add("rows",acc.rows);
+			metrics.add("bytes",end - offset);
+
+			int[] remap = null;
+			if (dict == null) {
+				dict = acc.dict;
+			} else if (offset != 0) {
+				remap = dict.merge(acc.dict);
+			}
+			if (global == null) {
+				dict.write(df);
+				manifest.setRowCount(df,((offset == 0) ? 0 : manifest.getRowCount(df)) + acc.rows);
+				manifest.update(df,RegistrantDictionary.VERSION,checkin);
+			}
+			metrics.set("registrants",dict.size());
+			for (int i = 0; i < scan.size(); ++i) {
+				long time = System.nanoTime();
+				scan.get(i).scanned(dict,acc.accumulators[i],remap);
+				metrics.time("scanned." + scan.get(i).getClass().getSimpleName(),time);
+			}
+		}
+
+		for (CheckinReport r: reports) {
+			r.finish();
+		}
+	}
+
+	/**
+	 * Determine if the offset is at the start of a row: the previous byte
+	 * must end a line, and the next byte must not be the second half of a
+	 * \r\n or \n\r pair. Otherwise the file was not appended to at the end
+	 * of a row.
+	 * @param f The file
+	 * @param offset The offset in the file
+	 * @return true if the offset is at the start of a row
+	 * @throws IOException
+	 */
+	private static boolean isRowBoundary(File f, long offset) throws IOException
+	{
+		if (offset <= 0) return false;
+
+		RandomAccessFile raf = new RandomAccessFile(f,"r");
+		try {
+			raf.seek(offset - 1);
+			int prev = raf.read();
+			int next = raf.read();
+			if ((prev != '\n') && (prev != '\r')) return false;
+			return (next != ((prev == '\n') ? '\r' : '\n'));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Feeds each row of a chunk to the accumulator of every report being
+	 * scanned.
+	 */
+	private static class EngineAccumulator implements CSVAccumulator<EngineAccumulator>
+	{
+		private final int rindex;
+		private final boolean global;
+		private final RegistrantDictionary dict;
+		private final CheckinAccumulator<?>[] accumulators;
+		private long rows;
+
+		EngineAccumulator(String[] toc, ArrayList<CheckinReport> reports, RegistrantDictionary dict)
+		{
+			rindex = Utils.lookup(toc,"REGISTRANT_CODE");
+			global = (dict != null);
+			this.dict = global ? dict : new RegistrantDictionary();
+
+			accumulators = new CheckinAccumulator<?>[reports.size()];
+			for (int i = 0; i < accumulators.length; ++i) {
+				accumulators[i] = reports.get(i).createAccumulator(toc);
+			}
+		}
+
+		@Override
+		public void accept(CSVRow row) throws IOException
+		{
+			++rows;
+			if (row.getFieldCount() <= rindex) return;		// Should never happen.
+
+			int id;
+			if (global) {
+				id = dict.find(row.getBuffer(),row.getStart(rindex),row.getLength(rindex));
+				if (id < 0) return;		// Not in our cached dictionary
+			} else {
+				id = dict.add(row.getBuffer(),row.getStart(rindex),row.getLength(rindex));
+			}
+
+			for (CheckinAccumulator<?> a: accumulators) {
+				a.accept(id,row);
+			}
+		}
+
+		@Override
+		public void done() throws IOException
+		{
+			for (CheckinAccumulator<?> a: accumulators) {
+				a.done();
+			}
+		}
+
+		@Override
+		@SuppressWarnings({"unchecked","rawtypes"})
+		public void merge(EngineAccumulator other)
+		{
+			rows += other.rows;
+			int[] remap = global ? null : dict.merge(other.dict);
+			for (int i = 0; i < accumulators.length; ++i) {
+				((CheckinAccumulator)accumulators[i]).merge(other.accumulators[i],remap);
+			}
+		}
+	}
+}
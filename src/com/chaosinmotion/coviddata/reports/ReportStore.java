@@ -0,0 +1,603 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.utils.RegistrantDictionary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ReportStore is a columnar on-disk version of the per-registrant report
+ * history built by Report2. Rather than writing each Report as a record, we
+ * write one primitive array for each field of Report2.Report, and one for
+ * each field of Report2.Vaccine. Reports and vaccines are grouped by
+ * registrant, and each registrant has an offset into the report and vaccine
+ * columns, so reports [reportStart(r),reportEnd(r)) belong to registrant r.
+ *
+ * Registrants are sorted by their ID in the registrant dictionary, so a
+ * registrant can be found with a binary search on the ID column.
+ *
+ * The file is memory mapped when opened, and the columns are read in place;
+ * nothing is deserialized. So to (for example) scan the HEALTHCARE_VISITS
+ * field we only touch one byte per report.
+ *
+ * The file format is:
+ *
+ *	int		MAGIC
+ *	int		VERSION
+ *	int		registrant count
+ *	int		report count
+ *	int		vaccine count
+ *	int		column count
+ *	long[]	column directory: offset and length of each column
+ *
+ * followed by the columns, each aligned to 8 bytes, in big-endian order.
+ */
+public class ReportStore implements Closeable
+{
+	private static final int MAGIC = 0x43565253;		// 'CVRS'
+	public static final int VERSION = 2;
+
+	/*
+	 *	Byte columns. These are in the order of the fields in Report2.Report.
+	 * 	Boolean fields are stored as 0 or 1.
+	 */
+	public static final int ABDOMINAL_PAIN = 0;
+	public static final int CHILLS = 1;
+	public static final int DIARRHEA = 2;
+	public static final int FATIGUE = 3;
+	public static final int FEELING_TODAY = 4;
+	public static final int FEVER = 5;
+	public static final int HAD_SYMPTOMS = 6;
+	public static final int HEADACHE = 7;
+	public static final int HEALTH_IMPACT = 8;
+	public static final int HEALTH_NOW = 9;
+	public static final int HEALTH_NOW_COMPARISON = 10;
+	public static final int VACCINE_CAUSED_HEALTH_ISSUES = 11;
+	public static final int HEALTHCARE_VISITS = 12;
+	public static final int ITCHING = 13;
+	public static final int JOINT_PAINS = 14;
+	public static final int MUSCLE_OR_BODY_ACHES = 15;
+	public static final int NAUSEA = 16;
+	public static final int PAIN = 17;
+	public static final int PREGNANT = 18;
+	public static final int PREGNANCY_TEST = 19;
+	public static final int RASH_OUTSIDE_INJECTION_SITE = 20;
+	public static final int REDNESS = 21;
+	public static final int SITE_REACTION = 22;
+	public static final int SWELLING = 23;
+	public static final int TESTED_POSITIVE = 24;
+	public static final int VOMITING = 25;
+
+	private static final int BYTE_COLUMNS = 26;
+
+	/*
+	 *	Column directory indexes
+	 */
+	private static final int COL_CODE_OFFSETS = 0;
+	private static final int COL_CODES = 1;
+	private static final int COL_REPORT_OFFSETS = 2;
+	private static final int COL_VACCINE_OFFSETS = 3;
+	private static final int COL_DATE = 4;
+	private static final int COL_SYSTEMIC_REACTION = 5;
+	private static final int COL_TESTED_POSITIVE_DATE = 6;
+	private static final int COL_VACCINE_DATE = 7;
+	private static final int COL_VACCINE_NUMBER = 8;
+	private static final int COL_REGISTRANT_IDS = 9;
+	private static final int COL_BYTES = 10;
+	private static final int COLUMNS = COL_BYTES + BYTE_COLUMNS;
+
+	private final RandomAccessFile file;
+
+	private final int registrantCount;
+	private final int reportCount;
+	private final int vaccineCount;
+
+	private final IntBuffer registrantIds;
+	private final IntBuffer codeOffsets;
+	private final ByteBuffer codes;
+	private final IntBuffer reportOffsets;
+	private final IntBuffer vaccineOffsets;
+	private final IntBuffer date;
+	private final ShortBuffer systemicReaction;
+	private final IntBuffer testedPositiveDate;
+	private final IntBuffer vaccineDate;
+	private final ByteBuffer vaccineNumber;
+	private final ByteBuffer[] bytes;
+
+	/**
+	 * Open the store, mapping the columns into memory.
+	 * @param f The file to open
+	 * @throws IOException
+	 */
+	public ReportStore(File f) throws IOException
+	{
+		file = new RandomAccessFile(f,"r");
+
+		if (file.readInt() != MAGIC) throw new IOException("Not a report store");
+		if (file.readInt() != VERSION) throw new IOException("Unsupported report store version");
+		registrantCount = file.readInt();
+		reportCount = file.readInt();
+		vaccineCount = file.readInt();
+		if (file.readInt() != COLUMNS) throw new IOException("Sync Error");
+
+		ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+		FileChannel channel = file.getChannel();
+		for (int i = 0; i < COLUMNS; ++i) {
+			long offset = file.readLong();
+			long length = file.readLong();
+			columns[i] = channel.map(FileChannel.MapMode.READ_ONLY,offset,length);
+		}
+
+		registrantIds = columns[COL_REGISTRANT_IDS].asIntBuffer();
+		codeOffsets = columns[COL_CODE_OFFSETS].asIntBuffer();
+		codes = columns[COL_CODES];
+		reportOffsets = columns[COL_REPORT_OFFSETS].asIntBuffer();
+		vaccineOffsets = columns[COL_VACCINE_OFFSETS].asIntBuffer();
+		date = columns[COL_DATE].asIntBuffer();
+		systemicReaction = columns[COL_SYSTEMIC_REACTION].asShortBuffer();
+		testedPositiveDate = columns[COL_TESTED_POSITIVE_DATE].asIntBuffer();
+		vaccineDate = columns[COL_VACCINE_DATE].asIntBuffer();
+		vaccineNumber = columns[COL_VACCINE_NUMBER];
+
+		bytes = new ByteBuffer[BYTE_COLUMNS];
+		System.arraycopy(columns,COL_BYTES,bytes,0,BYTE_COLUMNS);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	/*
+	 *	Registrants
+	 */
+
+	public int getRegistrantCount()
+	{
+		return registrantCount;
+	}
+
+	public String getRegistrantCode(int registrant)
+	{
+		int s = codeOffsets.get(registrant);
+		int e = codeOffsets.get(registrant + 1);
+		byte[] tmp = new byte[e - s];
+		codes.get(s,tmp);
+		return new String(tmp,StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Return the ID of the registrant in the registrant dictionary
+	 * @param registrant The registrant index in this store
+	 * @return The registrant ID
+	 */
+	public int getRegistrantId(int registrant)
+	{
+		return registrantIds.get(registrant);
+	}
+
+	/**
+	 * Find the registrant with the specified registrant ID.
+	 * @param id The registrant ID from the registrant dictionary
+	 * @return The registrant index in this store, or -1 if not found
+	 */
+	public int findRegistrant(int id)
+	{
+		int lo = 0;
+		int hi = registrantCount - 1;
+
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int v = registrantIds.get(mid);
+			if (v < id) lo = mid + 1;
+			else if (v > id) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	public int getReportStart(int registrant)
+	{
+		return reportOffsets.get(registrant);
+	}
+
+	public int getReportEnd(int registrant)
+	{
+		return reportOffsets.get(registrant + 1);
+	}
+
+	public int getVaccineStart(int registrant)
+	{
+		return vaccineOffsets.get(registrant);
+	}
+
+	public int getVaccineEnd(int registrant)
+	{
+		return vaccineOffsets.get(registrant + 1);
+	}
+
+	/**
+	 * Copy the report offsets of a run of registrants into an array, for the
+	 * column kernels, which roll up the reports of each registrant. The offsets
+	 * are relative to the first report of the run, so the reports of
+	 * registrant start + i are [offsets[i],offsets[i + 1]) of the column values
+	 * copied by getColumn(column,getReportStart(start),...).
+	 * @param start The first registrant
+	 * @param count The number of registrants
+	 * @param offsets Set to the count + 1 offsets
+	 */
+	public void getReportOffsets(int start, int count, int[] offsets)
+	{
+		reportOffsets.get(start,offsets,0,count + 1);
+		int base = offsets[0];
+		for (int i = 0; i <= count; ++i) offsets[i] -= base;
+	}
+
+	/*
+	 *	Reports
+	 */
+
+	public int getReportCount()
+	{
+		return reportCount;
+	}
+
+	/**
+	 * Returns the date of the report as a day count. (See GregorianDate.)
+	 * @param report The report index
+	 * @return The day count of the report
+	 */
+	public int getDate(int report)
+	{
+		return date.get(report);
+	}
+
+	/**
+	 * Return the value of one of the byte columns, such as HEALTHCARE_VISITS.
+	 * @param column The column, such as ReportStore.HEALTHCARE_VISITS
+	 * @param report The report index
+	 * @return The value stored in the column
+	 */
+	public byte getByte(int column, int report)
+	{
+		return bytes[column].get(report);
+	}
+
+	/**
+	 * Copy a run of one of the byte columns into an array, so it can be handed
+	 * to the column kernels. (See ColumnKernel.)
+	 * @param column The column, such as ReportStore.HEALTHCARE_VISITS
+	 * @param report The first report
+	 * @param count The number of reports
+	 * @param values Set to the value of the column for each report
+	 */
+	public void getColumn(int column, int report, int count, byte[] values)
+	{
+		bytes[column].get(report,values,0,count);
+	}
+
+	public boolean getBoolean(int column, int report)
+	{
+		return bytes[column].get(report) != 0;
+	}
+
+	public short getSystemicReaction(int report)
+	{
+		return systemicReaction.get(report);
+	}
+
+	/**
+	 * Returns the day count of the positive test date, or 0 if not set.
+	 * @param report The report index
+	 * @return The day count
+	 */
+	public int getTestedPositiveDate(int report)
+	{
+		return testedPositiveDate.get(report);
+	}
+
+	/*
+	 *	Vaccines
+	 */
+
+	public int getVaccineCount()
+	{
+		return vaccineCount;
+	}
+
+	public int getVaccineDate(int vaccine)
+	{
+		return vaccineDate.get(vaccine);
+	}
+
+	public byte getVaccineNumber(int vaccine)
+	{
+		return vaccineNumber.get(vaccine);
+	}
+
+	/*
+	 *	Writing
+	 */
+
+	/**
+	 * Writes the per-registrant report history to a columnar store, one
+	 * report at a time, so the history never needs to be held in memory.
+	 *
+	 * The reports must be added grouped by registrant, in registrant ID
+	 * order, and sorted by date within each registrant; then the vaccines in
+	 * the same way. Since the number of registrants, reports and vaccines is
+	 * known up front, the layout of the file is fixed when we start, and each
+	 * column is written through its own buffer at its own place in the file.
+	 */
+	public static class Writer implements Closeable
+	{
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long[] offset = new long[COLUMNS];
+		private final long[] length = new long[COLUMNS];
+		private final ByteBuffer[] buffers = new ByteBuffer[COLUMNS];
+		private final long[] position = new long[COLUMNS];
+		private final long end;
+
+		private final int[] ids;
+		private final int reportCount;
+		private final int vaccineCount;
+
+		private int reportRegistrant;		// index into ids of current registrant
+		private int reports;				// # reports written
+		private int vaccineRegistrant;
+		private int vaccines;
+
+		/**
+		 * Start writing a store.
+		 * @param f The file to write
+		 * @param dict The registrant dictionary
+		 * @param ids The IDs of the registrants to write, in increasing order
+		 * @param reportCount The number of reports which will be written
+		 * @param vaccineCount The number of vaccines which will be written
+		 * @throws IOException
+		 */
+		public Writer(File f, RegistrantDictionary dict, int[] ids, int reportCount, int vaccineCount) throws IOException
+		{
+			this.ids = ids;
+			this.reportCount = reportCount;
+			this.vaccineCount = vaccineCount;
+
+			int registrantCount = ids.length;
+			byte[][] keys = new byte[registrantCount][];
+			int codeLength = 0;
+			for (int i = 0; i < registrantCount; ++i) {
+				if ((i > 0) && (ids[i] <= ids[i - 1])) throw new IOException("Programmer is an idiot; registrants out of order");
+				keys[i] = dict.getCode(ids[i]).getBytes(StandardCharsets.UTF_8);
+				codeLength += keys[i].length;
+			}
+
+			/*
+			 *	Lay out our columns
+			 */
+
+			length[COL_CODE_OFFSETS] = 4L * (registrantCount + 1);
+			length[COL_CODES] = codeLength;
+			length[COL_REPORT_OFFSETS] = 4L * (registrantCount + 1);
+			length[COL_VACCINE_OFFSETS] = 4L * (registrantCount + 1);
+			length[COL_DATE] = 4L * reportCount;
+			length[COL_SYSTEMIC_REACTION] = 2L * reportCount;
+			length[COL_TESTED_POSITIVE_DATE] = 4L * reportCount;
+			length[COL_VACCINE_DATE] = 4L * vaccineCount;
+			length[COL_VACCINE_NUMBER] = vaccineCount;
+			length[COL_REGISTRANT_IDS] = 4L * registrantCount;
+			for (int i = 0; i < BYTE_COLUMNS; ++i) {
+				length[COL_BYTES + i] = reportCount;
+			}
+
+			long pos = align(24 + 16L * COLUMNS);
+			for (int i = 0; i < COLUMNS; ++i) {
+				offset[i] = pos;
+				position[i] = pos;
+				pos = align(pos + length[i]);
+			}
+			end = pos;
+
+			file = new RandomAccessFile(f,"rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			for (int i = 0; i < COLUMNS; ++i) {
+				buffers[i] = ByteBuffer.allocate((int)Math.min(65536,Math.max(8,length[i])));
+			}
+
+			/*
+			 *	Write our header and the registrant columns
+			 */
+
+			ByteBuffer header = ByteBuffer.allocate(24 + 16 * COLUMNS);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(registrantCount);
+			header.putInt(reportCount);
+			header.putInt(vaccineCount);
+			header.putInt(COLUMNS);
+			for (int i = 0; i < COLUMNS; ++i) {
+				header.putLong(offset[i]);
+				header.putLong(length[i]);
+			}
+			header.flip();
+			channel.write(header,0);
+
+			int p = 0;
+			column(COL_CODE_OFFSETS,4).putInt(p);
+			for (byte[] key: keys) {
+				p += key.length;
+				column(COL_CODE_OFFSETS,4).putInt(p);
+			}
+			for (byte[] key: keys) {
+				for (byte b: key) column(COL_CODES,1).put(b);
+			}
+			for (int id: ids) column(COL_REGISTRANT_IDS,4).putInt(id);
+
+			column(COL_REPORT_OFFSETS,4).putInt(0);
+			column(COL_VACCINE_OFFSETS,4).putInt(0);
+		}
+
+		/**
+		 * Return the buffer for a column, making sure it has room for the
+		 * number of bytes provided.
+		 */
+		private ByteBuffer column(int c, int bytes) throws IOException
+		{
+			ByteBuffer b = buffers[c];
+			if (b.remaining() < bytes) flush(c);
+			return b;
+		}
+
+		private void flush(int c) throws IOException
+		{
+			ByteBuffer b = buffers[c];
+			b.flip();
+			while (b.hasRemaining()) {
+				position[c] += channel.write(b,position[c]);
+			}
+			b.clear();
+		}
+
+		/**
+		 * Advance our registrant to the one with the ID provided, closing off
+		 * the registrants in between.
+		 * @return The new registrant index
+		 */
+		private int advance(int registrant, int id, int column, int count) throws IOException
+		{
+			while ((registrant < ids.length) && (ids[registrant] < id)) {
+				column(column,4).putInt(count);
+				++registrant;
+			}
+			if ((registrant >= ids.length) || (ids[registrant] != id)) {
+				throw new IOException("Programmer is an idiot; registrant " + id + " out of order");
+			}
+			return registrant;
+		}
+
+		/**
+		 * Add the next report.
+		 * @param id The registrant ID of the report
+		 * @param r The report
+		 * @throws IOException
+		 */
+		public void addReport(int id, Report2.Report r) throws IOException
+		{
+			if (reports >= reportCount) throw new IOException("Programmer is an idiot; too many reports");
+			reportRegistrant = advance(reportRegistrant,id,COL_REPORT_OFFSETS,reports);
+
+			column(COL_DATE,4).putInt(r.date);
+			column(COL_SYSTEMIC_REACTION,2).putShort(r.SYSTEMIC_REACTION);
+			column(COL_TESTED_POSITIVE_DATE,4).putInt(r.TESTED_POSITIVE_DATE);
+			for (int i = 0; i < BYTE_COLUMNS; ++i) {
+				column(COL_BYTES + i,1).put(byteColumn(r,i));
+			}
+			++reports;
+		}
+
+		/**
+		 * Add the next vaccine.
+		 * @param id The registrant ID of the vaccine
+		 * @param v The vaccine
+		 * @throws IOException
+		 */
+		public void addVaccine(int id, Report2.Vaccine v) throws IOException
+		{
+			if (vaccines >= vaccineCount) throw new IOException("Programmer is an idiot; too many vaccines");
+			vaccineRegistrant = advance(vaccineRegistrant,id,COL_VACCINE_OFFSETS,vaccines);
+
+			column(COL_VACCINE_DATE,4).putInt(v.date);
+			column(COL_VACCINE_NUMBER,1).put(v.vaccineNumber);
+			++vaccines;
+		}
+
+		/**
+		 * Finish writing the store. All of the reports and vaccines must
+		 * have been added.
+		 * @throws IOException
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			try {
+				if ((reports != reportCount) || (vaccines != vaccineCount)) {
+					throw new IOException("Programmer is an idiot; expected " + reportCount + " reports and " + vaccineCount + " vaccines");
+				}
+
+				/*
+				 *	Close off the remaining registrants
+				 */
+				for (; reportRegistrant < ids.length; ++reportRegistrant) {
+					column(COL_REPORT_OFFSETS,4).putInt(reports);
+				}
+				for (; vaccineRegistrant < ids.length; ++vaccineRegistrant) {
+					column(COL_VACCINE_OFFSETS,4).putInt(vaccines);
+				}
+
+				/*
+				 *	Flush and pad each column out to the next
+				 */
+				for (int c = 0; c < COLUMNS; ++c) {
+					flush(c);
+					if (position[c] != offset[c] + length[c]) throw new IOException("Sync Error");
+
+					long next = (c + 1 < COLUMNS) ? offset[c + 1] : end;
+					ByteBuffer pad = ByteBuffer.allocate((int)(next - position[c]));
+					channel.write(pad,position[c]);
+				}
+				ByteBuffer pad = ByteBuffer.allocate((int)(offset[0] - 24 - 16 * COLUMNS));
+				channel.write(pad,24 + 16 * COLUMNS);
+			}
+			finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Return the value of the byte column for the report
+	 */
+	private static byte byteColumn(Report2.Report r, int column)
+	{
+		switch (column) {
+			case ABDOMINAL_PAIN: return r.ABDOMINAL_PAIN;
+			case CHILLS: return r.CHILLS;
+			case DIARRHEA: return r.DIARRHEA;
+			case FATIGUE: return r.FATIGUE;
+			case FEELING_TODAY: return r.FEELING_TODAY;
+			case FEVER: return (byte)(r.FEVER ? 1 : 0);
+			case HAD_SYMPTOMS: return (byte)(r.HAD_SYMPTOMS ? 1 : 0);
+			case HEADACHE: return r.HEADACHE;
+			case HEALTH_IMPACT: return r.HEALTH_IMPACT;
+			case HEALTH_NOW: return r.HEALTH_NOW;
+			case HEALTH_NOW_COMPARISON: return r.HEALTH_NOW_COMPARISON;
+			case VACCINE_CAUSED_HEALTH_ISSUES: return (byte)(r.VACCINE_CAUSED_HEALTH_ISSUES ? 1 : 0);
+			case HEALTHCARE_VISITS: return r.HEALTHCARE_VISITS;
+			case ITCHING: return r.ITCHING;
+			case JOINT_PAINS: return r.JOINT_PAINS;
+			case MUSCLE_OR_BODY_ACHES: return r.MUSCLE_OR_BODY_ACHES;
+			case NAUSEA: return r.NAUSEA;
+			case PAIN: return r.PAIN;
+			case PREGNANT: return r.PREGNANT;
+			case PREGNANCY_TEST: return (byte)(r.PREGNANCY_TEST ? 1 : 0);
+			case RASH_OUTSIDE_INJECTION_SITE: return r.RASH_OUTSIDE_INJECTION_SITE;
+			case REDNESS: return r.REDNESS;
+			case SITE_REACTION: return r.SITE_REACTION;
+			case SWELLING: return r.SWELLING;
+			case TESTED_POSITIVE: return (byte)(r.TESTED_POSITIVE ? 1 : 0);
+			case VOMITING: return r.VOMITING;
+			default: throw new IllegalArgumentException("Unknown column " + column);
+		}
+	}
+
+	private static long align(long pos)
+	{
+		return (pos + 7) & ~7L;
+	}
+}
@@ -0,0 +1,234 @@
+package com.chaosinmotion.coviddata.reports;
+
+/**
+ * A cursor which walks the history of each registrant in a ReportStore, one
+ * registrant at a time. The reports and vaccinations of a registrant are
+ * merged into a single timeline in date order, and each event is read in
+ * place from the store through primitive accessors, so a report over the
+ * history of every registrant runs in constant memory.
+ *
+ * Usage:
+ *
+ *	Timeline t = new Timeline(store);
+ *	while (t.nextRegistrant()) {
+ *		while (t.next()) {
+ *			if (t.isVaccine()) ...
+ *			else if (t.getBoolean(ReportStore.FEVER)) ...
+ *		}
+ *	}
+ *
+ * On the same day, vaccinations come before reports, since a check-in is
+ * made after the vaccination it refers to. Reports on the same day stay in
+ * the order they were made.
+ */
+public class Timeline
+{
+	private final ReportStore store;
+	private final int registrantCount;
+
+	private int registrant = -1;
+	private int report;				// next report
+	private int reportEnd;
+	private int vaccine;			// next vaccine
+	private int vaccineEnd;
+
+	private int current;			// current report or vaccine index
+	private boolean isVaccine;
+	private boolean valid;
+
+	/**
+	 * Create a timeline cursor over the store. The cursor is positioned
+	 * before the first registrant.
+	 * @param store The store
+	 */
+	public Timeline(ReportStore store)
+	{
+		this.store = store;
+		this.registrantCount = store.getRegistrantCount();
+	}
+
+	/*
+	 *	Registrants
+	 */
+
+	/**
+	 * Advance to the next registrant. The cursor is positioned before the
+	 * first event of the registrant.
+	 * @return false if there are no more registrants
+	 */
+	public boolean nextRegistrant()
+	{
+		if (registrant < registrantCount) ++registrant;
+		if (registrant >= registrantCount) {
+			valid = false;
+			return false;
+		}
+		rewind();
+		return true;
+	}
+
+	/**
+	 * Move to the registrant with the index provided in the store.
+	 * @param index The registrant index in the store
+	 */
+	public void seekRegistrant(int index)
+	{
+		if ((index < 0) || (index >= registrantCount)) throw new IndexOutOfBoundsException(index);
+		registrant = index;
+		rewind();
+	}
+
+	/**
+	 * Move back to before the first event of the current registrant.
+	 */
+	public void rewind()
+	{
+		report = store.getReportStart(registrant);
+		reportEnd = store.getReportEnd(registrant);
+		vaccine = store.getVaccineStart(registrant);
+		vaccineEnd = store.getVaccineEnd(registrant);
+		valid = false;
+	}
+
+	/**
+	 * The index of the current registrant in the store
+	 */
+	public int getRegistrant()
+	{
+		return registrant;
+	}
+
+	/**
+	 * The ID of the current registrant in the registrant dictionary
+	 */
+	public int getRegistrantId()
+	{
+		return store.getRegistrantId(registrant);
+	}
+
+	public String getRegistrantCode()
+	{
+		return store.getRegistrantCode(registrant);
+	}
+
+	public int getReportCount()
+	{
+		return reportEnd - store.getReportStart(registrant);
+	}
+
+	public int getVaccineCount()
+	{
+		return vaccineEnd - store.getVaccineStart(registrant);
+	}
+
+	/*
+	 *	Events
+	 */
+
+	/**
+	 * Advance to the next event in the current registrant's timeline.
+	 * @return false if there are no more events
+	 */
+	public boolean next()
+	{
+		if (report < reportEnd) {
+			if ((vaccine < vaccineEnd) && (store.getVaccineDate(vaccine) <= store.getDate(report))) {
+				current = vaccine++;
+				isVaccine = true;
+			} else {
+				current = report++;
+				isVaccine = false;
+			}
+		} else if (vaccine < vaccineEnd) {
+			current = vaccine++;
+			isVaccine = true;
+		} else {
+			valid = false;
+			return false;
+		}
+		valid = true;
+		return true;
+	}
+
+	private void check()
+	{
+		if (!valid) throw new IllegalStateException("No current event");
+	}
+
+	private void checkReport()
+	{
+		if (!valid || isVaccine) throw new IllegalStateException("Current event is not a report");
+	}
+
+	public boolean isVaccine()
+	{
+		check();
+		return isVaccine;
+	}
+
+	public boolean isReport()
+	{
+		check();
+		return !isVaccine;
+	}
+
+	/**
+	 * Return the index of the current report or vaccine in the store.
+	 */
+	public int getIndex()
+	{
+		check();
+		return current;
+	}
+
+	/**
+	 * Return the date of the current event as a day count. (See
+	 * GregorianDate.)
+	 */
+	public int getDate()
+	{
+		check();
+		return isVaccine ? store.getVaccineDate(current) : store.getDate(current);
+	}
+
+	/**
+	 * Return the dose number of the current vaccination.
+	 */
+	public byte getVaccineNumber()
+	{
+		if (!valid || !isVaccine) throw new IllegalStateException("Current event is not a vaccination");
+		return store.getVaccineNumber(current);
+	}
+
+	/**
+	 * Return the value of one of the byte columns of the current report.
+	 * @param column The column, such as ReportStore.HEALTHCARE_VISITS
+	 */
+	public byte getByte(int column)
+	{
+		checkReport();
+		return store.getByte(column,current);
+	}
+
+	public boolean getBoolean(int column)
+	{
+		checkReport();
+		return store.getBoolean(column,current);
+	}
+
+	public short getSystemicReaction()
+	{
+		checkReport();
+		return store.getSystemicReaction(current);
+	}
+
+	/**
+	 * Returns the day count of the positive test date of the current
+	 * report, or 0 if not set.
+	 */
+	public int getTestedPositiveDate()
+	{
+		checkReport();
+		return store.getTestedPositiveDate(current);
+	}
+}
@@ -0,0 +1,177 @@
+package com.chaosinmotion.coviddata.reports;
+
+import com.chaosinmotion.coviddata.utils.ColumnKernel;
+
+/**
+ * The visit table holds the number of health care visits of each type for
+ * each registrant, indexed by registrant ID. Rather than one Visit object per
+ * registrant, we keep one primitive array per visit type, so 9.5 million
+ * registrants cost us four int arrays instead of 9.5 million small objects
+ * in a hash map.
+ */
+public class VisitTable
+{
+	/*
+	 *	Visit flags, as decoded from HEALTHCARE_VISITS
+	 */
+	public static final int VISIT_ER = 1;
+	public static final int VISIT_HOSPITAL = 2;
+	public static final int VISIT_OUTPATIENT = 4;
+	public static final int VISIT_TELEHEALTH = 8;
+
+	// Emergency room or emergency department visit
+	private int[] er;
+	// Hospitalization
+	private int[] hospital;
+	// Outpatient clinic or urgent care clinic visit
+	private int[] outpatient;
+	// Telehealth, virtual health, or email health consultation
+	private int[] telehealth;
+
+	private int size;
+
+	public VisitTable()
+	{
+		this(1024);
+	}
+
+	public VisitTable(int capacity)
+	{
+		capacity = Math.max(capacity,16);
+		er = new int[capacity];
+		hospital = new int[capacity];
+		outpatient = new int[capacity];
+		telehealth = new int[capacity];
+	}
+
+	/**
+	 * Make sure the registrant ID is in our table, growing if needed.
+	 * @param id The registrant ID
+	 */
+	private void ensure(int id)
+	{
+		if (id >= er.length) {
+			int capacity = Math.max(id + 1,er.length * 2);
+			er = grow(er,capacity);
+			hospital = grow(hospital,capacity);
+			outpatient = grow(outpatient,capacity);
+			telehealth = grow(telehealth,capacity);
+		}
+		if (id >= size) size = id + 1;
+	}
+
+	private static int[] grow(int[] array, int capacity)
+	{
+		int[] resize = new int[capacity];
+		System.arraycopy(array,0,resize,0,array.length);
+		return resize;
+	}
+
+	/**
+	 * Grow the table to hold the specified number of registrants. New
+	 * registrants have no visits.
+	 * @param size The number of registrants
+	 */
+	public void setSize(int size)
+	{
+		if (size > this.size) ensure(size - 1);
+	}
+
+	/**
+	 * The number of registrants in this table. IDs run from 0 to size() - 1.
+	 * @return The number of registrants
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Record a check-in for the registrant, with the visit flags found in
+	 * the HEALTHCARE_VISITS field. A check-in with no visits still adds the
+	 * registrant to our table.
+	 * @param id The registrant ID
+	 * @param flags The VISIT_XXX flags
+	 */
+	public void add(int id, int flags)
+	{
+		ensure(id);
+		if (0 != (flags & VISIT_ER)) er[id]++;
+		if (0 != (flags & VISIT_HOSPITAL)) hospital[id]++;
+		if (0 != (flags & VISIT_OUTPATIENT)) outpatient[id]++;
+		if (0 != (flags & VISIT_TELEHEALTH)) telehealth[id]++;
+	}
+
+	/**
+	 * Set the visit counts for the registrant, such as when loading from
+	 * our cache.
+	 */
+	public void set(int id, int er, int hospital, int outpatient, int telehealth)
+	{
+		ensure(id);
+		this.er[id] = er;
+		this.hospital[id] = hospital;
+		this.outpatient[id] = outpatient;
+		this.telehealth[id] = telehealth;
+	}
+
+	/**
+	 * Merge the counts from another table into ours
+	 * @param other The other table
+	 * @param remap Maps the registrant IDs of the other table to our IDs, or
+	 *              null if both tables use the same IDs
+	 */
+	public void merge(VisitTable other, int[] remap)
+	{
+		for (int i = 0; i < other.size; ++i) {
+			int id = (remap == null) ? i : remap[i];
+			ensure(id);
+			er[id] += other.er[i];
+			hospital[id] += other.hospital[i];
+			outpatient[id] += other.outpatient[i];
+			telehealth[id] += other.telehealth[i];
+		}
+	}
+
+	public int getER(int id)
+	{
+		return er[id];
+	}
+
+	public int getHospital(int id)
+	{
+		return hospital[id];
+	}
+
+	public int getOutpatient(int id)
+	{
+		return outpatient[id];
+	}
+
+	public int getTelehealth(int id)
+	{
+		return telehealth[id];
+	}
+
+	public boolean hasVisit(int id)
+	{
+		return (er[id] != 0) || (hospital[id] != 0) || (outpatient[id] != 0) || (telehealth[id] != 0);
+	}
+
+	/**
+	 * Returns the VISIT_XXX flags of every registrant: the flag is set if
+	 * the registrant has at least one visit of that type. This is done a
+	 * column at a time, so it can be vectorized.
+	 * @return The flags, indexed by registrant ID
+	 */
+	public byte[] getFlags()
+	{
+		ColumnKernel kernel = ColumnKernel.get();
+		byte[] flags = new byte[size];
+		kernel.setFlag(er,size,VISIT_ER,flags);
+		kernel.setFlag(hospital,size,VISIT_HOSPITAL,flags);
+		kernel.setFlag(outpatient,size,VISIT_OUTPATIENT,flags);
+		kernel.setFlag(telehealth,size,VISIT_TELEHEALTH,flags);
+		return flags;
+	}
+}
@@ -0,0 +1,261 @@
+package com.chaosinmotion.coviddata.server;
+
+import com.chaosinmotion.coviddata.reports.CohortIndex;
+import com.chaosinmotion.coviddata.reports.CohortReport;
+import com.chaosinmotion.coviddata.reports.DemographicReport;
+import com.chaosinmotion.coviddata.reports.Report1;
+import com.chaosinmotion.coviddata.reports.Report2;
+import com.chaosinmotion.coviddata.reports.ReportEngine;
+import com.chaosinmotion.coviddata.utils.Metrics;
+import com.chaosinmotion.coviddata.utils.Utils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small HTTP server which runs our reports once, building or loading the
+ * caches the same way Main does, then keeps what the reports need in memory
+ * and answers requests against it. Once started, a report or a cohort query
+ * takes milliseconds rather than a rescan of the caches.
+ *
+ * The server only listens on the loopback address. Requests are text in,
+ * text out:
+ *
+ *	/report1			The results of Report1
+ *	/report2			The results of Report2
+ *	/cohorts			The size of every cohort
+ *	/cohort?q=QUERY		The size of the cohort query (see CohortIndex)
+ *	/demographics		Report1 broken down by each demographic field
+ *	/demographics?by=F,G	Report1 broken down by the fields F and G
+ *
+ * Requests run on a fixed pool of threads with a bounded queue. When the
+ * queue is full, the thread accepting connections runs the request itself,
+ * so new connections wait in the socket backlog until we catch up.
+ *
+ * Requests are not serialized: several may print a report or run a query at
+ * once. This relies on the data the reports hold once they have run never
+ * changing afterwards (the registrant visits, the Report2 visit counts, the
+ * demographic tables and the cohort index), so printing one only reads it.
+ */
+public class QueryServer
+{
+	private final Report1 report1;
+	private final Report2.VisitHistory history;
+	private final CohortIndex cohorts;
+	private final DemographicReport demographics;
+
+	private HttpServer server;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Run the reports, and hold on to the data needed to answer requests.
+	 * @throws Exception
+	 */
+	public QueryServer() throws Exception
+	{
+		report1 = new Report1();
+		Report2 report2 = new Report2(report1);
+		CohortReport cohortReport = new CohortReport();
+		demographics = new DemographicReport(report1);
+
+		Metrics.start();
+		ReportEngine engine = new ReportEngine();
+		engine.register(report1);
+		engine.register(report2);
+		engine.register(demographics);
+		engine.register(cohortReport);
+		engine.run();
+
+		history = report2.loadHistory();
+		cohorts = cohortReport.getIndex();
+		Metrics.finish(new File("cache/metrics.json"));
+	}
+
+	/**
+	 * Start listening for requests.
+	 * @param port The port to listen on
+	 * @param threads The number of threads handling requests
+	 * @param queue The number of requests which may wait for a thread
+	 * @throws IOException
+	 */
+	public void start(int port, int threads, int queue) throws IOException
+	{
+		executor = new ThreadPoolExecutor(threads,threads,0,TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queue),new ThreadPoolExecutor.CallerRunsPolicy());
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),port),0);
+		server.createContext("/report1",ex -> respond(ex,out -> report1.print(out)));
+		server.createContext("/report2",ex -> respond(ex,out -> history.print(out,report1.getTotalCount())));
+		server.createContext("/cohorts",ex -> respond(ex,this::printCohorts));
+		server.createContext("/cohort",ex -> respond(ex,out -> printQuery(out,parameter(ex,"q"))));
+		server.createContext("/demographics",ex -> respond(ex,out -> printDemographics(out,parameter(ex,"by",null))));
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Stop listening, and wait for requests in progress to finish.
+	 */
+	public void stop()
+	{
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	/*
+	 *	Requests
+	 */
+
+	private interface Request
+	{
+		void print(PrintStream out) throws Exception;
+	}
+
+	/**
+	 * Run the request, sending what it prints as plain text. A query which
+	 * can't be parsed is a 400; anything else which goes wrong is a 500.
+	 */
+	private static void respond(HttpExchange ex, Request request) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(buffer,false,StandardCharsets.UTF_8);
+		int status;
+
+		try {
+			if (!ex.getRequestMethod().equals("GET")) {
+				status = 405;
+				out.println("Only GET is supported");
+			} else if (!ex.getRequestURI().getPath().equals(ex.getHttpContext().getPath())) {
+				status = 404;
+				out.println("Not found");
+			} else {
+				request.print(out);
+				status = 200;
+			}
+		}
+		catch (ParseException | IllegalArgumentException e) {
+			status = 400;
+			out.println(e.getMessage());
+		}
+		catch (Throwable e) {
+			status = 500;
+			out.println("Internal error: " + e);
+		}
+		out.flush();
+
+		byte[] body = buffer.toByteArray();
+		ex.getResponseHeaders().set("Content-Type","text/plain; charset=utf-8");
+		ex.sendResponseHeaders(status,body.length);
+		OutputStream os = ex.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+
+	/**
+	 * Find the value of a parameter in the query string of the request
+	 * @param ex The request
+	 * @param name The parameter name
+	 * @return The decoded value
+	 * @throws IllegalArgumentException if the parameter is missing
+	 */
+	private static String parameter(HttpExchange ex, String name)
+	{
+		String value = parameter(ex,name,null);
+		if (value == null) throw new IllegalArgumentException("Missing parameter " + name);
+		return value;
+	}
+
+	/**
+	 * Find the value of an optional parameter in the query string of the
+	 * request
+	 * @param ex The request
+	 * @param name The parameter name
+	 * @param defaultValue The value if the parameter is missing
+	 * @return The decoded value
+	 */
+	private static String parameter(HttpExchange ex, String name, String defaultValue)
+	{
+		String query = ex.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String param: query.split("&")) {
+				int eq = param.indexOf('=');
+				if ((eq > 0) && param.substring(0,eq).equals(name)) {
+					return URLDecoder.decode(param.substring(eq + 1),StandardCharsets.UTF_8);
+				}
+			}
+		}
+		return defaultValue;
+	}
+
+	private void printCohorts(PrintStream out)
+	{
+		String[] names = CohortIndex.getCohortNames();
+		int total = cohorts.getRegistrantCount();
+		for (int i = 0; i < names.length; ++i) {
+			int n = (int)cohorts.get(i).getCardinality();
+			out.println(names[i] + ": " + n + Utils.perc(n,total));
+		}
+	}
+
+	private void printQuery(PrintStream out, String query) throws ParseException
+	{
+		int total = cohorts.getRegistrantCount();
+		int n = (int)cohorts.query(query).getCardinality();
+		out.println(query + ": " + n + Utils.perc(n,total));
+	}
+
+	private void printDemographics(PrintStream out, String by)
+	{
+		if (by == null) {
+			demographics.print(out);
+		} else {
+			demographics.group(by.split(",")).print(out);
+		}
+	}
+
+	/**
+	 * Run the query server in the current directory, which should hold our
+	 * data and cache directories, just as for Main.
+	 *
+	 * Options: -p port (default 8080), -t threads (default the number of
+	 * processors), -q the number of requests which may wait for a thread
+	 * (default 64).
+	 */
+	public static void main(String[] args)
+	{
+		try {
+			int port = 8080;
+			int threads = Runtime.getRuntime().availableProcessors();
+			int queue = 64;
+
+			for (int i = 0; i < args.length; ++i) {
+				if (args[i].equals("-p")) port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-t")) threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-q")) queue = Integer.parseInt(args[++i]);
+			}
+
+			QueryServer server = new QueryServer();
+			server.start(port,threads,queue);
+			Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+
+			System.out.println();
+			System.out.println("Listening on http://localhost:" + port + "/");
+		}
+		catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+}
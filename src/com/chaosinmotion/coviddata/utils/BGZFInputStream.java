@@ -0,0 +1,213 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file: a gzip file made of many small gzip members, each of
+ * which holds at most 64K of data and records its own compressed size in the
+ * gzip extra field. (This is the format written by bgzip, and by
+ * CompressedInput.compress.) Because each member can be found without
+ * decompressing the ones before it, members are inflated in groups on a pool
+ * of threads while earlier groups are being read, and are returned in order.
+ *
+ * A BGZF file is also a valid gzip file, so GZIPInputStream can read it too,
+ * one member at a time.
+ */
+public class BGZFInputStream extends InputStream
+{
+	private static final int GROUP = 16;				// # members inflated per task
+	private static final int HEADER = 18;			// bytes of a BGZF member header
+	private static final int TRAILER = 8;			// CRC32 and ISIZE
+
+	private final InputStream input;
+	private final ExecutorService executor;
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+	private boolean eof;						// no more members to read
+
+	private byte[] buffer = new byte[0];
+	private int pos;
+
+	/**
+	 * Open a BGZF file
+	 * @param f The file
+	 * @throws IOException
+	 */
+	public BGZFInputStream(File f) throws IOException
+	{
+		input = new BufferedInputStream(new FileInputStream(f),1024 * 1024);
+
+		int threads = Math.max(1,Runtime.getRuntime().availableProcessors());
+		maxPending = 2 * threads;
+		executor = Executors.newFixedThreadPool(threads,r -> {
+			Thread t = new Thread(r,"BGZFInputStream");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Determine if the start of a file is the header of a BGZF member: a
+	 * gzip header with only the FEXTRA flag set, whose extra field is the
+	 * BC subfield holding the member size.
+	 * @param header At least the first 16 bytes of the file
+	 * @return True if this is BGZF
+	 */
+	public static boolean isBGZF(byte[] header)
+	{
+		return ((header[0] & 0xFF) == 0x1F) && ((header[1] & 0xFF) == 0x8B) && (header[2] == 8) && (header[3] == 4)
+				&& (header[12] == 'B') && (header[13] == 'C') && (header[14] == 2) && (header[15] == 0);
+	}
+
+	/**
+	 * Read the next group of members, and hand them to a thread to inflate.
+	 * @return False if there are no more members
+	 */
+	private boolean submit() throws IOException
+	{
+		byte[][] members = new byte[GROUP][];
+		int count = 0;
+		byte[] header = new byte[HEADER];
+
+		while (count < GROUP) {
+			int n = input.readNBytes(header,0,HEADER);
+			if (n == 0) {
+				eof = true;
+				break;
+			}
+			if ((n < HEADER) || !isBGZF(header) || (header[10] != 6) || (header[11] != 0)) {
+				throw new IOException("Not a BGZF member");
+			}
+
+			int size = ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+			byte[] member = new byte[size];
+			System.arraycopy(header,0,member,0,HEADER);
+			if (input.readNBytes(member,HEADER,size - HEADER) != size - HEADER) throw new EOFException("Truncated BGZF member");
+			members[count++] = member;
+		}
+		if (count == 0) return false;
+
+		int n = count;
+		pending.add(executor.submit(() -> inflate(members,n)));
+		return true;
+	}
+
+	/**
+	 * Inflate a group of members, checking the length and CRC of each.
+	 */
+	private static byte[] inflate(byte[][] members, int count) throws IOException, DataFormatException
+	{
+		int total = 0;
+		for (int i = 0; i < count; ++i) total += getIntLE(members[i],members[i].length - 4);
+
+		byte[] out = new byte[total];
+		int pos = 0;
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		byte[] spare = new byte[1];
+		try {
+			for (int i = 0; i < count; ++i) {
+				byte[] m = members[i];
+				int size = getIntLE(m,m.length - 4);
+
+				inflater.reset();
+				inflater.setInput(m,HEADER,m.length - HEADER - TRAILER);
+
+				/*
+				 *	Inflate until the deflate stream ends. Once we have all
+				 * 	the bytes we expect, we inflate into a spare byte, which
+				 * 	must stay empty.
+				 */
+
+				int n = 0;
+				while (!inflater.finished()) {
+					int r = (n < size) ? inflater.inflate(out,pos + n,size - n) : inflater.inflate(spare);
+					if ((r == 0) && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += r;
+					if (n > size) break;
+				}
+				if ((n != size) || !inflater.finished()) throw new IOException("Corrupt BGZF member");
+
+				crc.reset();
+				crc.update(out,pos,size);
+				if ((int)crc.getValue() != getIntLE(m,m.length - 8)) throw new IOException("BGZF CRC error");
+				pos += size;
+			}
+		}
+		finally {
+			inflater.end();
+		}
+		return out;
+	}
+
+	private static int getIntLE(byte[] b, int off)
+	{
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Make sure we have data to return
+	 * @return False at the end of the file
+	 */
+	private boolean ready() throws IOException
+	{
+		while (pos >= buffer.length) {
+			while (!eof && (pending.size() < maxPending)) {
+				if (!submit()) break;
+			}
+			if (pending.isEmpty()) return false;
+
+			try {
+				buffer = pending.pop().get();
+			}
+			catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+			catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException e) throw e;
+				throw new IOException(ex.getCause());
+			}
+			pos = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!ready()) return -1;
+		return buffer[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0) return 0;
+		if (!ready()) return -1;
+
+		int n = Math.min(len,buffer.length - pos);
+		System.arraycopy(buffer,pos,b,off,n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		executor.shutdownNow();
+		input.close();
+	}
+}
@@ -0,0 +1,285 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.zip.CRC32C;
+
+/**
+ * The cache manifest records, for each file in our cache, the schema version
+ * it was written with and a fingerprint of each of the source files it was
+ * built from. This allows us to tell if a cache is stale because the data
+ * under data/ has changed, rather than just checking if the cache exists.
+ *
+ * A fingerprint is the size and modification time of the file, along with a
+ * hash of a sample of blocks spread across the file. The positions of the
+ * sampled blocks depend only on the size of the file, so if a file has grown
+ * we can rehash the same blocks of the new file and tell if the old contents
+ * are still there--that is, if the file has only been appended to.
+ *
+ * Inputs are looked up with CompressedInput.find, so if an input has been
+ * replaced by a compressed copy, we fingerprint the copy. (Compressing an
+ * input thus makes the caches built from it stale.)
+ *
+ * An input may be appended to while we read it. So that the manifest never
+ * records rows we did not read, an input should be snapshotted before it is
+ * read, and only read up to the size snapshotted; the cache is then recorded
+ * as built from the snapshot, and the rows appended since are picked up by
+ * the next run.
+ *
+ * The manifest is stored as a properties file, cache/manifest.properties.
+ */
+public class CacheManifest
+{
+	private static final int SAMPLES = 16;
+	private static final int SAMPLE_SIZE = 65536;
+
+	/**
+	 * The state of a cache
+	 */
+	public enum Status
+	{
+		VALID,			// The cache is up to date
+		APPENDED,		// One or more inputs have been appended to
+		STALE			// The cache must be rebuilt
+	}
+
+	/**
+	 * The fingerprint of a source file
+	 */
+	private static class Fingerprint
+	{
+		final long size;
+		final long mtime;
+		final long hash;
+
+		Fingerprint(long size, long mtime, long hash)
+		{
+			this.size = size;
+			this.mtime = mtime;
+			this.hash = hash;
+		}
+
+		static Fingerprint parse(String str)
+		{
+			if (str == null) return null;
+			String[] parts = str.split(",");
+			if (parts.length != 3) return null;
+			try {
+				return new Fingerprint(Long.parseLong(parts[0]),Long.parseLong(parts[1]),Long.parseUnsignedLong(parts[2],16));
+			}
+			catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+
+		public String toString()
+		{
+			return size + "," + mtime + "," + Long.toHexString(hash);
+		}
+	}
+
+	private final File file;
+	private final Properties properties = new Properties();
+	private final HashMap<File,Fingerprint> snapshots = new HashMap<>();
+
+	/**
+	 * Load the manifest. If the file does not exist, the manifest is empty
+	 * and every cache is stale.
+	 * @param file The manifest file
+	 * @throws IOException
+	 */
+	public CacheManifest(File file) throws IOException
+	{
+		this.file = file;
+		if (file.exists()) {
+			FileInputStream fis = new FileInputStream(file);
+			properties.load(fis);
+			fis.close();
+		}
+	}
+
+	/**
+	 * Compute the sampled hash of the first size bytes of the file.
+	 * @param f The file
+	 * @param size The number of bytes of the file to consider
+	 * @return The hash
+	 * @throws IOException
+	 */
+	private static long sampleHash(File f, long size) throws IOException
+	{
+		CRC32C crc = new CRC32C();
+		byte[] buffer = new byte[SAMPLE_SIZE];
+
+		RandomAccessFile raf = new RandomAccessFile(f,"r");
+		try {
+			if (size <= (long)SAMPLES * SAMPLE_SIZE) {
+				/*
+				 *	Small file; hash all of it
+				 */
+				long pos = 0;
+				while (pos < size) {
+					int len = (int)Math.min(SAMPLE_SIZE,size - pos);
+					raf.seek(pos);
+					raf.readFully(buffer,0,len);
+					crc.update(buffer,0,len);
+					pos += len;
+				}
+			} else {
+				/*
+				 *	Sample blocks evenly spaced from the start to the end of
+				 * 	the range, so the first and last blocks are always
+				 * 	included.
+				 */
+				long span = size - SAMPLE_SIZE;
+				for (int i = 0; i < SAMPLES; ++i) {
+					raf.seek(span * i / (SAMPLES - 1));
+					raf.readFully(buffer);
+					crc.update(buffer);
+				}
+			}
+		}
+		finally {
+			raf.close();
+		}
+
+		return (crc.getValue() << 32) ^ size;
+	}
+
+	private static Fingerprint fingerprint(File f) throws IOException
+	{
+		long size = f.length();
+		return new Fingerprint(size,f.lastModified(),sampleHash(f,size));
+	}
+
+	private static String versionKey(String cache)
+	{
+		return cache + ".version";
+	}
+
+	private static String inputKey(String cache, File input)
+	{
+		return cache + ".input." + input.getPath();
+	}
+
+	/**
+	 * Determine if the cache file is up to date with respect to its inputs.
+	 * The cache is stale if it does not exist, was written with a different
+	 * version, or any of its inputs have changed other than by appending to
+	 * them.
+	 * @param cache The cache file
+	 * @param version The current schema version of the cache file
+	 * @param inputs The source files the cache is built from
+	 * @return The status of the cache
+	 * @throws IOException
+	 */
+	public Status check(File cache, int version, File... inputs) throws IOException
+	{
+		String name = cache.getName();
+		if (!cache.exists()) return Status.STALE;
+		if (!Integer.toString(version).equals(properties.getProperty(versionKey(name)))) return Status.STALE;
+
+		Status status = Status.VALID;
+		for (File input: inputs) {
+			input = CompressedInput.find(input);
+			Fingerprint old = Fingerprint.parse(properties.getProperty(inputKey(name,input)));
+			if ((old == null) || !input.exists()) return Status.STALE;
+
+			long size = input.length();
+			if (size == old.size) {
+				if (input.lastModified() != old.mtime) return Status.STALE;
+				if (sampleHash(input,size) != old.hash) return Status.STALE;
+			} else if (size > old.size) {
+				if (sampleHash(input,old.size) != old.hash) return Status.STALE;
+				status = Status.APPENDED;
+			} else {
+				return Status.STALE;
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Return the size an input had when the cache was last written.
+	 * @param cache The cache file
+	 * @param input The source file
+	 * @return The size of the source file, or -1 if not known
+	 */
+	public long getInputSize(File cache, File input)
+	{
+		Fingerprint old = Fingerprint.parse(properties.getProperty(inputKey(cache.getName(),CompressedInput.find(input))));
+		return (old == null) ? -1 : old.size;
+	}
+
+	/**
+	 * Return the number of rows of the source files the cache was built from,
+	 * as recorded with setRowCount.
+	 * @param cache The cache file
+	 * @return The number of rows, or 0 if not known
+	 */
+	public long getRowCount(File cache)
+	{
+		try {
+			return Long.parseLong(properties.getProperty(cache.getName() + ".rows","0"));
+		}
+		catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Set the number of rows of the source files the cache was built from.
+	 * This is saved with the next call to update.
+	 * @param cache The cache file
+	 * @param rows The number of rows
+	 */
+	public synchronized void setRowCount(File cache, long rows)
+	{
+		properties.setProperty(cache.getName() + ".rows",Long.toString(rows));
+	}
+
+	/**
+	 * Fingerprint an input before reading it. Caches later updated from the
+	 * input are recorded as built from the input as it is now, rather than as
+	 * it is when they are updated.
+	 * @param input The source file
+	 * @return The size of the source file, which is where reading it should
+	 * 		stop
+	 * @throws IOException
+	 */
+	public synchronized long snapshot(File input) throws IOException
+	{
+		input = CompressedInput.find(input);
+		Fingerprint fp = fingerprint(input);
+		snapshots.put(input,fp);
+		return fp.size;
+	}
+
+	/**
+	 * Record that the cache has been written from its inputs, as of their
+	 * snapshots, or their current contents if they were not snapshotted,
+	 * and save the manifest.
+	 * @param cache The cache file
+	 * @param version The schema version the cache was written with
+	 * @param inputs The source files the cache was built from
+	 * @throws IOException
+	 */
+	public synchronized void update(File cache, int version, File... inputs) throws IOException
+	{
+		String name = cache.getName();
+		String prefix = name + ".input.";
+		properties.keySet().removeIf(k -> ((String)k).startsWith(prefix));
+
+		properties.setProperty(versionKey(name),Integer.toString(version));
+		for (File input: inputs) {
+			input = CompressedInput.find(input);
+			Fingerprint fp = snapshots.get(input);
+			if (fp == null) fp = fingerprint(input);
+			properties.setProperty(inputKey(name,input),fp.toString());
+		}
+
+		FileOutputStream fos = new FileOutputStream(file);
+		properties.store(fos,"Fingerprints of the inputs of each cache file");
+		fos.close();
+	}
+}
@@ -0,0 +1,102 @@
+package com.chaosinmotion.coviddata.utils;
+
+/**
+ * Aggregation kernels which work on packed primitive columns, such as the
+ * HEALTHCARE_VISITS byte column of our ReportStore, rather than on one object
+ * at a time. Each kernel is a single pass over its arrays with no data
+ * dependent branches, so it can be vectorized.
+ *
+ * get() returns the fastest implementation available. If the optional
+ * COVIDDataVector module is on the class path and the JVM was started with
+ * --add-modules jdk.incubator.vector, this is the SIMD implementation built
+ * on the Vector API. Otherwise it is ScalarColumnKernel. Both give exactly
+ * the same results.
+ */
+public interface ColumnKernel
+{
+	/**
+	 * Count, for each bit, the number of values with that bit set.
+	 * @param values The values
+	 * @param n The number of values to count
+	 * @param counts Incremented by the count for each bit; at most 8 bits
+	 */
+	void bitCounts(byte[] values, int n, long[] counts);
+
+	/**
+	 * Count, for each bit, the number of values with that bit set.
+	 * @param values The values
+	 * @param n The number of values to count
+	 * @param counts Incremented by the count for each bit; at most 16 bits
+	 */
+	void bitCounts(short[] values, int n, long[] counts);
+
+	/**
+	 * Count the number of times each value appears. Values outside of
+	 * [0,counts.length) are not counted.
+	 * @param values The values
+	 * @param n The number of values to count
+	 * @param counts Incremented by the count for each value
+	 */
+	void histogram(byte[] values, int n, long[] counts);
+
+	/**
+	 * Count the values which are not zero.
+	 * @param values The values
+	 * @param n The number of values to count
+	 * @return The count
+	 */
+	long countNonZero(byte[] values, int n);
+
+	/**
+	 * Set a flag for each count which is not zero: flags[i] |= flag if
+	 * counts[i] != 0.
+	 * @param counts The counts
+	 * @param n The number of counts
+	 * @param flag The flag to set
+	 * @param flags The flags
+	 */
+	void setFlag(int[] counts, int n, int flag, byte[] flags);
+
+	/**
+	 * OR together the values in each group for which the mask is not zero.
+	 * The values of group g are [offsets[g],offsets[g + 1]), so this is used
+	 * to roll up per-report values to per-registrant values.
+	 * @param values The values
+	 * @param mask The mask; values where the mask is zero are ignored
+	 * @param offsets The start of each group, and the end of the last
+	 * @param groups The number of groups
+	 * @param result Set to the OR of each group
+	 */
+	void groupOr(byte[] values, byte[] mask, int[] offsets, int groups, byte[] result);
+
+	/**
+	 * Return the fastest kernel available.
+	 */
+	static ColumnKernel get()
+	{
+		return Holder.kernel;
+	}
+
+	/**
+	 * Finds our kernel the first time it is asked for.
+	 */
+	final class Holder
+	{
+		private static final String VECTOR = "com.chaosinmotion.coviddata.vector.VectorColumnKernel";
+
+		static final ColumnKernel kernel = load();
+
+		private static ColumnKernel load()
+		{
+			if (!Boolean.getBoolean("coviddata.scalar")) {
+				try {
+					return (ColumnKernel)Class.forName(VECTOR).getDeclaredConstructor().newInstance();
+				}
+				catch (Throwable ex) {
+					// Not on the class path, or jdk.incubator.vector not loaded
+				}
+			}
+			return new ScalarColumnKernel();
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Lets us keep the files under data/ compressed. A data file may be replaced
+ * by a compressed copy with the same name plus .gz, .zip or .zst, and find()
+ * will find it; open() then looks at the first bytes of the file to tell how
+ * it was compressed, and returns a stream of the uncompressed contents.
+ *
+ * A gzip file written as BGZF (by bgzip, or by compress() below) is inflated
+ * in parallel; see BGZFInputStream. Any other gzip file, including one made of
+ * several members, is inflated on a single thread, as is the first entry of a
+ * zip file.
+ *
+ * Zstandard files are recognized but can't be read, as the JDK has no
+ * Zstandard decoder; open() says so rather than handing back garbage.
+ */
+public class CompressedInput
+{
+	private static final String[] SUFFIXES = { ".gz", ".zip", ".zst" };
+
+	private static final int BGZF_BLOCK = 0xFF00;		// input bytes per BGZF member, as bgzip
+	private static final int BGZF_MAX = 65536;			// max size of a BGZF member
+	private static final int GROUP = 64;				// # members deflated per task
+	private static final byte[] BGZF_EOF = {
+			0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0,
+			0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	private enum Format
+	{
+		PLAIN,
+		GZIP,
+		BGZF,
+		ZIP,
+		ZSTD
+	}
+
+	/**
+	 * Find a data file, or its compressed copy if the file itself does not
+	 * exist.
+	 * @param f The uncompressed data file
+	 * @return The file to read, which is f if neither exists
+	 */
+	public static File find(File f)
+	{
+		if (f.exists()) return f;
+		for (String suffix: SUFFIXES) {
+			File c = new File(f.getPath() + suffix);
+			if (c.exists()) return c;
+		}
+		return f;
+	}
+
+	private static Format format(File f) throws IOException
+	{
+		byte[] header = new byte[16];
+		int n;
+		try (RandomAccessFile raf = new RandomAccessFile(f,"r")) {
+			n = raf.read(header);
+		}
+		if (n < 4) return Format.PLAIN;
+
+		int b0 = header[0] & 0xFF;
+		int b1 = header[1] & 0xFF;
+		if ((b0 == 0x1F) && (b1 == 0x8B)) {
+			return ((n == 16) && BGZFInputStream.isBGZF(header)) ? Format.BGZF : Format.GZIP;
+		}
+		if ((b0 == 'P') && (b1 == 'K') && (header[2] == 3) && (header[3] == 4)) return Format.ZIP;
+		if ((b0 == 0x28) && (b1 == 0xB5) && ((header[2] & 0xFF) == 0x2F) && ((header[3] & 0xFF) == 0xFD)) return Format.ZSTD;
+		return Format.PLAIN;
+	}
+
+	/**
+	 * Determine if a file is compressed. A compressed file can only be read
+	 * from front to back, so it can't be mapped and scanned in chunks, or
+	 * appended to.
+	 * @param f The file
+	 * @return True if compressed
+	 * @throws IOException
+	 */
+	public static boolean isCompressed(File f) throws IOException
+	{
+		return f.exists() && (format(f) != Format.PLAIN);
+	}
+
+	/**
+	 * Open a data file, decompressing it if needed
+	 * @param f The file, as returned by find()
+	 * @return The uncompressed contents of the file
+	 * @throws IOException
+	 */
+	public static InputStream open(File f) throws IOException
+	{
+		switch (format(f)) {
+			case BGZF:
+				return new BGZFInputStream(f);
+			case GZIP:
+				return new GZIPInputStream(new FileInputStream(f),65536);
+			case ZIP:
+				ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(f),65536));
+				ZipEntry entry;
+				while ((entry = zis.getNextEntry()) != null) {
+					if (!entry.isDirectory()) return zis;
+				}
+				zis.close();
+				throw new IOException(f + " is an empty zip file");
+			case ZSTD:
+				throw new IOException(f + " is Zstandard compressed, which we can't read; decompress it with zstd -d, or recompress it with CompressedInput");
+			default:
+				return new FileInputStream(f);
+		}
+	}
+
+	/*
+	 *	BGZF compression
+	 */
+
+	/**
+	 * Deflate a group of BGZF blocks. Each block becomes a complete member.
+	 * If a block doesn't compress enough to fit in a member, it is stored
+	 * rather than deflated.
+	 */
+	private static byte[] deflate(byte[] data, int length)
+	{
+		byte[] out = new byte[(length / BGZF_BLOCK + 1) * BGZF_MAX];
+		byte[] buffer = new byte[BGZF_MAX];
+		int pos = 0;
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,true);
+		CRC32 crc = new CRC32();
+
+		try {
+			for (int off = 0; off < length; off += BGZF_BLOCK) {
+				int len = Math.min(BGZF_BLOCK,length - off);
+				int clen = deflate(deflater,data,off,len,buffer);
+				if (clen < 0) {
+					deflater.setLevel(Deflater.NO_COMPRESSION);
+					clen = deflate(deflater,data,off,len,buffer);
+					deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+					if (clen < 0) throw new RuntimeException("Programmer is an idiot; stored BGZF block too large");
+				}
+				crc.reset();
+				crc.update(data,off,len);
+
+				int size = 18 + clen + 8;
+				System.arraycopy(BGZF_EOF,0,out,pos,16);
+				putShortLE(out,pos + 16,size - 1);
+				System.arraycopy(buffer,0,out,pos + 18,clen);
+				putIntLE(out,pos + 18 + clen,(int)crc.getValue());
+				putIntLE(out,pos + 22 + clen,len);
+				pos += size;
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		byte[] ret = new byte[pos];
+		System.arraycopy(out,0,ret,0,pos);
+		return ret;
+	}
+
+	/**
+	 * Deflate one block
+	 * @return The compressed size, or -1 if it doesn't fit in a member
+	 */
+	private static int deflate(Deflater deflater, byte[] data, int off, int len, byte[] buffer)
+	{
+		int room = BGZF_MAX - 26;
+		deflater.reset();
+		deflater.setInput(data,off,len);
+		deflater.finish();
+		int clen = 0;
+		while (!deflater.finished()) {
+			if (clen == room) return -1;
+			clen += deflater.deflate(buffer,clen,room - clen);
+		}
+		return clen;
+	}
+
+	private static void putShortLE(byte[] b, int off, int v)
+	{
+		b[off] = (byte)v;
+		b[off + 1] = (byte)(v >> 8);
+	}
+
+	private static void putIntLE(byte[] b, int off, int v)
+	{
+		b[off] = (byte)v;
+		b[off + 1] = (byte)(v >> 8);
+		b[off + 2] = (byte)(v >> 16);
+		b[off + 3] = (byte)(v >> 24);
+	}
+
+	/**
+	 * Compress a file as BGZF, so it can be read back in parallel. Groups of
+	 * blocks are deflated on a pool of threads and written in order.
+	 * @param in The file to compress
+	 * @param out The compressed file
+	 * @throws IOException
+	 */
+	public static void compress(File in, File out) throws IOException
+	{
+		int threads = Math.max(1,Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+		try (InputStream is = new FileInputStream(in); OutputStream os = new FileOutputStream(out)) {
+			for (;;) {
+				byte[] data = is.readNBytes(BGZF_BLOCK * GROUP);
+				if (data.length > 0) pending.add(executor.submit(() -> deflate(data,data.length)));
+
+				while (!pending.isEmpty() && ((data.length == 0) || (pending.size() >= 2 * threads))) {
+					os.write(pending.pop().get());
+				}
+				if (data.length == 0) break;
+			}
+			os.write(BGZF_EOF);
+		}
+		catch (InterruptedException ex) {
+			throw new IOException(ex);
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException e) throw e;
+			throw new IOException(ex.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Compress each of the files given as BGZF, writing the file name plus
+	 * .gz. The uncompressed file can then be removed from data/.
+	 */
+	public static void main(String[] args)
+	{
+		try {
+			for (String arg: args) {
+				File in = new File(arg);
+				File out = new File(arg + ".gz");
+				long time = System.currentTimeMillis();
+				compress(in,out);
+				time = System.currentTimeMillis() - time;
+
+				System.out.println(in + ": " + in.length() + " -> " + out.length() + " bytes in " + time + "ms");
+			}
+		}
+		catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+}
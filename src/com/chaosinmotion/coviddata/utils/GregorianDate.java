@@ -84,15 +84,7 @@ public class GregorianDate implements Comparable<GregorianDate>
 	 */
 	public GregorianDate(String date) throws ParseException
 	{
-		String[] split = date.split("/");
-
-		if (split.length != 3) throw new NumberFormatException();
-
-		int m = Integer.parseInt(split[0]);
-		int d = Integer.parseInt(split[1]);
-		int y = Integer.parseInt(split[2]);
-
-		count = dayCount(d,m,y);
+		count = parse(date,0,date.length());
 	}
 
 	/**
@@ -102,16 +94,172 @@ public class GregorianDate implements Comparable<GregorianDate>
 
 	public String toString()
 	{
-		StringBuilder builder = new StringBuilder();
+		return toString(count);
+	}
+
+	/*
+	 *	Primitive date API. These work on plain int day counts, so code which
+	 * 	handles a lot of dates doesn't need to create a GregorianDate for
+	 * 	each one.
+	 */
 
-		Parts p = constructFromCount(count);
+	/*
+	 *	Memo table: the day count of the day before the first of each month,
+	 * 	for the years we are likely to see. The data set only covers a
+	 * 	couple of years, so parsing a date is a table lookup and an add.
+	 */
+	private static final int MEMO_FIRST_YEAR = 1900;
+	private static final int MEMO_LAST_YEAR = 2099;
+	private static final int[] monthStart;
+
+	static {
+		monthStart = new int[(MEMO_LAST_YEAR - MEMO_FIRST_YEAR + 1) * 12];
+		for (int y = MEMO_FIRST_YEAR; y <= MEMO_LAST_YEAR; ++y) {
+			for (int m = 1; m <= 12; ++m) {
+				monthStart[(y - MEMO_FIRST_YEAR) * 12 + m - 1] = dayCount(0,m,y);
+			}
+		}
+	}
+
+	/**
+	 * Given a date represented by day/month/year, convert to a day count,
+	 * using our memo table if we can.
+	 */
+	private static int memoDayCount(int day, int month, int year)
+	{
+		if ((year >= MEMO_FIRST_YEAR) && (year <= MEMO_LAST_YEAR) && (month >= 1) && (month <= 12)) {
+			return monthStart[(year - MEMO_FIRST_YEAR) * 12 + month - 1] + day;
+		}
+		return dayCount(day,month,year);
+	}
+
+	/**
+	 * Parse mm/dd/yyyy stored as bytes, such as in a CSVRow, into a day
+	 * count. This gives the same result as new GregorianDate(str).getCount(),
+	 * without creating any objects.
+	 * @param buffer The buffer holding the date
+	 * @param s The start of the date
+	 * @param len The length of the date
+	 * @return The day count
+	 * @throws ParseException if this is not a date
+	 */
+	public static int parse(byte[] buffer, int s, int len) throws ParseException
+	{
+		return parse(buffer,null,s,len);
+	}
 
-		builder.append(p.month);
+	/**
+	 * Parse mm/dd/yyyy stored in a range of characters into a day count.
+	 * @param str The string holding the date
+	 * @param s The start of the date
+	 * @param len The length of the date
+	 * @return The day count
+	 * @throws ParseException if this is not a date
+	 */
+	public static int parse(CharSequence str, int s, int len) throws ParseException
+	{
+		return parse(null,str,s,len);
+	}
+
+	/**
+	 * Parse a date from either bytes or characters, whichever is not null
+	 */
+	private static int parse(byte[] buffer, CharSequence str, int s, int len) throws ParseException
+	{
+		int e = s + len;
+		int part = 0;
+		int digits = 0;
+		int value = 0;
+		int m = 0, d = 0;
+
+		for (int i = s; i < e; ++i) {
+			int ch = (buffer != null) ? buffer[i] : str.charAt(i);
+			if (ch == '/') {
+				if ((digits == 0) || (part == 2)) throw new ParseException("Illegal date",i - s);
+				if (part == 0) m = value;
+				else d = value;
+				++part;
+				digits = 0;
+				value = 0;
+			} else if ((ch >= '0') && (ch <= '9')) {
+				if (++digits > 9) throw new ParseException("Illegal date",i - s);
+				value = value * 10 + (ch - '0');
+			} else {
+				throw new ParseException("Illegal date",i - s);
+			}
+		}
+		if ((digits == 0) || (part != 2)) throw new ParseException("Illegal date",len);
+
+		return memoDayCount(d,m,value);
+	}
+
+	/**
+	 * Convert a day count into year, month and day, packed into an int as
+	 * yyyymmdd. So 3/15/2021 becomes 20210315.
+	 * @param dcount The day count
+	 * @return The packed date
+	 */
+	public static int packFromCount(int dcount)
+	{
+		int year = gregorianYear(dcount);
+		int priorDays = dcount - dayCount(1,1, year);
+		int correction;
+		int march = dayCount(1,3, year);	// March 1
+
+		if (dcount < march) {
+			correction = 0;
+		} else if (isLeapYear(year)) {
+			correction = 1;
+		} else {
+			correction = 2;
+		}
+
+		int month = (12 * (priorDays + correction) + 373)/367;
+		int day = dcount - dayCount(1, month, year) + 1;
+
+		return year * 10000 + month * 100 + day;
+	}
+
+	public static int getYear(int packed)
+	{
+		return packed / 10000;
+	}
+
+	public static int getMonth(int packed)
+	{
+		return (packed / 100) % 100;
+	}
+
+	public static int getDay(int packed)
+	{
+		return packed % 100;
+	}
+
+	/**
+	 * Append the day count as mm/dd/yyyy
+	 * @param builder The builder to append to
+	 * @param dcount The day count
+	 */
+	public static void append(StringBuilder builder, int dcount)
+	{
+		int p = packFromCount(dcount);
+
+		builder.append(getMonth(p));
 		builder.append('/');
-		builder.append(p.day);
+		builder.append(getDay(p));
 		builder.append('/');
-		builder.append(p.year);
+		builder.append(getYear(p));
+	}
 
+	/**
+	 * Format the day count as mm/dd/yyyy
+	 * @param dcount The day count
+	 * @return The date as a string
+	 */
+	public static String toString(int dcount)
+	{
+		StringBuilder builder = new StringBuilder(10);
+		append(builder,dcount);
 		return builder.toString();
 	}
 
@@ -179,23 +327,8 @@ public class GregorianDate implements Comparable<GregorianDate>
 	 */
 	private static Parts constructFromCount(int dcount)
 	{
-		int year = gregorianYear(dcount);
-		int priorDays = dcount - dayCount(1,1, year);
-		int correction;
-		int march = dayCount(1,3, year);	// March 1
-
-		if (dcount < march) {
-			correction = 0;
-		} else if (isLeapYear(year)) {
-			correction = 1;
-		} else {
-			correction = 2;
-		}
-
-		int month = (12 * (priorDays + correction) + 373)/367;
-		int day = dcount - dayCount(1, month, year) + 1;
-
-		return new Parts(day,month,year);
+		int p = packFromCount(dcount);
+		return new Parts(getDay(p),getMonth(p),getYear(p));
 	}
 
 	private static int gregorianYear(int dcount)
@@ -0,0 +1,72 @@
+package com.chaosinmotion.coviddata.utils;
+
+/**
+ * A growable list of primitive integers, so we don't need to box our values
+ * into an ArrayList.
+ */
+public class IntList
+{
+	private int[] data;
+	private int size;
+
+	public IntList()
+	{
+		this(16);
+	}
+
+	public IntList(int capacity)
+	{
+		data = new int[Math.max(capacity,1)];
+	}
+
+	private void ensure(int capacity)
+	{
+		if (capacity > data.length) {
+			int[] resize = new int[Math.max(capacity,data.length * 2)];
+			System.arraycopy(data,0,resize,0,size);
+			data = resize;
+		}
+	}
+
+	public void add(int value)
+	{
+		ensure(size + 1);
+		data[size++] = value;
+	}
+
+	public void addAll(IntList list)
+	{
+		ensure(size + list.size);
+		System.arraycopy(list.data,0,data,size,list.size);
+		size += list.size;
+	}
+
+	public int get(int index)
+	{
+		if (index >= size) throw new ArrayIndexOutOfBoundsException(index);
+		return data[index];
+	}
+
+	public void set(int index, int value)
+	{
+		if (index >= size) throw new ArrayIndexOutOfBoundsException(index);
+		data[index] = value;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	public int[] toArray()
+	{
+		int[] ret = new int[size];
+		System.arraycopy(data,0,ret,0,size);
+		return ret;
+	}
+}
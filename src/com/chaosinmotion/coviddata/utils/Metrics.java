@@ -0,0 +1,390 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers for the stages of a run, such as the scan of the
+ * check-in file or the rebuild of a cache, so a run which takes hours can say
+ * how it is doing.
+ *
+ * Each stage has named counters (such as "rows" and "bytes"), timers (the
+ * total nanoseconds spent in some part of the stage, summed across threads)
+ * and gauges (such as the size of a map). Counters and timers are LongAdders,
+ * so threads updating the same counter don't contend. Code on a hot path
+ * should look up its counters once, then add to them once per chunk or block
+ * rather than once per row; the cost is then a few adds per megabyte.
+ *
+ * Once start() is called, a line per active stage is logged to System.err
+ * every 10 seconds (or -Dcoviddata.metrics.interval=seconds; 0 turns this
+ * off), in key=value form. finish() logs the final lines and writes a JSON
+ * summary, normally cache/metrics.json. Stages are updated whether or not
+ * start() has been called, so library code can always record metrics.
+ */
+public class Metrics
+{
+	private static final ConcurrentHashMap<String,Stage> stages = new ConcurrentHashMap<>();
+	private static final CopyOnWriteArrayList<Stage> order = new CopyOnWriteArrayList<>();
+
+	private static long startTime = System.nanoTime();
+	private static long gcCount;
+	private static long gcTime;
+	private static Thread logger;
+
+	/**
+	 * The metrics of one stage
+	 */
+	public static class Stage
+	{
+		private final String name;
+		private final ConcurrentHashMap<String,LongAdder> counters = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String,LongAdder> timers = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String,AtomicLong> gauges = new ConcurrentHashMap<>();
+		private volatile long start;			// 0 until the stage starts
+		private volatile long stop;			// 0 until the stage stops
+		private volatile long last;			// time of the last update
+		private volatile boolean started;		// start() was called
+		private long lastRows;				// rows as of the last log line
+
+		private Stage(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Mark the start of the stage, from which rates are measured. If
+		 * never called, the stage runs from its first update to its last,
+		 * which suits stages updated a chunk at a time.
+		 */
+		public Stage start()
+		{
+			start = System.nanoTime();
+			stop = 0;
+			started = true;
+			return this;
+		}
+
+		/**
+		 * Mark the end of the stage
+		 */
+		public void stop()
+		{
+			stop = System.nanoTime();
+		}
+
+		private void touch()
+		{
+			long now = System.nanoTime();
+			if (start == 0) start = now;
+			last = now;
+		}
+
+		/**
+		 * Return a counter of the stage, so it can be updated without
+		 * looking it up each time.
+		 * @param counter The counter name
+		 * @return The counter
+		 */
+		public LongAdder counter(String counter)
+		{
+			touch();
+			return counters.computeIfAbsent(counter,k -> new LongAdder());
+		}
+
+		/**
+		 * Return a timer of the stage. A timer is a counter of nanoseconds.
+		 * @param timer The timer name
+		 * @return The timer
+		 */
+		public LongAdder timer(String timer)
+		{
+			touch();
+			return timers.computeIfAbsent(timer,k -> new LongAdder());
+		}
+
+		/**
+		 * Add to a counter
+		 * @param counter The counter name
+		 * @param n The amount to add
+		 */
+		public void add(String counter, long n)
+		{
+			counter(counter).add(n);
+		}
+
+		/**
+		 * Add the time since start to a timer
+		 * @param timer The timer name
+		 * @param start The start time, from System.nanoTime()
+		 */
+		public void time(String timer, long start)
+		{
+			timer(timer).add(System.nanoTime() - start);
+		}
+
+		/**
+		 * Set a gauge, such as the size of a map
+		 * @param gauge The gauge name
+		 * @param value The value
+		 */
+		public void set(String gauge, long value)
+		{
+			touch();
+			gauges.computeIfAbsent(gauge,k -> new AtomicLong()).set(value);
+		}
+
+		/**
+		 * The time the stage has been running, in nanoseconds
+		 */
+		private long elapsed()
+		{
+			long s = start;
+			if (s == 0) return 0;
+			long e = stop;
+			if (e == 0) e = started ? System.nanoTime() : last;
+			return e - s;
+		}
+
+		private long get(String counter)
+		{
+			LongAdder a = counters.get(counter);
+			return (a == null) ? 0 : a.sum();
+		}
+	}
+
+	/**
+	 * Get a stage, creating it if needed. Stages are reported in the order
+	 * they were created.
+	 * @param name The name of the stage
+	 * @return The stage
+	 */
+	public static Stage stage(String name)
+	{
+		Stage s = stages.get(name);
+		if (s != null) return s;
+		return stages.computeIfAbsent(name,k -> {
+			Stage n = new Stage(k);
+			order.add(n);
+			return n;
+		});
+	}
+
+	/**
+	 * Record a cache hit or miss: whether a cache could be loaded, or had to
+	 * be rebuilt.
+	 * @param cache The cache name
+	 * @param hit True if the cache was up to date
+	 */
+	public static void cache(String cache, boolean hit)
+	{
+		stage("cache").add(cache + (hit ? ".hit" : ".miss"),1);
+	}
+
+	/*
+	 *	Logging
+	 */
+
+	private static long gcCount()
+	{
+		long n = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			n += Math.max(0,gc.getCollectionCount());
+		}
+		return n;
+	}
+
+	/**
+	 * The time spent in garbage collection, in milliseconds. For the
+	 * collectors we run with, this is the time the application was paused.
+	 */
+	private static long gcTime()
+	{
+		long n = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			n += Math.max(0,gc.getCollectionTime());
+		}
+		return n;
+	}
+
+	/**
+	 * Start the run: reset the clock, and start logging every interval.
+	 */
+	public static synchronized void start()
+	{
+		startTime = System.nanoTime();
+		gcCount = gcCount();
+		gcTime = gcTime();
+
+		long interval = Long.getLong("coviddata.metrics.interval",10);
+		if ((interval <= 0) || (logger != null)) return;
+
+		logger = new Thread(() -> {
+			try {
+				for (;;) {
+					Thread.sleep(interval * 1000);
+					log(System.err,false);
+				}
+			}
+			catch (InterruptedException ex) {
+				// finished
+			}
+		},"Metrics");
+		logger.setDaemon(true);
+		logger.start();
+	}
+
+	private static String ms(long nanos)
+	{
+		return Long.toString(nanos / 1000000);
+	}
+
+	/**
+	 * The rate of a counter. This is done in double, as a count of bytes
+	 * times 10^9 overflows a long past 9.2 GB.
+	 */
+	private static long perSecond(long n, long nanos)
+	{
+		return (long)(n / (nanos / 1e9));
+	}
+
+	/**
+	 * Log a line for each stage which has changed since the last line, or
+	 * for every stage if all is set, and a line for the JVM.
+	 */
+	private static synchronized void log(PrintStream out, boolean all)
+	{
+		String t = String.format("%.1fs",(System.nanoTime() - startTime) / 1e9);
+		for (Stage s: order) {
+			long rows = s.get("rows");
+			boolean running = s.started && (s.stop == 0);
+			if (!all && !running && (rows == s.lastRows)) continue;
+			s.lastRows = rows;
+
+			StringBuilder line = new StringBuilder("metrics t=").append(t).append(" stage=").append(s.name);
+			long elapsed = s.elapsed();
+			line.append(" elapsed_ms=").append(ms(elapsed));
+			for (Map.Entry<String,LongAdder> e: s.counters.entrySet()) {
+				line.append(' ').append(e.getKey()).append('=').append(e.getValue().sum());
+			}
+			if (elapsed >= 1000000) {
+				if (s.counters.containsKey("rows")) line.append(" rows_per_s=").append(perSecond(rows,elapsed));
+				if (s.counters.containsKey("bytes")) line.append(" bytes_per_s=").append(perSecond(s.get("bytes"),elapsed));
+			}
+			for (Map.Entry<String,LongAdder> e: s.timers.entrySet()) {
+				line.append(' ').append(e.getKey()).append("_ms=").append(ms(e.getValue().sum()));
+			}
+			for (Map.Entry<String,AtomicLong> e: s.gauges.entrySet()) {
+				line.append(' ').append(e.getKey()).append('=').append(e.getValue().get());
+			}
+			out.println(line);
+		}
+
+		Runtime rt = Runtime.getRuntime();
+		out.println("metrics t=" + t + " stage=jvm heap_used=" + (rt.totalMemory() - rt.freeMemory())
+				+ " heap_max=" + rt.maxMemory() + " gc_count=" + (gcCount() - gcCount) + " gc_ms=" + (gcTime() - gcTime));
+	}
+
+	/*
+	 *	Summary
+	 */
+
+	private static String quote(String str)
+	{
+		StringBuilder b = new StringBuilder("\"");
+		for (int i = 0; i < str.length(); ++i) {
+			char c = str.charAt(i);
+			if ((c == '"') || (c == '\\')) b.append('\\').append(c);
+			else if (c < 0x20) b.append(String.format("\\u%04x",(int)c));
+			else b.append(c);
+		}
+		return b.append('"').toString();
+	}
+
+	private static <V> void writeMap(PrintWriter w, String name, Map<String,V> map, String suffix, boolean nanos)
+	{
+		ArrayList<String> keys = new ArrayList<>(map.keySet());
+		keys.sort(null);
+
+		w.print("      " + quote(name) + ": {");
+		for (int i = 0; i < keys.size(); ++i) {
+			Object v = map.get(keys.get(i));
+			long value = (v instanceof LongAdder a) ? a.sum() : ((AtomicLong)v).get();
+			if (nanos) value /= 1000000;
+			w.print(((i == 0) ? " " : ", ") + quote(keys.get(i) + suffix) + ": " + value);
+		}
+		w.print(" }");
+	}
+
+	/**
+	 * Write a summary of every stage as JSON
+	 * @param file The file to write
+	 * @throws IOException
+	 */
+	public static synchronized void writeSummary(File file) throws IOException
+	{
+		Runtime rt = Runtime.getRuntime();
+		try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),StandardCharsets.UTF_8))) {
+			w.println("{");
+			w.println("  \"elapsed_ms\": " + ms(System.nanoTime() - startTime) + ",");
+			w.println("  \"jvm\": { \"processors\": " + rt.availableProcessors() + ", \"heap_used\": " + (rt.totalMemory() - rt.freeMemory())
+					+ ", \"heap_max\": " + rt.maxMemory() + ", \"gc_count\": " + (gcCount() - gcCount) + ", \"gc_ms\": " + (gcTime() - gcTime) + " },");
+			w.print("  \"stages\": {");
+
+			boolean first = true;
+			for (Stage s: order) {
+				long elapsed = s.elapsed();
+				w.println(first ? "" : ",");
+				first = false;
+
+				w.println("    " + quote(s.name) + ": {");
+				w.print("      \"elapsed_ms\": " + ms(elapsed));
+				if (elapsed >= 1000000) {
+					if (s.counters.containsKey("rows")) w.print(", \"rows_per_s\": " + perSecond(s.get("rows"),elapsed));
+					if (s.counters.containsKey("bytes")) w.print(", \"bytes_per_s\": " + perSecond(s.get("bytes"),elapsed));
+				}
+				w.println(",");
+				writeMap(w,"counters",s.counters,"",false);
+				w.println(",");
+				writeMap(w,"timers",s.timers,"_ms",true);
+				w.println(",");
+				writeMap(w,"gauges",s.gauges,"",false);
+				w.println();
+				w.print("    }");
+			}
+			w.println();
+			w.println("  }");
+			w.println("}");
+		}
+	}
+
+	/**
+	 * Finish the run: stop logging, log the final state of every stage, and
+	 * write the summary.
+	 * @param summary The summary file, or null for none
+	 * @throws IOException
+	 */
+	public static void finish(File summary) throws IOException
+	{
+		synchronized (Metrics.class) {
+			if (logger != null) {
+				logger.interrupt();
+				logger = null;
+			}
+		}
+		if (Long.getLong("coviddata.metrics.interval",10) > 0) log(System.err,true);
+		if (summary != null) writeSummary(summary);
+	}
+}
@@ -0,0 +1,234 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * An append-only arena of fixed size binary records, each tagged with an
+ * integer such as a registrant ID, held outside of the Java heap.
+ *
+ * Millions of small objects each cost a header and a reference on top of
+ * their payload, and the garbage collector has to trace every one of them.
+ * Here records are written into direct byte buffers in the form given by
+ * DataOutput, so the heap only holds one buffer per block of records no matter
+ * how many records there are. Records are read back in place with a Cursor.
+ *
+ * Merging arenas adopts the blocks of the other arena rather than copying
+ * their records, so arenas can be merged cheaply in a tree, as our chunk
+ * accumulators are.
+ *
+ * Direct buffers are limited by -XX:MaxDirectMemorySize, which defaults to the
+ * maximum heap size.
+ */
+public class RecordArena
+{
+	private static final int MIN_BLOCK = 64;				// # records in our first block
+	private static final int MAX_BLOCK_SIZE = 1 << 20;		// # bytes
+
+	private final int recordSize;		// # bytes of each record, excluding the tag
+	private final int stride;			// # bytes per record, including the tag
+	private final ArrayList<Block> blocks = new ArrayList<>();
+	private Block last;
+	private long size;
+
+	/**
+	 * A block of records. Each record is the tag followed by the record.
+	 */
+	private static class Block
+	{
+		final ByteBuffer data;
+		int count;				// # records
+
+		Block(int capacity)
+		{
+			data = ByteBuffer.allocateDirect(capacity);
+		}
+	}
+
+	/*
+	 *	The output stream for the record being added. This writes into the
+	 * 	last block.
+	 */
+	private final DataOutputStream output = new DataOutputStream(new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+			last.data.put((byte)b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			last.data.put(b,off,len);
+		}
+	});
+
+	/**
+	 * Create an arena
+	 * @param recordSize The size of each record in bytes
+	 */
+	public RecordArena(int recordSize)
+	{
+		this.recordSize = recordSize;
+		this.stride = recordSize + 4;
+	}
+
+	/**
+	 * The number of records in the arena
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	/**
+	 * Add a record. The record must be written to the returned stream before
+	 * the next call to add, and must be exactly recordSize bytes.
+	 * @param tag The tag of the record
+	 * @return The stream to write the record to
+	 */
+	public DataOutput add(int tag)
+	{
+		checkRecord();
+		if ((last == null) || (last.data.remaining() < stride)) {
+			int records = (last == null) ? MIN_BLOCK : last.data.capacity() / stride * 2;
+			records = Math.max(1,Math.min(records,MAX_BLOCK_SIZE / stride));
+			last = new Block(records * stride);
+			blocks.add(last);
+		}
+
+		last.data.putInt(tag);
+		last.count++;
+		++size;
+		return output;
+	}
+
+	/**
+	 * Make sure the record last added was written in full.
+	 */
+	private void checkRecord()
+	{
+		if ((last != null) && (last.data.position() != last.count * stride)) {
+			throw new RuntimeException("Programmer is an idiot; record of " + (last.data.position() - (last.count - 1) * stride - 4) + " bytes, expected " + recordSize);
+		}
+	}
+
+	/**
+	 * Append the records of another arena to ours. The other arena's blocks
+	 * become ours, so it must not be used afterwards.
+	 * @param other The other arena
+	 */
+	public void addAll(RecordArena other)
+	{
+		if (other.recordSize != recordSize) {
+			throw new RuntimeException("Programmer is an idiot; merging arenas of different record sizes");
+		}
+		checkRecord();
+		other.checkRecord();
+
+		blocks.addAll(other.blocks);
+		size += other.size;
+		if (other.last != null) last = other.last;
+
+		other.blocks.clear();
+		other.last = null;
+		other.size = 0;
+	}
+
+	/**
+	 * Replace the tag of every record with map[tag].
+	 * @param map The tag map
+	 */
+	public void mapTags(int[] map)
+	{
+		for (Block b: blocks) {
+			for (int i = 0, p = 0; i < b.count; ++i, p += stride) {
+				b.data.putInt(p,map[b.data.getInt(p)]);
+			}
+		}
+	}
+
+	/**
+	 * Return a cursor over the records, in the order they were added.
+	 * @return A new cursor, positioned before the first record
+	 */
+	public Cursor cursor()
+	{
+		checkRecord();
+		return new Cursor();
+	}
+
+	/**
+	 * Reads the records in place. Each call to next() moves the cursor to the
+	 * next record; the getters then read the fields of that record.
+	 */
+	public class Cursor
+	{
+		private int block = -1;
+		private ByteBuffer data;
+		private int count;
+		private int index;
+		private int pos;			// offset of the current record's tag
+		private final byte[] record = new byte[recordSize];
+
+		Cursor()
+		{
+		}
+
+		/**
+		 * Move to the next record
+		 * @return False if there are no more records
+		 */
+		public boolean next()
+		{
+			while (++index >= count) {
+				if (++block >= blocks.size()) return false;
+				Block b = blocks.get(block);
+				data = b.data;
+				count = b.count;
+				index = -1;
+			}
+			pos = index * stride;
+			return true;
+		}
+
+		public int getTag()
+		{
+			return data.getInt(pos);
+		}
+
+		/**
+		 * Read a byte of the record
+		 * @param offset The offset of the byte within the record
+		 */
+		public byte getByte(int offset)
+		{
+			return data.get(pos + 4 + offset);
+		}
+
+		/**
+		 * Read an int of the record, as written by DataOutput.writeInt
+		 * @param offset The offset of the int within the record
+		 */
+		public int getInt(int offset)
+		{
+			return data.getInt(pos + 4 + offset);
+		}
+
+		/**
+		 * Copy the record, without its tag, to the output
+		 * @param out The output
+		 * @throws IOException
+		 */
+		public void copyTo(DataOutput out) throws IOException
+		{
+			data.get(pos + 4,record);
+			out.write(record);
+		}
+	}
+}
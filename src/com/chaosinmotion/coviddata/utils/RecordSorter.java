@@ -0,0 +1,584 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An external sort of fixed size binary records by a long key, in bounded
+ * memory.
+ *
+ * Records are gathered into runs of a fixed number of records. When a run is
+ * full it is handed to a background thread, which sorts it and writes it to a
+ * run file, while we fill the next run. Once all the records are added, the
+ * runs are merged into a single sorted stream, which is read back with a
+ * Cursor. If there are too many runs to merge at once, runs are merged into
+ * larger runs first.
+ *
+ * The sort is stable: records with the same key come back in the order they
+ * were added. So to group records by registrant and date while keeping them
+ * in file order, use key(registrant,date).
+ *
+ * Run files are written as temporary files prefix*.sort, and are deleted as
+ * they are merged, or on close.
+ */
+public class RecordSorter implements Closeable
+{
+	private static final int MAX_MERGE = 64;			// # runs merged at once
+	private static final int BUFFER_SIZE = 65536;
+
+	private final File dir;
+	private final String prefix;
+	private final int recordSize;
+	private final int runSize;
+	private final int maxRuns;
+
+	private final ExecutorService executor;
+	private final ArrayDeque<Future<Run>> pending = new ArrayDeque<>();
+	private final ArrayDeque<Run> free = new ArrayDeque<>();
+	private final ArrayList<File> files = new ArrayList<>();
+
+	private Run run;
+	private long count;
+
+	/**
+	 * A run of records being gathered in memory.
+	 */
+	private static class Run extends OutputStream
+	{
+		final byte[] data;
+		final long[] keys;
+		int size;				// # records
+		int pos;				// # bytes written
+		File file;				// set when written
+
+		Run(int recordSize, int runSize)
+		{
+			data = new byte[recordSize * runSize];
+			keys = new long[runSize];
+		}
+
+		@Override
+		public void write(int b)
+		{
+			data[pos++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			System.arraycopy(b,off,data,pos,len);
+			pos += len;
+		}
+	}
+
+	/*
+	 *	The output stream for the record being added. This writes into
+	 * 	whichever run is current.
+	 */
+	private final DataOutputStream output = new DataOutputStream(new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+			run.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			run.write(b,off,len);
+		}
+	});
+
+	/**
+	 * Create a sorter.
+	 * @param dir The directory to write run files into
+	 * @param prefix The prefix of the run file names
+	 * @param recordSize The size of each record in bytes
+	 * @param runSize The number of records sorted in memory at once
+	 */
+	public RecordSorter(File dir, String prefix, int recordSize, int runSize)
+	{
+		this.dir = dir;
+		this.prefix = prefix;
+		this.recordSize = recordSize;
+		this.runSize = Math.max(1,runSize);
+
+		/*
+		 *	We hold at most one run per thread being sorted, plus the run
+		 * 	being filled.
+		 */
+		int threads = Math.max(1,Math.min(4,Runtime.getRuntime().availableProcessors() - 1));
+		maxRuns = threads;
+		executor = Executors.newFixedThreadPool(threads,r -> {
+			Thread t = new Thread(r,"RecordSorter");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Build a key which orders by a, then by b. Both are compared as signed
+	 * integers.
+	 */
+	public static long key(int a, int b)
+	{
+		return ((long)a << 32) | ((b ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Return the first integer of a key built with key(a,b).
+	 */
+	public static int keyHigh(long key)
+	{
+		return (int)(key >> 32);
+	}
+
+	/**
+	 * Return the second integer of a key built with key(a,b).
+	 */
+	public static int keyLow(long key)
+	{
+		return ((int)key) ^ Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Return the number of records added.
+	 */
+	public long size()
+	{
+		return count;
+	}
+
+	private void checkRecord() throws IOException
+	{
+		if ((run != null) && (run.pos != run.size * recordSize)) {
+			throw new IOException("Programmer is an idiot; record is " + (run.pos - (run.size - 1) * recordSize) + " bytes, not " + recordSize);
+		}
+	}
+
+	/**
+	 * Add a record. The record must be written to the returned stream before
+	 * the next call to add or sort, and must be exactly recordSize bytes.
+	 * @param key The sort key of the record
+	 * @return The stream to write the record to
+	 * @throws IOException
+	 */
+	public DataOutput add(long key) throws IOException
+	{
+		checkRecord();
+		if ((run != null) && (run.size == runSize)) {
+			submit(run);
+			run = null;
+		}
+		if (run == null) {
+			run = free.isEmpty() ? new Run(recordSize,runSize) : free.pop();
+			run.size = 0;
+			run.pos = 0;
+			run.file = null;
+		}
+
+		run.keys[run.size++] = key;
+		++count;
+		return output;
+	}
+
+	/**
+	 * Hand a full run to a background thread to be sorted and written. If
+	 * we already have as many runs in flight as we allow, wait for the
+	 * oldest.
+	 */
+	private void submit(Run r) throws IOException
+	{
+		while (pending.size() >= maxRuns) {
+			Run done = waitFor(pending.pop());
+			files.add(done.file);
+			free.push(done);
+		}
+		pending.add(executor.submit(() -> {
+			writeRun(r);
+			return r;
+		}));
+	}
+
+	private static Run waitFor(Future<Run> f) throws IOException
+	{
+		try {
+			return f.get();
+		}
+		catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException e) throw e;
+			throw new IOException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Sort the records of a run. This is a merge sort of the record indexes,
+	 * so records with the same key stay in order.
+	 * @return The record indexes in sorted order
+	 */
+	private static int[] sortRun(long[] keys, int size)
+	{
+		int[] order = new int[size];
+		int[] tmp = new int[size];
+		for (int i = 0; i < size; ++i) order[i] = i;
+
+		for (int width = 1; width < size; width <<= 1) {
+			for (int lo = 0; lo < size; lo += width * 2) {
+				int mid = Math.min(lo + width,size);
+				int hi = Math.min(lo + width * 2,size);
+				int a = lo, b = mid, o = lo;
+				while ((a < mid) && (b < hi)) {
+					if (keys[order[b]] < keys[order[a]]) tmp[o++] = order[b++];
+					else tmp[o++] = order[a++];
+				}
+				while (a < mid) tmp[o++] = order[a++];
+				while (b < hi) tmp[o++] = order[b++];
+			}
+			int[] swap = order;
+			order = tmp;
+			tmp = swap;
+		}
+		return order;
+	}
+
+	/**
+	 * Sort the run and write it to a run file, as key and record pairs.
+	 */
+	private void writeRun(Run r) throws IOException
+	{
+		int[] order = sortRun(r.keys,r.size);
+
+		File f = File.createTempFile(prefix,".sort",dir);
+		f.deleteOnExit();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),BUFFER_SIZE));
+		for (int i: order) {
+			dos.writeLong(r.keys[i]);
+			dos.write(r.data,i * recordSize,recordSize);
+		}
+		dos.close();
+		r.file = f;
+	}
+
+	/*
+	 *	Merging
+	 */
+
+	/**
+	 * A sorted source of records
+	 */
+	private static abstract class Source
+	{
+		final byte[] record;
+		long key;
+
+		Source(int recordSize)
+		{
+			record = new byte[recordSize];
+		}
+
+		abstract boolean next() throws IOException;
+
+		void close() throws IOException
+		{
+		}
+	}
+
+	private static class FileSource extends Source
+	{
+		private final File file;
+		private final DataInputStream in;
+		private long remaining;
+
+		FileSource(File file, int recordSize) throws IOException
+		{
+			super(recordSize);
+			this.file = file;
+			remaining = file.length() / (8 + recordSize);
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),BUFFER_SIZE));
+		}
+
+		@Override
+		boolean next() throws IOException
+		{
+			if (remaining == 0) return false;
+			--remaining;
+			key = in.readLong();
+			in.readFully(record);
+			return true;
+		}
+
+		@Override
+		void close() throws IOException
+		{
+			in.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * The last run, if it was never written out
+	 */
+	private static class MemorySource extends Source
+	{
+		private final Run run;
+		private final int[] order;
+		private int index;
+
+		MemorySource(Run run, int recordSize)
+		{
+			super(recordSize);
+			this.run = run;
+			this.order = sortRun(run.keys,run.size);
+		}
+
+		@Override
+		boolean next()
+		{
+			if (index >= order.length) return false;
+			int i = order[index++];
+			key = run.keys[i];
+			System.arraycopy(run.data,i * record.length,record,0,record.length);
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the merged, sorted records back.
+	 */
+	public static class Cursor implements Closeable
+	{
+		private final Source[] sources;
+		private final int[] heap;		// source indexes, ordered by key then index
+		private int heapSize;
+		private Source current;
+		private boolean started;
+
+		private final RecordInput recordInput = new RecordInput();
+		private final DataInputStream input = new DataInputStream(recordInput);
+
+		private Cursor(Source[] sources) throws IOException
+		{
+			this.sources = sources;
+			heap = new int[sources.length];
+			for (int i = 0; i < sources.length; ++i) {
+				if (sources[i].next()) {
+					heap[heapSize++] = i;
+					siftUp(heapSize - 1);
+				} else {
+					sources[i].close();
+				}
+			}
+		}
+
+		private boolean less(int a, int b)
+		{
+			long ka = sources[a].key;
+			long kb = sources[b].key;
+			if (ka != kb) return ka < kb;
+			return a < b;			// earlier runs first, so we are stable
+		}
+
+		private void siftUp(int i)
+		{
+			while (i > 0) {
+				int p = (i - 1) >> 1;
+				if (!less(heap[i],heap[p])) break;
+				int t = heap[i]; heap[i] = heap[p]; heap[p] = t;
+				i = p;
+			}
+		}
+
+		private void siftDown(int i)
+		{
+			for (;;) {
+				int l = i * 2 + 1;
+				if (l >= heapSize) break;
+				int m = ((l + 1 < heapSize) && less(heap[l + 1],heap[l])) ? l + 1 : l;
+				if (!less(heap[m],heap[i])) break;
+				int t = heap[i]; heap[i] = heap[m]; heap[m] = t;
+				i = m;
+			}
+		}
+
+		/**
+		 * Advance to the next record.
+		 * @return false if there are no more records
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException
+		{
+			/*
+			 *	The source at the top of the heap holds the current record;
+			 * 	advance it before picking the next one.
+			 */
+			if (started) {
+				int top = heap[0];
+				if (sources[top].next()) {
+					siftDown(0);
+				} else {
+					sources[top].close();
+					heap[0] = heap[--heapSize];
+					siftDown(0);
+				}
+			}
+			started = true;
+
+			if (heapSize == 0) {
+				current = null;
+				return false;
+			}
+			current = sources[heap[0]];
+			recordInput.set(current.record);
+			return true;
+		}
+
+		public long getKey()
+		{
+			return current.key;
+		}
+
+		/**
+		 * Return the current record. The array is reused for each record.
+		 */
+		public byte[] getRecord()
+		{
+			return current.record;
+		}
+
+		/**
+		 * Return a stream to read the current record from. The stream is
+		 * reused for each record.
+		 */
+		public DataInput getInput()
+		{
+			return input;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			for (int i = 0; i < heapSize; ++i) {
+				sources[heap[i]].close();
+			}
+			heapSize = 0;
+		}
+	}
+
+	/**
+	 * Reads from the current record of a cursor.
+	 */
+	private static class RecordInput extends ByteArrayInputStream
+	{
+		RecordInput()
+		{
+			super(new byte[0]);
+		}
+
+		void set(byte[] record)
+		{
+			buf = record;
+			pos = 0;
+			count = record.length;
+			mark = 0;
+		}
+	}
+
+	/**
+	 * Merge the run files into a single run file.
+	 */
+	private File mergeFiles(List<File> runs) throws IOException
+	{
+		Source[] sources = new Source[runs.size()];
+		for (int i = 0; i < sources.length; ++i) {
+			sources[i] = new FileSource(runs.get(i),recordSize);
+		}
+
+		File f = File.createTempFile(prefix,".sort",dir);
+		f.deleteOnExit();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),BUFFER_SIZE));
+		Cursor c = new Cursor(sources);
+		while (c.next()) {
+			dos.writeLong(c.getKey());
+			dos.write(c.getRecord());
+		}
+		c.close();
+		dos.close();
+		return f;
+	}
+
+	/**
+	 * Finish adding records, and return a cursor over the records in sorted
+	 * order. No more records may be added.
+	 * @return The cursor
+	 * @throws IOException
+	 */
+	public Cursor sort() throws IOException
+	{
+		checkRecord();
+
+		while (!pending.isEmpty()) {
+			files.add(waitFor(pending.pop()).file);
+		}
+		free.clear();
+		executor.shutdown();
+
+		/*
+		 *	Merge our runs until we have few enough to merge at once. The
+		 * 	run still in memory is merged last, so it isn't written out.
+		 */
+		while (files.size() >= MAX_MERGE) {
+			ArrayList<File> merged = new ArrayList<>();
+			for (int i = 0; i < files.size(); i += MAX_MERGE) {
+				List<File> group = files.subList(i,Math.min(i + MAX_MERGE,files.size()));
+				merged.add((group.size() == 1) ? group.get(0) : mergeFiles(group));
+			}
+			files.clear();
+			files.addAll(merged);
+		}
+
+		int n = files.size() + ((run != null) ? 1 : 0);
+		Source[] sources = new Source[n];
+		for (int i = 0; i < files.size(); ++i) {
+			sources[i] = new FileSource(files.get(i),recordSize);
+		}
+		if (run != null) {
+			sources[n - 1] = new MemorySource(run,recordSize);
+			run = null;
+		}
+		files.clear();
+
+		return new Cursor(sources);
+	}
+
+	/**
+	 * Discard any records not yet read, and delete our run files.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		executor.shutdownNow();
+		for (Future<Run> f: pending) {
+			try {
+				Run r = f.get();
+				if (r.file != null) r.file.delete();
+			}
+			catch (Exception ex) {
+				// Ignore; we're cleaning up.
+			}
+		}
+		pending.clear();
+		for (File f: files) f.delete();
+		files.clear();
+		run = null;
+	}
+}
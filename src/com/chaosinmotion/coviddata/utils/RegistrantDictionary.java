@@ -0,0 +1,274 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The registrant dictionary maps each REGISTRANT_CODE to a dense integer ID,
+ * starting at 0, in the order the codes were first seen. This allows us to
+ * keep per-registrant data in primitive arrays indexed by ID, rather than in
+ * a HashMap keyed by a string.
+ *
+ * Codes are stored as raw bytes in a single growing arena, and looked up
+ * through an open-addressing hash table, so a code can be found directly from
+ * the bytes of a CSVRow without creating a string.
+ *
+ * Adding to the dictionary is not thread safe. Once built, lookups may be
+ * done from any number of threads. When scanning in parallel, each worker
+ * builds its own dictionary and the dictionaries are merged with merge(),
+ * which returns a table mapping the IDs of the other dictionary into ours.
+ */
+public class RegistrantDictionary
+{
+	private static final int MAGIC = 0x52444354;		// 'RDCT'
+	public static final int VERSION = 1;
+
+	private byte[] arena;
+	private int arenaSize;
+	private int[] offsets;			// offsets[id] to offsets[id+1]
+	private int[] hashes;
+	private int count;
+
+	private int[] table;			// id + 1, or 0 if empty
+	private int mask;
+
+	public RegistrantDictionary()
+	{
+		this(1024);
+	}
+
+	public RegistrantDictionary(int capacity)
+	{
+		capacity = Math.max(capacity,16);
+		arena = new byte[capacity * 16];
+		offsets = new int[capacity + 1];
+		hashes = new int[capacity];
+
+		int tsize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		table = new int[tsize];
+		mask = tsize - 1;
+	}
+
+	/**
+	 * Return the number of registrants in the dictionary. IDs run from 0 to
+	 * size() - 1.
+	 * @return The number of registrants
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/*
+	 *	Hashing
+	 */
+
+	private static int hash(byte[] buffer, int s, int len)
+	{
+		int h = 0x811C9DC5;
+		for (int i = 0; i < len; ++i) {
+			h ^= buffer[s + i];
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private boolean matches(int id, byte[] buffer, int s, int len)
+	{
+		int start = offsets[id];
+		if (offsets[id + 1] - start != len) return false;
+		for (int i = 0; i < len; ++i) {
+			if (arena[start + i] != buffer[s + i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the ID of the registrant code stored in the byte range provided.
+	 * @param buffer The buffer containing the code
+	 * @param s The start of the code
+	 * @param len The length of the code
+	 * @return The ID, or -1 if the code is not in the dictionary.
+	 */
+	public int find(byte[] buffer, int s, int len)
+	{
+		int h = hash(buffer,s,len);
+		int i = h & mask;
+		for (;;) {
+			int e = table[i];
+			if (e == 0) return -1;
+			--e;
+			if ((hashes[e] == h) && matches(e,buffer,s,len)) return e;
+			i = (i + 1) & mask;
+		}
+	}
+
+	public int find(String code)
+	{
+		byte[] b = code.getBytes(StandardCharsets.UTF_8);
+		return find(b,0,b.length);
+	}
+
+	/**
+	 * Find the ID of the registrant code, adding it if it is not already in
+	 * the dictionary.
+	 * @param buffer The buffer containing the code
+	 * @param s The start of the code
+	 * @param len The length of the code
+	 * @return The ID of the code
+	 */
+	public int add(byte[] buffer, int s, int len)
+	{
+		int h = hash(buffer,s,len);
+		int i = h & mask;
+		for (;;) {
+			int e = table[i];
+			if (e == 0) break;
+			--e;
+			if ((hashes[e] == h) && matches(e,buffer,s,len)) return e;
+			i = (i + 1) & mask;
+		}
+
+		/*
+		 *	Not found; append
+		 */
+
+		if (count >= hashes.length) {
+			int[] resize = new int[hashes.length * 2];
+			System.arraycopy(hashes,0,resize,0,count);
+			hashes = resize;
+
+			resize = new int[hashes.length + 1];
+			System.arraycopy(offsets,0,resize,0,count + 1);
+			offsets = resize;
+		}
+		if (arenaSize + len > arena.length) {
+			byte[] resize = new byte[Math.max(arena.length * 2,arenaSize + len)];
+			System.arraycopy(arena,0,resize,0,arenaSize);
+			arena = resize;
+		}
+
+		System.arraycopy(buffer,s,arena,arenaSize,len);
+		arenaSize += len;
+
+		int id = count++;
+		offsets[count] = arenaSize;
+		hashes[id] = h;
+		table[i] = id + 1;
+
+		if (count * 2 > table.length) rehash(table.length * 2);
+
+		return id;
+	}
+
+	public int add(String code)
+	{
+		byte[] b = code.getBytes(StandardCharsets.UTF_8);
+		return add(b,0,b.length);
+	}
+
+	private void rehash(int size)
+	{
+		table = new int[size];
+		mask = size - 1;
+		for (int id = 0; id < count; ++id) {
+			int i = hashes[id] & mask;
+			while (table[i] != 0) i = (i + 1) & mask;
+			table[i] = id + 1;
+		}
+	}
+
+	/**
+	 * Return the registrant code for the ID
+	 * @param id The registrant ID
+	 * @return The registrant code
+	 */
+	public String getCode(int id)
+	{
+		if ((id < 0) || (id >= count)) throw new ArrayIndexOutOfBoundsException(id);
+		return new String(arena,offsets[id],offsets[id + 1] - offsets[id],StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Merge the other dictionary into this one. Codes not in our dictionary
+	 * are added in the order of their IDs in the other dictionary.
+	 * @param other The dictionary to merge
+	 * @return A table mapping the other dictionary's IDs to our IDs
+	 */
+	public int[] merge(RegistrantDictionary other)
+	{
+		int[] remap = new int[other.count];
+		for (int id = 0; id < other.count; ++id) {
+			int s = other.offsets[id];
+			remap[id] = add(other.arena,s,other.offsets[id + 1] - s);
+		}
+		return remap;
+	}
+
+	/*
+	 *	Persistence
+	 */
+
+	/**
+	 * Write the dictionary to a file. The codes are written in ID order, so
+	 * when read back each code has the same ID.
+	 * @param f The file to write
+	 * @throws IOException
+	 */
+	public void write(File f) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(f);
+		BufferedOutputStream bos = new BufferedOutputStream(fos,1024000);
+		DataOutputStream dos = new DataOutputStream(bos);
+
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(count);
+		for (int i = 0; i <= count; ++i) {
+			dos.writeInt(offsets[i]);
+		}
+		dos.write(arena,0,arenaSize);
+
+		dos.flush();
+		dos.close();
+	}
+
+	/**
+	 * Read a dictionary written by write()
+	 * @param f The file to read
+	 * @return The dictionary
+	 * @throws IOException
+	 */
+	public static RegistrantDictionary read(File f) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(f);
+		BufferedInputStream bis = new BufferedInputStream(fis,1024000);
+		DataInputStream dis = new DataInputStream(bis);
+
+		try {
+			if (dis.readInt() != MAGIC) throw new IOException("Not a registrant dictionary");
+			if (dis.readInt() != VERSION) throw new IOException("Unsupported dictionary version");
+
+			int count = dis.readInt();
+			RegistrantDictionary dict = new RegistrantDictionary(count + 1);
+
+			int[] offsets = new int[count + 1];
+			for (int i = 0; i <= count; ++i) {
+				offsets[i] = dis.readInt();
+			}
+
+			byte[] arena = new byte[offsets[count]];
+			dis.readFully(arena);
+
+			for (int i = 0; i < count; ++i) {
+				if (i != dict.add(arena,offsets[i],offsets[i + 1] - offsets[i])) {
+					throw new IOException("Duplicate registrant code");
+				}
+			}
+			return dict;
+		}
+		finally {
+			dis.close();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded lock-free queue, which any number of threads may put to and take
+ * from. This is Dmitry Vyukov's bounded MPMC queue: each slot carries a
+ * sequence number which tells a producer when the slot is free and a consumer
+ * when the slot is full, so producers and consumers only contend on their own
+ * counter, and only with a compare and set.
+ *
+ * put() and take() wait when the queue is full or empty, which gives us back
+ * pressure between pipeline stages. They spin briefly, then park for short
+ * intervals, and give up if the abort check passed to them returns true.
+ */
+public class RingBuffer<T>
+{
+	private static final int SPINS = 128;
+	private static final long PARK_NANOS = 50000;
+
+	private final int mask;
+	private final AtomicReferenceArray<T> items;
+	private final AtomicLongArray sequence;
+	private final AtomicLong head = new AtomicLong();		// next slot to take
+	private final AtomicLong tail = new AtomicLong();		// next slot to put
+
+	/**
+	 * Create a ring buffer
+	 * @param capacity The capacity, rounded up to a power of two
+	 */
+	public RingBuffer(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2,capacity) - 1) << 1;
+		mask = size - 1;
+		items = new AtomicReferenceArray<>(size);
+		sequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i) sequence.set(i,i);
+	}
+
+	public int capacity()
+	{
+		return mask + 1;
+	}
+
+	/**
+	 * Add an item if there is room
+	 * @param item The item
+	 * @return False if the queue is full
+	 */
+	public boolean offer(T item)
+	{
+		for (;;) {
+			long pos = tail.get();
+			int slot = (int)pos & mask;
+			long diff = sequence.get(slot) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos,pos + 1)) {
+					items.set(slot,item);
+					sequence.set(slot,pos + 1);		// publishes the item
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Remove an item if there is one
+	 * @return The item, or null if the queue is empty
+	 */
+	public T poll()
+	{
+		for (;;) {
+			long pos = head.get();
+			int slot = (int)pos & mask;
+			long diff = sequence.get(slot) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos,pos + 1)) {
+					T item = items.get(slot);
+					items.set(slot,null);
+					sequence.set(slot,pos + mask + 1);	// frees the slot
+					return item;
+				}
+			} else if (diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Add an item, waiting for room
+	 * @param item The item
+	 * @param abort Checked while waiting; if true we give up
+	 * @return False if we gave up
+	 */
+	public boolean put(T item, BooleanSupplier abort)
+	{
+		for (int spins = 0; !offer(item); ++spins) {
+			if (!pause(spins,abort)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove an item, waiting for one
+	 * @param abort Checked while waiting; if true we give up
+	 * @return The item, or null if we gave up
+	 */
+	public T take(BooleanSupplier abort)
+	{
+		T item;
+		for (int spins = 0; (item = poll()) == null; ++spins) {
+			if (!pause(spins,abort)) return null;
+		}
+		return item;
+	}
+
+	/**
+	 * Wait a little, spinning at first and then parking. This is also used
+	 * by stages which wait on something other than a ring buffer.
+	 * @param spins The number of times we've waited so far
+	 * @param abort Checked once we stop spinning; if true we give up
+	 * @return False if we should give up
+	 */
+	public static boolean pause(int spins, BooleanSupplier abort)
+	{
+		if (spins < SPINS) {
+			Thread.onSpinWait();
+			return true;
+		}
+		if (abort.getAsBoolean()) return false;
+		LockSupport.parkNanos(PARK_NANOS);
+		return true;
+	}
+}
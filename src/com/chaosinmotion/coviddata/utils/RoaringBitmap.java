@@ -0,0 +1,436 @@
+package com.chaosinmotion.coviddata.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative integers, such as registrant IDs, laid out
+ * in the style of a Roaring bitmap: the integers are split into blocks of
+ * 65536 by their high 16 bits, and each block is stored either as a sorted
+ * array of its low 16 bits, if it holds 4096 values or fewer, or as a 65536
+ * bit bitmap. So sparse sets cost 2 bytes per value and dense sets 1 bit per
+ * value, and AND, OR and cardinality work a block at a time.
+ *
+ * Bitmaps are built with add(), which is fastest when values are added in
+ * increasing order, and are otherwise treated as immutable: and(), or() and
+ * andNot() return new bitmaps.
+ */
+public class RoaringBitmap
+{
+	private static final int ARRAY_MAX = 4096;		// largest array block
+	private static final int WORDS = 1024;			// longs in a bitmap block
+
+	/*
+	 *	Block i holds values (keys[i] << 16) | low. Exactly one of arrays[i]
+	 * 	and bitmaps[i] is set.
+	 */
+	private char[] keys;
+	private char[][] arrays;
+	private long[][] bitmaps;
+	private int[] cardinality;
+	private int size;				// # blocks
+
+	public RoaringBitmap()
+	{
+		this(4);
+	}
+
+	private RoaringBitmap(int capacity)
+	{
+		capacity = Math.max(capacity,1);
+		keys = new char[capacity];
+		arrays = new char[capacity][];
+		bitmaps = new long[capacity][];
+		cardinality = new int[capacity];
+	}
+
+	/**
+	 * Return a bitmap holding the values [0,n).
+	 * @param n The number of values
+	 * @return The bitmap
+	 */
+	public static RoaringBitmap range(int n)
+	{
+		RoaringBitmap ret = new RoaringBitmap((n >>> 16) + 1);
+		for (int start = 0; start < n; start += 65536) {
+			int count = Math.min(65536,n - start);
+			if (count <= ARRAY_MAX) {
+				char[] a = new char[count];
+				for (int i = 0; i < count; ++i) a[i] = (char)i;
+				ret.append((char)(start >>> 16),a,null,count);
+			} else {
+				long[] b = new long[WORDS];
+				Arrays.fill(b,0,count >>> 6,-1L);
+				if ((count & 63) != 0) b[count >>> 6] = (1L << (count & 63)) - 1;
+				ret.append((char)(start >>> 16),null,b,count);
+			}
+		}
+		return ret;
+	}
+
+	private void ensureCapacity()
+	{
+		if (size == keys.length) {
+			int capacity = size * 2;
+			keys = Arrays.copyOf(keys,capacity);
+			arrays = Arrays.copyOf(arrays,capacity);
+			bitmaps = Arrays.copyOf(bitmaps,capacity);
+			cardinality = Arrays.copyOf(cardinality,capacity);
+		}
+	}
+
+	/**
+	 * Append a block after our last block. Empty blocks are dropped.
+	 */
+	private void append(char key, char[] array, long[] bitmap, int card)
+	{
+		if (card == 0) return;
+		ensureCapacity();
+		keys[size] = key;
+		arrays[size] = array;
+		bitmaps[size] = bitmap;
+		cardinality[size] = card;
+		++size;
+	}
+
+	/**
+	 * Find the block with the key, or -(insertion point) - 1.
+	 */
+	private int findBlock(char key)
+	{
+		if ((size > 0) && (keys[size - 1] == key)) return size - 1;
+		return Arrays.binarySearch(keys,0,size,key);
+	}
+
+	/**
+	 * Add a value.
+	 * @param value The value, which must not be negative
+	 */
+	public void add(int value)
+	{
+		if (value < 0) throw new IllegalArgumentException("Negative value " + value);
+
+		char key = (char)(value >>> 16);
+		char low = (char)value;
+
+		int b = findBlock(key);
+		if (b < 0) {
+			b = -b - 1;
+			ensureCapacity();
+			System.arraycopy(keys,b,keys,b + 1,size - b);
+			System.arraycopy(arrays,b,arrays,b + 1,size - b);
+			System.arraycopy(bitmaps,b,bitmaps,b + 1,size - b);
+			System.arraycopy(cardinality,b,cardinality,b + 1,size - b);
+			keys[b] = key;
+			arrays[b] = new char[4];
+			bitmaps[b] = null;
+			cardinality[b] = 0;
+			++size;
+		}
+
+		if (bitmaps[b] != null) {
+			long[] bits = bitmaps[b];
+			long mask = 1L << low;
+			if ((bits[low >>> 6] & mask) == 0) {
+				bits[low >>> 6] |= mask;
+				++cardinality[b];
+			}
+			return;
+		}
+
+		char[] a = arrays[b];
+		int n = cardinality[b];
+		int i;
+		if ((n > 0) && (a[n - 1] < low)) {
+			i = n;								// appending in order
+		} else {
+			i = Arrays.binarySearch(a,0,n,low);
+			if (i >= 0) return;
+			i = -i - 1;
+		}
+
+		if (n == ARRAY_MAX) {
+			long[] bits = toBits(a,n);
+			bits[low >>> 6] |= 1L << low;
+			arrays[b] = null;
+			bitmaps[b] = bits;
+			cardinality[b] = n + 1;
+			return;
+		}
+		if (n == a.length) {
+			a = Arrays.copyOf(a,Math.min(ARRAY_MAX,n * 2));
+			arrays[b] = a;
+		}
+		System.arraycopy(a,i,a,i + 1,n - i);
+		a[i] = low;
+		cardinality[b] = n + 1;
+	}
+
+	/**
+	 * Determine if the bitmap contains the value
+	 */
+	public boolean contains(int value)
+	{
+		if (value < 0) return false;
+		int b = findBlock((char)(value >>> 16));
+		if (b < 0) return false;
+		char low = (char)value;
+		if (bitmaps[b] != null) return (bitmaps[b][low >>> 6] & (1L << low)) != 0;
+		return Arrays.binarySearch(arrays[b],0,cardinality[b],low) >= 0;
+	}
+
+	/**
+	 * Return the number of values in the bitmap.
+	 */
+	public long getCardinality()
+	{
+		long ret = 0;
+		for (int i = 0; i < size; ++i) ret += cardinality[i];
+		return ret;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Call the consumer with each value, in increasing order.
+	 */
+	public void forEach(IntConsumer consumer)
+	{
+		for (int b = 0; b < size; ++b) {
+			int high = keys[b] << 16;
+			if (bitmaps[b] != null) {
+				long[] bits = bitmaps[b];
+				for (int w = 0; w < WORDS; ++w) {
+					long word = bits[w];
+					while (word != 0) {
+						consumer.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+						word &= word - 1;
+					}
+				}
+			} else {
+				char[] a = arrays[b];
+				int n = cardinality[b];
+				for (int i = 0; i < n; ++i) consumer.accept(high | a[i]);
+			}
+		}
+	}
+
+	public int[] toArray()
+	{
+		int[] ret = new int[(int)getCardinality()];
+		int[] pos = new int[1];
+		forEach(v -> ret[pos[0]++] = v);
+		return ret;
+	}
+
+	/*
+	 *	Set operations
+	 */
+
+	private static long[] toBits(char[] a, int n)
+	{
+		long[] bits = new long[WORDS];
+		for (int i = 0; i < n; ++i) bits[a[i] >>> 6] |= 1L << a[i];
+		return bits;
+	}
+
+	private long[] blockBits(int b)
+	{
+		return (bitmaps[b] != null) ? bitmaps[b] : toBits(arrays[b],cardinality[b]);
+	}
+
+	/**
+	 * Append a block given as a bitmap, storing it as an array if it is
+	 * small enough.
+	 */
+	private void appendBits(char key, long[] bits)
+	{
+		int card = 0;
+		for (long w: bits) card += Long.bitCount(w);
+		if (card == 0) return;
+		if (card > ARRAY_MAX) {
+			append(key,null,bits,card);
+			return;
+		}
+
+		char[] a = new char[card];
+		int n = 0;
+		for (int w = 0; w < WORDS; ++w) {
+			long word = bits[w];
+			while (word != 0) {
+				a[n++] = (char)((w << 6) | Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		append(key,a,null,card);
+	}
+
+	/**
+	 * Return the values in both this and the other bitmap.
+	 */
+	public RoaringBitmap and(RoaringBitmap other)
+	{
+		RoaringBitmap ret = new RoaringBitmap(Math.min(size,other.size));
+		int i = 0, j = 0;
+		while ((i < size) && (j < other.size)) {
+			if (keys[i] < other.keys[j]) {
+				++i;
+			} else if (keys[i] > other.keys[j]) {
+				++j;
+			} else {
+				if ((arrays[i] != null) || (other.arrays[j] != null)) {
+					/*
+					 *	Filter the array against the other block
+					 */
+					boolean mine = (arrays[i] != null) && ((other.arrays[j] == null) || (cardinality[i] <= other.cardinality[j]));
+					RoaringBitmap a = mine ? this : other;
+					RoaringBitmap o = mine ? other : this;
+					int ai = mine ? i : j;
+					int oi = mine ? j : i;
+
+					char[] src = a.arrays[ai];
+					int n = a.cardinality[ai];
+					char[] dst = new char[n];
+					int m = 0;
+					for (int k = 0; k < n; ++k) {
+						char v = src[k];
+						boolean in = (o.bitmaps[oi] != null) ? (o.bitmaps[oi][v >>> 6] & (1L << v)) != 0
+															 : Arrays.binarySearch(o.arrays[oi],0,o.cardinality[oi],v) >= 0;
+						if (in) dst[m++] = v;
+					}
+					ret.append(keys[i],dst,null,m);
+				} else {
+					long[] bits = new long[WORDS];
+					long[] x = bitmaps[i];
+					long[] y = other.bitmaps[j];
+					for (int w = 0; w < WORDS; ++w) bits[w] = x[w] & y[w];
+					ret.appendBits(keys[i],bits);
+				}
+				++i;
+				++j;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Return the values in either this or the other bitmap.
+	 */
+	public RoaringBitmap or(RoaringBitmap other)
+	{
+		RoaringBitmap ret = new RoaringBitmap(size + other.size);
+		int i = 0, j = 0;
+		while ((i < size) || (j < other.size)) {
+			if ((j >= other.size) || ((i < size) && (keys[i] < other.keys[j]))) {
+				ret.append(keys[i],(arrays[i] == null) ? null : arrays[i].clone(),(bitmaps[i] == null) ? null : bitmaps[i].clone(),cardinality[i]);
+				++i;
+			} else if ((i >= size) || (keys[i] > other.keys[j])) {
+				ret.append(other.keys[j],(other.arrays[j] == null) ? null : other.arrays[j].clone(),(other.bitmaps[j] == null) ? null : other.bitmaps[j].clone(),other.cardinality[j]);
+				++j;
+			} else {
+				long[] bits = blockBits(i).clone();
+				if (other.bitmaps[j] != null) {
+					long[] y = other.bitmaps[j];
+					for (int w = 0; w < WORDS; ++w) bits[w] |= y[w];
+				} else {
+					char[] a = other.arrays[j];
+					int n = other.cardinality[j];
+					for (int k = 0; k < n; ++k) bits[a[k] >>> 6] |= 1L << a[k];
+				}
+				ret.appendBits(keys[i],bits);
+				++i;
+				++j;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Return the values in this bitmap which are not in the other bitmap.
+	 */
+	public RoaringBitmap andNot(RoaringBitmap other)
+	{
+		RoaringBitmap ret = new RoaringBitmap(size);
+		int j = 0;
+		for (int i = 0; i < size; ++i) {
+			while ((j < other.size) && (other.keys[j] < keys[i])) ++j;
+			if ((j >= other.size) || (other.keys[j] != keys[i])) {
+				ret.append(keys[i],(arrays[i] == null) ? null : arrays[i].clone(),(bitmaps[i] == null) ? null : bitmaps[i].clone(),cardinality[i]);
+				continue;
+			}
+
+			long[] bits = blockBits(i).clone();
+			if (other.bitmaps[j] != null) {
+				long[] y = other.bitmaps[j];
+				for (int w = 0; w < WORDS; ++w) bits[w] &= ~y[w];
+			} else {
+				char[] a = other.arrays[j];
+				int n = other.cardinality[j];
+				for (int k = 0; k < n; ++k) bits[a[k] >>> 6] &= ~(1L << a[k]);
+			}
+			ret.appendBits(keys[i],bits);
+		}
+		return ret;
+	}
+
+	/*
+	 *	Storage
+	 */
+
+	/**
+	 * Write the bitmap.
+	 * @param out The output stream
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeInt(size);
+		for (int b = 0; b < size; ++b) {
+			out.writeChar(keys[b]);
+			out.writeInt(cardinality[b]);
+			if (bitmaps[b] != null) {
+				for (long w: bitmaps[b]) out.writeLong(w);
+			} else {
+				char[] a = arrays[b];
+				for (int i = 0; i < cardinality[b]; ++i) out.writeChar(a[i]);
+			}
+		}
+	}
+
+	/**
+	 * Read a bitmap written with write().
+	 * @param in The input stream
+	 * @return The bitmap
+	 * @throws IOException
+	 */
+	public static RoaringBitmap read(DataInput in) throws IOException
+	{
+		int n = in.readInt();
+		if (n < 0) throw new IOException("Sync Error");
+
+		RoaringBitmap ret = new RoaringBitmap(n);
+		for (int b = 0; b < n; ++b) {
+			char key = in.readChar();
+			int card = in.readInt();
+			if ((card <= 0) || (card > 65536)) throw new IOException("Sync Error");
+			if ((b > 0) && (key <= ret.keys[b - 1])) throw new IOException("Sync Error");
+
+			if (card > ARRAY_MAX) {
+				long[] bits = new long[WORDS];
+				for (int w = 0; w < WORDS; ++w) bits[w] = in.readLong();
+				ret.append(key,null,bits,card);
+			} else {
+				char[] a = new char[card];
+				for (int i = 0; i < card; ++i) a[i] = in.readChar();
+				ret.append(key,a,null,card);
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,78 @@
+package com.chaosinmotion.coviddata.utils;
+
+/**
+ * The plain Java implementation of our column kernels. The loops are written
+ * without branches on the data, so the JIT can unroll them and, for the
+ * simpler ones, vectorize them itself.
+ */
+public class ScalarColumnKernel implements ColumnKernel
+{
+	@Override
+	public void bitCounts(byte[] values, int n, long[] counts)
+	{
+		int bits = Math.min(8,counts.length);
+		for (int b = 0; b < bits; ++b) {
+			long c = 0;
+			for (int i = 0; i < n; ++i) {
+				c += (values[i] >>> b) & 1;
+			}
+			counts[b] += c;
+		}
+	}
+
+	@Override
+	public void bitCounts(short[] values, int n, long[] counts)
+	{
+		int bits = Math.min(16,counts.length);
+		for (int b = 0; b < bits; ++b) {
+			long c = 0;
+			for (int i = 0; i < n; ++i) {
+				c += (values[i] >>> b) & 1;
+			}
+			counts[b] += c;
+		}
+	}
+
+	@Override
+	public void histogram(byte[] values, int n, long[] counts)
+	{
+		for (int v = 0; v < counts.length; ++v) {
+			long c = 0;
+			for (int i = 0; i < n; ++i) {
+				c += (values[i] == v) ? 1 : 0;
+			}
+			counts[v] += c;
+		}
+	}
+
+	@Override
+	public long countNonZero(byte[] values, int n)
+	{
+		long c = 0;
+		for (int i = 0; i < n; ++i) {
+			c += (values[i] != 0) ? 1 : 0;
+		}
+		return c;
+	}
+
+	@Override
+	public void setFlag(int[] counts, int n, int flag, byte[] flags)
+	{
+		for (int i = 0; i < n; ++i) {
+			flags[i] |= (counts[i] != 0) ? flag : 0;
+		}
+	}
+
+	@Override
+	public void groupOr(byte[] values, byte[] mask, int[] offsets, int groups, byte[] result)
+	{
+		for (int g = 0; g < groups; ++g) {
+			int acc = 0;
+			int end = offsets[g + 1];
+			for (int i = offsets[g]; i < end; ++i) {
+				acc |= (mask[i] != 0) ? values[i] : 0;
+			}
+			result[g] = (byte)acc;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.chaosinmotion.coviddata.vector;
+
+import com.chaosinmotion.coviddata.utils.ColumnKernel;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The column kernels, written with the (incubating) Vector API. This lives in
+ * its own module because it needs --add-modules jdk.incubator.vector both to
+ * compile and to run; ColumnKernel.get() loads it by name when it can, and
+ * falls back to ScalarColumnKernel when it can't.
+ *
+ * Each kernel works a full vector at a time, comparing lanes to build a mask
+ * and counting the mask's set lanes, then finishes the tail of the array one
+ * value at a time.
+ */
+public class VectorColumnKernel implements ColumnKernel
+{
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+
+	/*
+	 *	setFlag reads ints and writes bytes, so it needs two species with the
+	 * 	same number of lanes.
+	 */
+	private static final VectorSpecies<Integer> FLAG_INTS = IntVector.SPECIES_256;
+	private static final VectorSpecies<Byte> FLAG_BYTES = ByteVector.SPECIES_64;
+
+	@Override
+	public void bitCounts(byte[] values, int n, long[] counts)
+	{
+		int bits = Math.min(8,counts.length);
+		int bound = BYTES.loopBound(n);
+		int i = 0;
+		for (; i < bound; i += BYTES.length()) {
+			ByteVector v = ByteVector.fromArray(BYTES,values,i);
+			for (int b = 0; b < bits; ++b) {
+				counts[b] += v.and((byte)(1 << b)).compare(VectorOperators.NE,0).trueCount();
+			}
+		}
+		for (; i < n; ++i) {
+			for (int b = 0; b < bits; ++b) {
+				counts[b] += (values[i] >>> b) & 1;
+			}
+		}
+	}
+
+	@Override
+	public void bitCounts(short[] values, int n, long[] counts)
+	{
+		int bits = Math.min(16,counts.length);
+		int bound = SHORTS.loopBound(n);
+		int i = 0;
+		for (; i < bound; i += SHORTS.length()) {
+			ShortVector v = ShortVector.fromArray(SHORTS,values,i);
+			for (int b = 0; b < bits; ++b) {
+				counts[b] += v.and((short)(1 << b)).compare(VectorOperators.NE,0).trueCount();
+			}
+		}
+		for (; i < n; ++i) {
+			for (int b = 0; b < bits; ++b) {
+				counts[b] += (values[i] >>> b) & 1;
+			}
+		}
+	}
+
+	@Override
+	public void histogram(byte[] values, int n, long[] counts)
+	{
+		// A byte can't hold a value past 127, and compare() won't take one
+		int m = Math.min(counts.length,128);
+		int bound = BYTES.loopBound(n);
+		int i = 0;
+		for (; i < bound; i += BYTES.length()) {
+			ByteVector v = ByteVector.fromArray(BYTES,values,i);
+			for (int k = 0; k < m; ++k) {
+				counts[k] += v.compare(VectorOperators.EQ,k).trueCount();
+			}
+		}
+		for (; i < n; ++i) {
+			int k = values[i];
+			if ((k >= 0) && (k < counts.length)) counts[k]++;
+		}
+	}
+
+	@Override
+	public long countNonZero(byte[] values, int n)
+	{
+		long c = 0;
+		int bound = BYTES.loopBound(n);
+		int i = 0;
+		for (; i < bound; i += BYTES.length()) {
+			c += ByteVector.fromArray(BYTES,values,i).compare(VectorOperators.NE,0).trueCount();
+		}
+		for (; i < n; ++i) {
+			if (values[i] != 0) ++c;
+		}
+		return c;
+	}
+
+	@Override
+	public void setFlag(int[] counts, int n, int flag, byte[] flags)
+	{
+		int bound = FLAG_INTS.loopBound(n);
+		int i = 0;
+		for (; i < bound; i += FLAG_INTS.length()) {
+			VectorMask<Byte> m = IntVector.fromArray(FLAG_INTS,counts,i).compare(VectorOperators.NE,0).cast(FLAG_BYTES);
+			ByteVector.fromArray(FLAG_BYTES,flags,i).lanewise(VectorOperators.OR,(byte)flag,m).intoArray(flags,i);
+		}
+		for (; i < n; ++i) {
+			if (counts[i] != 0) flags[i] |= flag;
+		}
+	}
+
+	@Override
+	public void groupOr(byte[] values, byte[] mask, int[] offsets, int groups, byte[] result)
+	{
+		int lanes = BYTES.length();
+		for (int g = 0; g < groups; ++g) {
+			int i = offsets[g];
+			int end = offsets[g + 1];
+			int acc = 0;
+
+			/*
+			 *	Most registrants have only a handful of reports, so only
+			 * 	bother with vectors when a group is long enough to fill one.
+			 */
+
+			if (end - i >= lanes) {
+				ByteVector v = ByteVector.zero(BYTES);
+				for (; i + lanes <= end; i += lanes) {
+					VectorMask<Byte> m = ByteVector.fromArray(BYTES,mask,i).compare(VectorOperators.NE,0);
+					v = v.lanewise(VectorOperators.OR,ByteVector.fromArray(BYTES,values,i),m);
+				}
+				acc = v.reduceLanes(VectorOperators.OR);
+			}
+			for (; i < end; ++i) {
+				if (mask[i] != 0) acc |= values[i];
+			}
+			result[g] = (byte)acc;
+		}
+	}
+}